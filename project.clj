@@ -20,7 +20,8 @@
 
   :plugins [[cider/cider-nrepl "0.50.2" :exclusions [nrepl/nrepl]]
             [lein-codox "0.10.8"]
-            [lein-cljsbuild "1.1.8"]]
+            [lein-cljsbuild "1.1.8"]
+            [lein-jmh "0.3.0"]]
 
   :test-selectors {:niou :test-niou
                    :h1 :test-h1
@@ -29,8 +30,16 @@
                    :wsock :test-wsock
                    :nettio :test-nettio}
 
+  :aliases {"loadtest" ["with-profile" "+jmh"
+                        "run" "-m" "czlab.bench.nettio.load"]
+             "baseline" ["with-profile" "+jmh"
+                         "run" "-m" "czlab.bench.baseline"]}
+
   :profiles {:provided {:dependencies
                         [[org.clojure/clojure "1.12.0"]]}
+             :jmh {:dependencies [[jmh-clojure "0.4.1"]]
+                   :java-source-paths ["src/bench/java"]
+                   :source-paths ["src/bench/clojure"]}
              :uberjar {:aot :all}}
 
   :javadoc-opts {:package-names ["czlab.nettio"]
@@ -0,0 +1,151 @@
+;; Licensed under the Apache License, Version 2.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;;
+;;     http://www.apache.org/licenses/LICENSE-2.0
+;;
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+;;
+;; Copyright © 2013-2024, Kenneth Leung. All rights reserved.
+
+(ns czlab.bench.baseline
+
+  "Records jmh-baseline.edn.  Runs the benchmarks in jmh.edn
+  with a plain timing loop, the same warm-up and measurement
+  counts, average time per call in microseconds.
+
+  lein baseline
+  lein baseline jmh-baseline.edn routes/trie,dates/parse
+
+  The loop is cruder than jmh, so compare a change against
+  a baseline taken the same way, on the same machine.  A
+  benchmark whose namespace does not load is left out."
+
+  (:require [clojure.edn :as edn]
+            [clojure.pprint :as pp]
+            [clojure.string :as cs]))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;(set! *warn-on-reflection* true)
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(def ^:private iter-nanos 1000000000)
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- ref-of
+
+  "The name of a :state/x or :param/x reference."
+  [kind k]
+
+  (if (and (keyword? k)
+           (= kind (namespace k))) (keyword (name k))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- params-of
+
+  "The params a benchmark depends on, through its states."
+  [states bench]
+
+  (->> (:args bench)
+       (keep #(ref-of "state" %))
+       (mapcat #(get-in states [% :args]))
+       (keep #(ref-of "param" %))
+       distinct))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- combos
+
+  "Every combination of the given params' values."
+  [params pnames]
+
+  (reduce (fn [acc p]
+            (for [m acc v (get params p)] (assoc m p v))) [{}] pnames))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- state<>
+
+  [states pm k]
+
+  (let [{f :fn args :args} (get states k)]
+    (apply (requiring-resolve f)
+           (map #(get pm (ref-of "param" %)) args))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- timed
+
+  "Call f for about a second, returns microseconds per call."
+  [f args]
+
+  (let [t0 (System/nanoTime)]
+    (loop [n 1]
+      (apply f args)
+      (let [dt (- (System/nanoTime) t0)]
+        (if (< dt iter-nanos)
+          (recur (+ 1 n))
+          (/ dt 1000.0 n))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- measure
+
+  [{:keys [states options]} bench pm]
+
+  (let [{:keys [warmup measurement]} (:jmh/default options)
+        f (requiring-resolve (:fn bench))
+        args (mapv #(state<> states pm (ref-of "state" %)) (:args bench))
+        _ (dotimes [_ (:iterations warmup 3)] (timed f args))
+        xs (vec (repeatedly (:iterations measurement 5)
+                            #(timed f args)))
+        avg (/ (reduce + xs) (count xs))]
+    (cond-> {:name (:name bench)
+             :score (/ (Math/round (* 1000 avg)) 1000.0)
+             :score-units "us/op"}
+      (seq pm) (assoc :params pm))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn run-all
+
+  "Measure the chosen benchmarks, all of them if none."
+  [cfg wanted]
+
+  (let [want? (if (seq wanted) (set wanted) any?)]
+    (vec (for [b (:benchmarks cfg)
+               :when (want? (:name b))
+               :when (try (requiring-resolve (:fn b))
+                          (catch Throwable e
+                            (binding [*out* *err*]
+                              (println "skipped" (:name b) "-" (.getMessage e)))))
+               pm (combos (:params cfg) (params-of (:states cfg) b))]
+           (do (println "running" (:name b) (or pm ""))
+               (measure cfg b pm))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn -main
+
+  "Output file, then benchmark names, comma separated."
+  [& [out bnames]]
+
+  (let [out (or out "jmh-baseline.edn")
+        cfg (edn/read-string (slurp "jmh.edn"))
+        wanted (some->> bnames
+                        (#(cs/split % #","))
+                        (map keyword))
+        res (run-all cfg wanted)
+        left (remove (set (map :name res))
+                     (or wanted (map :name (:benchmarks cfg))))]
+    (spit out
+          (str ";; Recorded with lein baseline, see czlab.bench.baseline.\n"
+               ";; java " (System/getProperty "java.version")
+               ", " (System/getProperty "os.arch")
+               ", " (.availableProcessors (Runtime/getRuntime)) " cpu(s)\n"
+               (if (seq left)
+                 (str ";; not recorded: " (cs/join " " left) "\n"))
+               (with-out-str (pp/pprint res))))
+    (shutdown-agents)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;EOF
+
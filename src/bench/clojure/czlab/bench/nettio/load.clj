@@ -0,0 +1,517 @@
+;; Licensed under the Apache License, Version 2.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;;
+;;     http://www.apache.org/licenses/LICENSE-2.0
+;;
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+;;
+;; Copyright © 2013-2024, Kenneth Leung. All rights reserved.
+(ns czlab.bench.nettio.load
+
+  "An in-process load generator.  A web-server-module<> is
+  started on loopback and driven by raw netty clients, one
+  scenario at a time, reporting requests per second and
+  latency percentiles.
+
+  lein loadtest all
+  lein loadtest h1,h1-pipelined '{:conns 64 :seconds 30}'
+  lein loadtest h2-frames '{:rate 20000 :server {:metrics? false}}'
+
+  Latency is measured from when a request was meant to go
+  out, not from when it did, so a stalled server is not
+  hidden by the client backing off - coordinated omission.
+  With a :rate, requests are sent on a fixed schedule.
+  Without one, each connection goes as fast as it can and
+  the stalls are back-filled at the interval seen during
+  warm-up, the way HdrHistogram does."
+
+  (:require [clojure.edn :as edn]
+            [clojure.string :as cs]
+            [czlab.basal.core :as c]
+            [czlab.basal.util :as u]
+            [czlab.niou.core :as cc]
+            [czlab.nettio.server :as sv])
+
+  (:import [czlab.nettio Histogram]
+           [czlab.niou Headers]
+           [czlab.basal XData]
+           [czlab.niou.core Http2xMsg WsockMsg]
+           [java.net URI]
+           [java.nio.charset StandardCharsets]
+           [java.util ArrayDeque]
+           [java.util.concurrent TimeUnit]
+           [java.util.concurrent.atomic AtomicReference LongAdder]
+           [io.netty.buffer ByteBuf Unpooled]
+           [io.netty.util ReferenceCountUtil]
+           [io.netty.util.concurrent GenericFutureListener]
+           [io.netty.bootstrap Bootstrap]
+           [io.netty.channel
+            Channel
+            ChannelHandler
+            ChannelInitializer
+            ChannelOption
+            ChannelHandlerContext
+            ChannelInboundHandlerAdapter]
+           [io.netty.channel.nio NioEventLoopGroup]
+           [io.netty.channel.socket.nio NioSocketChannel]
+           [io.netty.handler.codec.http
+            HttpClientCodec
+            LastHttpContent
+            HttpObjectAggregator
+            HttpResponseDecoder
+            DefaultHttpHeaders]
+           [io.netty.handler.codec.http.websocketx
+            WebSocketFrame
+            WebSocketVersion
+            TextWebSocketFrame
+            WebSocketClientProtocolHandler
+            WebSocketClientProtocolHandler$ClientHandshakeStateEvent]
+           [io.netty.handler.codec.http2
+            Http2DataFrame
+            Http2HeadersFrame
+            Http2SecurityUtil
+            DefaultHttp2Headers
+            DefaultHttp2HeadersFrame
+            Http2FrameCodecBuilder
+            Http2MultiplexHandler
+            Http2StreamChannelBootstrap]
+           [io.netty.handler.ssl
+            SslContext
+            SslContextBuilder
+            ApplicationProtocolConfig
+            ApplicationProtocolNames
+            SupportedCipherSuiteFilter
+            SslHandshakeCompletionEvent
+            ApplicationProtocolConfig$Protocol
+            ApplicationProtocolConfig$SelectorFailureBehavior
+            ApplicationProtocolConfig$SelectedListenerFailureBehavior]
+           [io.netty.handler.ssl.util InsecureTrustManagerFactory]))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;(set! *warn-on-reflection* true)
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(def scenarios
+
+  "What can be run, :depth is how many requests each
+  connection keeps in flight, :server is merged into
+  the server args.  Both can be overridden in options."
+
+  {:h1 {:proto :h1 :depth 1}
+   :h1-pipelined {:proto :h1 :depth 16 :server {:pipelining? true}}
+   :h2 {:proto :h2 :depth 16 :server {:server-key "*"}}
+   :h2-frames {:proto :h2 :depth 16 :server {:server-key "*"
+                                             :h2-frames? true}}
+   :ws {:proto :ws :depth 1}})
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(c/def- dft-options {:host "127.0.0.1"
+                     :port 8089
+                     :conns 16
+                     :warmup 3
+                     :seconds 10
+                     :rate nil
+                     :threads 0
+                     :server {}})
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- hello-cb
+
+  "Reply hello to http, echo websocket messages."
+  [msg]
+
+  (cc/reply-result
+    (cond (c/is? WsockMsg msg)
+          msg
+          (c/is? Http2xMsg msg)
+          (assoc msg
+                 :status 200
+                 :body (XData. "hello")
+                 :headers (doto (Headers.)
+                            (.set "content-type" "text/plain")))
+          :else
+          (-> (cc/http-result msg)
+              (cc/res-header-set "content-type" "text/plain")
+              (cc/res-body-set "hello")))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- record!
+
+  "Record a latency, back-filling the requests a stall
+  would have held up had the client kept to interval."
+  [^AtomicReference hist ^long lat ^long interval]
+
+  (let [^Histogram h (.get hist)]
+    (.record h lat)
+    (when (pos? interval)
+      (loop [v (- lat interval)]
+        (when (>= v interval)
+          (.record h v)
+          (recur (- v interval)))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- state<>
+
+  "Per connection state, only ever touched on its event loop.
+  :sent holds the intended send times of what is in flight."
+  [{:keys [depth interval]} ctl send!]
+
+  (assoc ctl
+         :send! send!
+         :depth depth
+         :interval (long (or interval 0))
+         :sent (ArrayDeque.)
+         :armed (boolean-array 1)
+         :next (long-array 1)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- pump!
+
+  "Send as much as depth, and the schedule, allow."
+  [st ^Channel ch]
+
+  (let [{:keys [^ArrayDeque sent ^longs next
+                ^booleans armed ^AtomicReference stop
+                depth interval send!]} st
+        interval (long interval)
+        now (System/nanoTime)]
+    (when (and (.isActive ch)
+               (nil? (.get stop)))
+      (if (zero? (aget next 0))
+        (aset next 0 now))
+      (loop [n 0]
+        (if (and (< (.size sent) (long depth))
+                 (or (zero? interval)
+                     (>= now (aget next 0))))
+          (let [t (if (zero? interval) now (aget next 0))]
+            (.addLast sent t)
+            (aset next 0 (+ t interval))
+            (send! ch)
+            (recur (+ 1 n)))
+          (do (if (pos? n) (.flush ch))
+              (when (and (pos? interval)
+                         (not (aget armed 0))
+                         (< (.size sent) (long depth)))
+                (aset armed 0 true)
+                (.schedule (.eventLoop ch)
+                           ^Runnable
+                           (fn []
+                             (aset armed 0 false)
+                             (pump! st ch))
+                           (- (aget next 0) now)
+                           TimeUnit/NANOSECONDS))))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- done!
+
+  "A reply came back, record it and send the next."
+  [st ^Channel ch]
+
+  (let [{:keys [^ArrayDeque sent ^LongAdder done
+                hist backfill]} st]
+    (when-some [t (.pollFirst sent)]
+      (record! hist
+               (- (System/nanoTime) (long t))
+               (long (if (zero? (long (:interval st)))
+                       (.get ^AtomicReference backfill) 0)))
+      (.increment done)
+      (pump! st ch))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- failed!
+
+  [st ^ChannelHandlerContext ctx e]
+
+  (.increment ^LongAdder (:errors st))
+  (.close ctx))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- h1-init
+
+  "Raw bytes out, only the response decoder in."
+  [{:keys [host] :as args} ctl]
+
+  (let [^ByteBuf req (-> (str "GET /hello HTTP/1.1\r\n"
+                              "Host: " host "\r\n"
+                              "Accept: */*\r\n\r\n")
+                         (Unpooled/copiedBuffer StandardCharsets/US_ASCII)
+                         Unpooled/unreleasableBuffer)]
+    (proxy [ChannelInitializer][]
+      (initChannel [^Channel ch]
+        (let [st (state<> args
+                          ctl
+                          #(.write ^Channel % (.duplicate req)))]
+          (.addLast (.pipeline ch)
+                    (into-array ChannelHandler
+                                [(HttpResponseDecoder.)
+                                 (proxy [ChannelInboundHandlerAdapter][]
+                                   (channelActive [ctx]
+                                     (pump! st ch))
+                                   (channelRead [ctx m]
+                                     (let [last? (c/is? LastHttpContent m)]
+                                       (ReferenceCountUtil/release m)
+                                       (if last? (done! st ch))))
+                                   (exceptionCaught [ctx e]
+                                     (failed! st ctx e)))])))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- ws-init
+
+  "A websocket client, echoing hello."
+  [{:keys [host port] :as args} ctl]
+
+  (let [uri (URI. (str "ws://" host ":" port "/websock"))]
+    (proxy [ChannelInitializer][]
+      (initChannel [^Channel ch]
+        (let [st (state<> args
+                          ctl
+                          #(.write ^Channel % (TextWebSocketFrame. "hello")))]
+          (.addLast (.pipeline ch)
+                    (into-array ChannelHandler
+                                [(HttpClientCodec.)
+                                 (HttpObjectAggregator. 65536)
+                                 (WebSocketClientProtocolHandler.
+                                   uri WebSocketVersion/V13
+                                   nil false (DefaultHttpHeaders.) 65536)
+                                 (proxy [ChannelInboundHandlerAdapter][]
+                                   (userEventTriggered [ctx e]
+                                     (if (= e WebSocketClientProtocolHandler$ClientHandshakeStateEvent/HANDSHAKE_COMPLETE)
+                                       (pump! st ch)))
+                                   (channelRead [ctx m]
+                                     (let [f? (c/is? WebSocketFrame m)]
+                                       (ReferenceCountUtil/release m)
+                                       (if f? (done! st ch))))
+                                   (exceptionCaught [ctx e]
+                                     (failed! st ctx e)))])))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- h2-ssl
+
+  ^SslContext []
+
+  (-> (SslContextBuilder/forClient)
+      (.trustManager InsecureTrustManagerFactory/INSTANCE)
+      (.ciphers Http2SecurityUtil/CIPHERS
+                SupportedCipherSuiteFilter/INSTANCE)
+      (.applicationProtocolConfig
+        (ApplicationProtocolConfig.
+          ApplicationProtocolConfig$Protocol/ALPN
+          ApplicationProtocolConfig$SelectorFailureBehavior/NO_ADVERTISE
+          ApplicationProtocolConfig$SelectedListenerFailureBehavior/ACCEPT
+          ^"[Ljava.lang.String;"
+          (into-array String [ApplicationProtocolNames/HTTP_2])))
+      .build))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- h2-stream
+
+  "Handles the reply on a child stream."
+  [st ^Channel parent]
+
+  (proxy [ChannelInboundHandlerAdapter][]
+    (isSharable [] true)
+    (channelRead [ctx m]
+      (let [end? (or (and (c/is? Http2HeadersFrame m)
+                          (.isEndStream ^Http2HeadersFrame m))
+                     (and (c/is? Http2DataFrame m)
+                          (.isEndStream ^Http2DataFrame m)))]
+        (ReferenceCountUtil/release m)
+        (when end?
+          (.close ^ChannelHandlerContext ctx)
+          (done! st parent))))
+    (exceptionCaught [ctx e]
+      (failed! st ctx e))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- h2-init
+
+  "TLS with ALPN, one child stream per request."
+  [{:keys [host port] :as args} ctl]
+
+  (let [ssl (h2-ssl)
+        hds (doto (DefaultHttp2Headers.)
+              (.method "GET")
+              (.path "/hello")
+              (.scheme "https")
+              (.authority (str host ":" port)))
+        sent (reify GenericFutureListener
+               (operationComplete [_ f]
+                 (if (.isSuccess f)
+                   (.writeAndFlush ^Channel (.getNow f)
+                                   (DefaultHttp2HeadersFrame. hds true))
+                   (.increment ^LongAdder (:errors ctl)))))]
+    (proxy [ChannelInitializer][]
+      (initChannel [^Channel ch]
+        (let [box (volatile! nil)
+              st (state<> args
+                          ctl
+                          (fn [^Channel ch]
+                            (-> (Http2StreamChannelBootstrap. ch)
+                                (.handler @box)
+                                .open
+                                (.addListener sent))))]
+          (vreset! box (h2-stream st ch))
+          (.addLast (.pipeline ch)
+                    (into-array ChannelHandler
+                                [(.newHandler ssl (.alloc ch) host (int port))
+                                 (.build (Http2FrameCodecBuilder/forClient))
+                                 (Http2MultiplexHandler.
+                                   (proxy [ChannelInboundHandlerAdapter][]
+                                     (isSharable [] true)))
+                                 (proxy [ChannelInboundHandlerAdapter][]
+                                   (userEventTriggered [ctx e]
+                                     (if (and (c/is? SslHandshakeCompletionEvent e)
+                                              (.isSuccess ^SslHandshakeCompletionEvent e))
+                                       (pump! st ch)))
+                                   (exceptionCaught [ctx e]
+                                     (failed! st ctx e)))])))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- connect!
+
+  "Open the client connections, returns their channels."
+  [{:keys [host port conns proto] :as args} ^NioEventLoopGroup g ctl]
+
+  (let [init (case proto
+               :h1 (h1-init args ctl)
+               :h2 (h2-init args ctl)
+               :ws (ws-init args ctl))
+        bs (doto (Bootstrap.)
+             (.group g)
+             (.channel NioSocketChannel)
+             (.option ChannelOption/TCP_NODELAY true)
+             (.handler ^ChannelHandler init))]
+    (c/preduce<vec>
+      (fn [acc _]
+        (conj! acc (.. bs (connect ^String host (int port)) sync channel)))
+      (range conns))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- summary
+
+  [^Histogram h ^long n ^long errors ^long nanos]
+
+  (let [us #(/ (.quantile h %) 1000.0)]
+    {:requests n
+     :errors errors
+     :rps (/ (* n 1e9) nanos)
+     :p50 (us 0.5)
+     :p99 (us 0.99)
+     :p999 (us 0.999)
+     :max (us 1.0)}))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn run-scenario
+
+  "Start a server, drive it for warm-up plus seconds,
+  stop it.  Returns throughput and latencies in micros."
+  {:arglists '([sname]
+               [sname options])}
+
+  ([sname]
+   (run-scenario sname nil))
+
+  ([sname options]
+   (let [{:keys [server] :as scn} (scenarios sname)
+         {:keys [host port conns rate depth
+                 warmup seconds threads]
+          :as args} (merge dft-options
+                           (dissoc scn :server)
+                           options)
+         conns (long conns)
+         interval (if (c/spos? rate)
+                    (long (/ (* conns 1e9) rate)) 0)
+         ctl {:hist (AtomicReference. (Histogram.))
+              :backfill (AtomicReference. 0)
+              :stop (AtomicReference.)
+              :done (LongAdder.)
+              :errors (LongAdder.)}
+         {:keys [^AtomicReference hist
+                 ^AtomicReference backfill
+                 ^AtomicReference stop
+                 ^LongAdder done
+                 ^LongAdder errors]} ctl
+         w (-> (merge {:user-cb hello-cb}
+                      server
+                      (:server options))
+               sv/web-server-module<>
+               (c/start {:host host :port port}))
+         g (NioEventLoopGroup. (int threads))]
+     (try
+       (u/pause 500)
+       (let [chs (connect! (assoc args :interval interval) g ctl)]
+         (u/pause (* 1000 (long warmup)))
+         ;;the warm-up mean stands in for the interval
+         ;;each request slot would have kept up
+         (let [^Histogram h (.get hist)
+               k (.count h)]
+           (if (pos? k)
+             (.set backfill (quot (.sum h) k))))
+         (.set hist (Histogram.))
+         (let [n0 (.sum done)
+               e0 (.sum errors)
+               t0 (System/nanoTime)]
+           (u/pause (* 1000 (long seconds)))
+           (let [t1 (System/nanoTime)
+                 n1 (.sum done)
+                 e1 (.sum errors)]
+             (.set stop true)
+             (doseq [^Channel ch chs] (c/try! (.. ch close sync)))
+             (assoc (summary (.get hist)
+                             (- n1 n0)
+                             (- e1 e0)
+                             (- t1 t0))
+                    :scenario sname
+                    :conns conns
+                    :depth depth
+                    :rate rate))))
+       (finally
+         (.. g shutdownGracefully syncUninterruptibly)
+         (c/stop w)
+         (u/pause 500))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn run-all
+
+  "Run the named scenarios, :all for every one."
+  [snames options]
+
+  (mapv #(run-scenario % options)
+        (if (or (= :all snames)
+                (some #{:all} snames))
+          (sort (keys scenarios)) snames)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- report
+
+  [results]
+
+  (println (format "%-14s %6s %6s %12s %10s %10s %10s %8s"
+                   "scenario" "conns" "depth" "req/s"
+                   "p50(us)" "p99(us)" "p999(us)" "errors"))
+  (doseq [{:keys [scenario conns depth rps p50 p99 p999 errors]} results]
+    (println (format "%-14s %6d %6d %12.1f %10.1f %10.1f %10.1f %8d"
+                     (name scenario) conns depth
+                     (double rps) (double p50)
+                     (double p99) (double p999) errors))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn -main
+
+  "Scenarios, comma separated, then an optional
+  edn map of options."
+  [& [snames opts]]
+
+  (report (run-all (map keyword
+                        (cs/split (or snames "all") #","))
+                   (some-> opts edn/read-string)))
+  (shutdown-agents))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;EOF
+
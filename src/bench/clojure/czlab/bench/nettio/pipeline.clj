@@ -0,0 +1,164 @@
+;; Licensed under the Apache License, Version 2.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;;
+;;     http://www.apache.org/licenses/LICENSE-2.0
+;;
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+;;
+;; Copyright © 2013-2024, Kenneth Leung. All rights reserved.
+
+(ns czlab.bench.nettio.pipeline
+
+  "Benchmarks for whole handler chains, run on an
+  EmbeddedChannel so no sockets are involved."
+
+  (:require [czlab.niou.core :as cc]
+            [czlab.nettio.core :as n]
+            [czlab.nettio.http :as h1]
+            [czlab.nettio.resp :as rs])
+
+  (:import [io.netty.buffer ByteBuf Unpooled]
+           [io.netty.util ReferenceCountUtil]
+           [io.netty.channel ChannelHandler]
+           [io.netty.channel.embedded EmbeddedChannel]
+           [java.nio.charset StandardCharsets]
+           [czlab.nettio FlashHandler InboundHandler Metrics]))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;(set! *warn-on-reflection* true)
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(def ^:private get-req
+  (str "GET /api/v1/res3/list?id=42&q=abc HTTP/1.1\r\n"
+       "Host: localhost:8080\r\n"
+       "Connection: keep-alive\r\n"
+       "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36\r\n"
+       "Accept: text/html,application/xhtml+xml,application/xml;q=0.9\r\n"
+       "Accept-Encoding: gzip, deflate, br\r\n"
+       "Accept-Language: en-US,en;q=0.9\r\n"
+       "Cookie: __sid=abc123; theme=dark\r\n"
+       "\r\n"))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- cfg<>
+
+  "Channel settings, as the server would hand them over."
+  [pipelining?]
+
+  {:max-mem-size (* 1024 1024)
+   :max-pipeline-depth 16
+   :pipelining? (boolean pipelining?)
+   :metrics (Metrics.)})
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- channel<>
+
+  "A server side h1 pipeline calling back user-cb."
+  ^EmbeddedChannel [pipelining? user-cb]
+
+  (let [cfg (assoc (cfg<> pipelining?) :user-cb user-cb)
+        ch (EmbeddedChannel. (make-array ChannelHandler 0))]
+    (n/akey+ ch n/chcfg-key cfg)
+    (h1/h1-pipeline (.pipeline ch) cfg)
+    ch))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- drain
+
+  "Drop whatever was written out, returns how many."
+  [^EmbeddedChannel ch]
+
+  (loop [n 0]
+    (if-some [m (.readOutbound ch)]
+      (do (ReferenceCountUtil/release m)
+          (recur (+ 1 n))) n)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn request<>
+
+  "The raw bytes of a typical browser GET."
+  []
+
+  (Unpooled/unreleasableBuffer
+    (Unpooled/copiedBuffer ^String get-req StandardCharsets/US_ASCII)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn echo<>
+
+  "A channel whose application replies hello."
+  [pipelining?]
+
+  (channel<> pipelining?
+             #(-> (cc/http-result %)
+                  (cc/res-header-set "content-type" "text/plain")
+                  (cc/res-body-set "hello")
+                  cc/reply-result)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn sink<>
+
+  "A channel whose application drops each request,
+  so only decoding and netty->ring are measured.
+  Never pipelined, a pipeline would hold on to
+  every request that is not replied to."
+  []
+
+  (channel<> false (fn [_] nil)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn gist<>
+
+  "A decoded request, bound to its channel,
+  ready to be replied to, again and again."
+  []
+
+  (let [out (volatile! nil)
+        ch (channel<> false #(vreset! out %))]
+    (.writeInbound ch (object-array [(.duplicate ^ByteBuf (request<>))]))
+    @out))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn push
+
+  "Request bytes in, drop whatever the chain writes out."
+  [^EmbeddedChannel ch ^ByteBuf req]
+
+  (.writeInbound ch (object-array [(.duplicate req)]))
+  (drain ch))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn reply
+
+  "replyer<>, from result to encoded bytes."
+  [gist]
+
+  (-> (cc/http-result gist)
+      (cc/res-header-set "content-type" "text/plain")
+      (cc/res-body-set "hello")
+      cc/reply-result)
+  (drain (:socket gist)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn flash-miss
+
+  "FlashHandler sniffing a plain http request, then
+  getting out of the way, on a fresh channel."
+  [^ByteBuf req]
+
+  (let [ch (EmbeddedChannel.
+             (into-array ChannelHandler
+                         [FlashHandler/shared
+                          (proxy [InboundHandler][]
+                            (onRead [_ _ m]
+                              (ReferenceCountUtil/release m)))]))]
+    (.writeInbound ch (object-array [(.duplicate req)]))
+    (.finishAndReleaseAll ch)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;EOF
+
@@ -0,0 +1,71 @@
+;; Licensed under the Apache License, Version 2.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;;
+;;     http://www.apache.org/licenses/LICENSE-2.0
+;;
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+;;
+;; Copyright © 2013-2024, Kenneth Leung. All rights reserved.
+(ns czlab.bench.nettio.ranges
+
+  "Benchmarks for http byte ranges."
+
+  (:require [czlab.basal.core :as c]
+            [czlab.nettio.ranges :as nr])
+
+  (:import [io.netty.handler.stream ChunkedInput]
+           [io.netty.buffer ByteBufAllocator]
+           [io.netty.util ReferenceCountUtil]))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;(set! *warn-on-reflection* true)
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn source<>
+
+  "A 64k body to take ranges from."
+  []
+
+  (let [b (byte-array (* 64 1024))]
+    (dotimes [i (alength b)]
+      (aset-byte b i (unchecked-byte i))) b))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- serve
+
+  "Parse the range header, then read every chunk out."
+  [range source]
+
+  (if-some [^ChunkedInput in (nr/http-ranges<> range "text/plain" source)]
+    (try
+      (loop [n 0]
+        (if-some [m (.readChunk in ByteBufAllocator/DEFAULT)]
+          (do (ReferenceCountUtil/release m)
+              (recur (+ 1 n))) n))
+      (finally (c/finz in)))
+    0))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn single
+
+  "One range, the common resume-download case."
+  [source]
+
+  (serve "bytes=1024-8191" source))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn multi
+
+  "Several ranges, served as multipart/byteranges."
+  [source]
+
+  (serve "bytes=0-99,1000-1999,-500" source))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;EOF
+
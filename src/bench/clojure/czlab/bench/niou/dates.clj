@@ -0,0 +1,89 @@
+;; Licensed under the Apache License, Version 2.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;;
+;;     http://www.apache.org/licenses/LICENSE-2.0
+;;
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+;;
+;; Copyright © 2013-2024, Kenneth Leung. All rights reserved.
+(ns czlab.bench.niou.dates
+
+  "Benchmarks for http date handling."
+
+  (:import [czlab.niou DateUtil]
+           [czlab.nettio DateClock]))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;(set! *warn-on-reflection* true)
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn stamps<>
+
+  "A thousand or so times, spread over a day."
+  ^longs []
+
+  (let [t0 1700000000000]
+    (long-array (map #(+ t0 (* 1000 %)) (range 0 86400 86)))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn texts<>
+
+  "The same times, formatted, plus the two obsolete forms."
+  []
+
+  (let [ss (stamps<>)]
+    (-> (mapv #(DateUtil/formatHttpDate (long %)) ss)
+        (conj "Sunday, 06-Nov-94 08:49:37 GMT"
+              "Sun Nov  6 08:49:37 1994"))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn fmt
+
+  "IMF-fixdate as a String."
+  [^longs ss]
+
+  (let [n (alength ss)]
+    (loop [i 0 acc 0]
+      (if (< i n)
+        (recur (+ 1 i)
+               (+ acc (.length (DateUtil/formatHttpDate (aget ss i)))))
+        acc))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn ascii
+
+  "IMF-fixdate as an AsciiString header value."
+  [^longs ss]
+
+  (let [n (alength ss)]
+    (loop [i 0 acc 0]
+      (if (< i n)
+        (recur (+ 1 i)
+               (+ acc (.length (DateUtil/asciiHttpDate (aget ss i)))))
+        acc))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn parse
+
+  "Parse back, without throwing."
+  [texts]
+
+  (reduce (fn [acc s]
+            (+ acc (DateUtil/parseHttpDate ^CharSequence s 0))) 0 texts))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn clock
+
+  "The cached Date value, with no one ticking it."
+  []
+
+  (DateClock/now))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;EOF
+
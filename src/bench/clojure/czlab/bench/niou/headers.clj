@@ -0,0 +1,113 @@
+;; Licensed under the Apache License, Version 2.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;;
+;;     http://www.apache.org/licenses/LICENSE-2.0
+;;
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+;;
+;; Copyright © 2013-2024, Kenneth Leung. All rights reserved.
+
+(ns czlab.bench.niou.headers
+
+  "Benchmarks for header conversion."
+
+  (:require [czlab.nettio.http :as h1])
+
+  (:import [czlab.niou Headers]
+           [czlab.nettio NettyHeaders]
+           [czlab.bench.niou LegacyHeaders]
+           [java.util List Map$Entry]
+           [io.netty.handler.codec.http
+            HttpHeaders
+            DefaultHttpHeaders]))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;(set! *warn-on-reflection* true)
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn netty-headers<>
+
+  "A typical browser request."
+  []
+
+  (doto (DefaultHttpHeaders.)
+    (.add "Host" "localhost:8080")
+    (.add "Connection" "keep-alive")
+    (.add "Cache-Control" "max-age=0")
+    (.add "User-Agent" "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36")
+    (.add "Accept" "text/html,application/xhtml+xml,application/xml;q=0.9")
+    (.add "Accept-Encoding" "gzip, deflate, br")
+    (.add "Accept-Language" "en-US,en;q=0.9")
+    (.add "Cookie" "__sid=abc123")
+    (.add "Cookie" "theme=dark")
+    (.add "If-None-Match" "\"1600000000-12345\"")
+    (.add "Content-Type" "text/plain")
+    (.add "X-Requested-With" "XMLHttpRequest")))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- lookups
+
+  "What a typical handler reads."
+  [^Headers h]
+
+  (.getFirst h "content-type")
+  (.getFirst h "Cookie")
+  (.containsKey h "origin"))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn current
+
+  "Round trip through a live view of the netty headers."
+  [^HttpHeaders hds]
+
+  (let [h (NettyHeaders. hds)]
+    (lookups h)
+    (h1/std->headers h)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn copy
+
+  "Round trip through a copy in czlab.niou.Headers."
+  [^HttpHeaders hds]
+
+  (let [h (Headers.)
+        it (.iteratorCharSequence hds)]
+    (while (.hasNext it)
+      (let [^Map$Entry e (.next it)]
+        (.add h
+              ^CharSequence (.getKey e)
+              ^CharSequence (.getValue e))))
+    (lookups h)
+    (h1/std->headers h)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn legacy
+
+  "Round trip through the original implementation."
+  [^HttpHeaders hds]
+
+  (let [h (reduce
+            (fn [^LegacyHeaders acc ^String n]
+              (doseq [v (.getAll hds n)]
+                (.add acc n ^String v)) acc) (LegacyHeaders.) (.names hds))]
+    (.getFirst h "content-type")
+    (.getFirst h "Cookie")
+    (.containsKey h "origin")
+    (reduce
+      (fn [^HttpHeaders acc ^String n]
+        (let [^List lst (.get h n)]
+          (if (== 1 (.size lst))
+            (.set acc n ^String (.get lst 0))
+            (doseq [v lst]
+              (.add acc n ^String v))) acc))
+      (DefaultHttpHeaders.)
+      (.keySet h))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;EOF
+
@@ -0,0 +1,94 @@
+;; Licensed under the Apache License, Version 2.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;;
+;;     http://www.apache.org/licenses/LICENSE-2.0
+;;
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+;;
+;; Copyright © 2013-2024, Kenneth Leung. All rights reserved.
+
+(ns czlab.bench.niou.routes
+
+  "Benchmarks for route cracking."
+
+  (:require [czlab.niou.routes :as r]))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;(set! *warn-on-reflection* true)
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(def ^:private verbs [:get :post :put :delete])
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- route-defs
+
+  "A mix of static, placeholder and regex routes."
+  [n]
+
+  (map #(case (int (mod % 3))
+          0 {:name (keyword (str "s" %))
+             :verb (nth verbs (mod % 4))
+             :pattern (str "/api/v1/res" % "/list")}
+          1 {:name (keyword (str "p" %))
+             :verb (nth verbs (mod % 4))
+             :pattern (str "/api/v1/res" % "/{id}/items/{item}")}
+          2 {:name (keyword (str "g" %))
+             :pattern (str "/api/v2/res" % "/{id}")
+             :groups {:id "[0-9]+"}})
+       (range n)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn cracker<>
+
+  "Route cracker with n routes."
+  [n]
+
+  (r/route-cracker<> (route-defs n)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn probes<>
+
+  "Requests spread across the route table, plus some misses."
+  [n]
+
+  (let [n (long n)]
+    (vec (concat (map #(let [i (long (* (/ % 8.0) (- n 1)))]
+                         (case (int (mod i 3))
+                           0 {:request-method (nth verbs (mod i 4))
+                              :uri (str "/api/v1/res" i "/list")}
+                           1 {:request-method (nth verbs (mod i 4))
+                              :uri (str "/api/v1/res" i "/42/items/abc")}
+                           2 {:request-method :get
+                              :uri (str "/api/v2/res" i "/42")}))
+                      (range 9))
+                 [{:request-method :get :uri "/api/v1/nope/list"}
+                  {:request-method :post :uri "/api/v2/res2/abc"}
+                  {:request-method :get :uri "/favicon.ico"}]))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn trie-crack
+
+  "Crack all probes using the trie."
+  [rc probes]
+
+  (reduce #(if (r/crack-route rc %2) (+ 1 (long %1)) %1) 0 probes))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn linear-crack
+
+  "Crack all probes by scanning every route, in order."
+  [rc probes]
+
+  (reduce #(let [{:keys [uri request-method]} %2]
+             (if (some (fn [[_ v]]
+                         (r/match-path?? v request-method uri)) (:routes rc))
+               (+ 1 (long %1)) %1)) 0 probes))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;EOF
+
@@ -34,7 +34,15 @@
            [czlab.nettio.iniz WSInizor H2Inizor H1Inizor]
            [czlab.niou.core Http1xMsg Http2xMsg WsockMsg]
            [czlab.niou Headers]
-           [java.util ArrayList List]
+           [java.util ArrayList List Map]
+           [java.util.concurrent ConcurrentHashMap]
+           [java.util.function Function]
+           [io.netty.channel.pool
+            ChannelPool
+            FixedChannelPool
+            ChannelPoolHandler
+            ChannelHealthChecker
+            FixedChannelPool$AcquireTimeoutAction]
            [io.netty.channel.socket.nio NioSocketChannel]
            [io.netty.handler.codec.http.websocketx
             ContinuationWebSocketFrame
@@ -76,6 +84,7 @@
             ApplicationProtocolConfig$SelectorFailureBehavior
             ApplicationProtocolConfig$SelectedListenerFailureBehavior]
            [io.netty.util ReferenceCountUtil AttributeKey]
+           [io.netty.util.concurrent Future GenericFutureListener]
            [java.io InputStream File IOException]
            [io.netty.buffer ByteBuf Unpooled]
            [java.net InetSocketAddress URI URL]
@@ -124,33 +133,40 @@
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- boot!
 
-  [args]
-
-  (c/info "client bootstrap ctor().")
-  (let [{:as ARGS
-         :keys [max-msg-size max-mem-size
-                protocol temp-dir server-cert
-                scheme threads rcv-buf options]}
-        (merge {:max-mem-size i/*membuf-limit*
-                :rcv-buf (* 2 c/MegaBytes)
-                :threads 0
-                :max-msg-size Integer/MAX_VALUE
-                :max-frame-size (* 32 c/MegaBytes)} args)
-        threads (if (pos? threads) threads 0)
-        temp-dir (u/fpath (or temp-dir
-                              (i/file-repo)))
-        bs (Bootstrap.)
-        [^EventLoopGroup g z] (n/group+channel threads :tcpc)]
-    (n/config-disk-files true temp-dir)
-    (c/info "setting client options...")
-    (doseq [[k v] (partition 2 (or options
-                                   [:SO_KEEPALIVE true
-                                    :TCP_NODELAY true
-                                    :SO_RCVBUF (int rcv-buf)]))]
-      (.option bs (n/chopt* k) v))
-    ;;assign generic attributes for all channels
-    (.attr bs n/chcfg-key ARGS)
-    [(doto bs (.channel z) (.group g)) ARGS]))
+  ([args]
+   (boot! args nil))
+
+  ([args gc]
+   (c/info "client bootstrap ctor().")
+   (let [{:as ARGS
+          :keys [max-msg-size max-mem-size
+                 protocol temp-dir server-cert
+                 scheme threads rcv-buf options
+                 transport tuning]}
+         (merge {:max-mem-size i/*membuf-limit*
+                 :rcv-buf (* 2 c/MegaBytes)
+                 :threads 0
+                 :max-msg-size Integer/MAX_VALUE
+                 :max-frame-size (* 32 c/MegaBytes)} args)
+         threads (if (pos? threads) threads 0)
+         temp-dir (u/fpath (or temp-dir
+                               (i/file-repo)))
+         bs (Bootstrap.)
+         [^EventLoopGroup g z tp] (or gc
+                                      (n/group+channel threads
+                                                       :tcpc transport))]
+     (n/config-disk-files true temp-dir)
+     (c/info "setting client options...")
+     (doseq [[k v] (partition 2 (or options
+                                    [:SO_KEEPALIVE true
+                                     :TCP_NODELAY true
+                                     :SO_RCVBUF (int rcv-buf)]))]
+       (.option bs (n/chopt* k) v))
+     (doseq [[o v] (n/tuning tp tuning :client)]
+       (.option bs ^ChannelOption o v))
+     ;;assign generic attributes for all channels
+     (.attr bs n/chcfg-key ARGS)
+     [(doto bs (.channel z) (.group g)) ARGS])))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- hx-conn
@@ -274,6 +290,149 @@
 
   ^FullHttpRequest [uri] (http-req<+> :get uri nil))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- h1-send*
+
+  ([ch host msg args]
+   (h1-send* ch host msg args (promise)))
+
+  ([^Channel ch host msg args out]
+   (let [{:keys [request-method
+                 uri2 body headers]} msg
+         {:keys [keep-alive?
+                 encoding override]
+          :or {keep-alive? true}} args
+         [_ target] (cc/encoded-path uri2)
+         ssl? (some? (n/get-ssl?? ch))
+         body (n/bbuf?? body ch encoding)
+         req (if-not (or (nil? body)
+                         (c/is? ByteBuf body))
+               (http-req<> request-method target)
+               (http-req<+> request-method target body))
+         clen (cond (c/is? ByteBuf body)
+                    (.readableBytes ^ByteBuf body)
+                    (c/is? File body)
+                    -1 ;(.length ^File body)
+                    (c/is? InputStream body)
+                    -1
+                    (nil? body)
+                    0
+                    :else
+                    (u/throw-IOE "Bad type %s." (class body)))]
+     (n/add-headers req (h1/std->headers headers))
+     (c/if-some+ [mo (c/stror override "")]
+       (n/set-header req "X-HTTP-Method-Override" mo))
+     (n/set-header req (n/h1hdr* HOST) host)
+     (n/set-header req
+                   (n/h1hdr* CONNECTION)
+                   (if-not keep-alive?
+                     (n/h1hdv* CLOSE)
+                     (n/h1hdv* KEEP_ALIVE)))
+     (if (zero? clen)
+       (HttpUtil/setContentLength req 0)
+       (do (if-not (c/is? FullHttpRequest req)
+             (HttpUtil/setTransferEncodingChunked req true))
+           (if-not (n/has-header? req "content-type")
+             (n/set-header req
+                           (n/h1hdr* CONTENT_TYPE)
+                           "application/octet-stream"))
+           (if (c/spos? clen)
+             (HttpUtil/setContentLength req clen))))
+     (c/debug (str "about to flush out req (headers), "
+                   "isKeepAlive= %s, content-length= %s") keep-alive? clen)
+     (c/do-with [out out]
+       (let [pl (n/akey?? ch iz/rsp-key)
+             _ (.add ^List pl out)
+             cf (n/write-msg* ch req)
+             cf (condp instance? body
+                  File
+                  (n/write-msg* ch
+                                (HttpChunkedInput.
+                                  (ChunkedFile. ^File body)))
+                  InputStream
+                  (n/write-msg* ch
+                                (HttpChunkedInput.
+                                  (ChunkedStream. ^InputStream body))) cf)] (.flush ch))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- pool<>
+
+  "A bounded pool of keep-alive connections to host:port,
+  all sharing the module's event loop group."
+  ^ChannelPool
+  [module host port args]
+
+  (let [{:keys [max-per-host
+                acquire-timeout]} module
+        [^Bootstrap bs args]
+        (boot! (assoc args :protocol "1.1") @(:group module))
+        pv (volatile! nil)
+        h (reify ChannelPoolHandler
+            (channelCreated [_ ch]
+              (c/debug "pooled connection to %s:%s." host port)
+              (iz/init-pooled! ch @pv (merge (select-keys module
+                                                          [:idle-timeout]) args)))
+            (channelAcquired [_ _])
+            (channelReleased [_ _]))]
+    (.remoteAddress bs (InetSocketAddress. (str host) (int port)))
+    (vreset! pv
+             (FixedChannelPool. bs
+                                h
+                                ChannelHealthChecker/ACTIVE
+                                FixedChannelPool$AcquireTimeoutAction/FAIL
+                                (long acquire-timeout)
+                                (int max-per-host)
+                                Integer/MAX_VALUE
+                                true
+                                true))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- pooled-conn
+
+  "A client which leases a connection from the pool per request,
+  the connection goes back to the pool once the reply is in."
+  [module host port args]
+
+  (let [{:keys [server-cert]} args
+        ssl? (c/hgl? server-cert)
+        port (if-not (neg? port)
+               port (if ssl? 443 80))
+        ^Map pools (:pools module)
+        pk (c/fmt "%s://%s:%d" (if ssl? "https" "http") host port)
+        ^ChannelPool
+        pool (.computeIfAbsent pools
+                               pk
+                               (reify Function
+                                 (apply [_ _] (pool<> module host port args))))]
+    (reify cc/HClient
+      (remote-port [_] port)
+      (remote-host [_] host)
+      (module [_] module)
+      (is-ssl? [_] ssl?)
+      (is-open? [_] (.containsKey pools pk))
+      ;leased per request, see :socket of the reply
+      (channel [_] nil)
+      (write-msg [_ msg] (cc/write-msg _ msg nil))
+      (write-msg [_ msg args]
+        (u/assert-BadArg (c/is? Http1xMsg msg) "not h1msg.")
+        ;never block here, we may be on an event loop
+        (c/do-with [out (promise)]
+          (.addListener
+            (.acquire pool)
+            (reify GenericFutureListener
+              (operationComplete [_ ^Future f]
+                (if-not (.isSuccess f)
+                  (deliver out (.cause f))
+                  (let [^Channel ch (.getNow f)]
+                    (try (h1-send* ch host msg args out)
+                         (catch Throwable e
+                           (.close ch)
+                           (.release pool ch)
+                           (deliver out e))))))))))
+      c/Finzable
+      ;connections stay in the pool
+      (finz [_] nil))))
+
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defrecord NettyClientModule [])
 
@@ -286,7 +445,9 @@
     (hx-conn _ host port (H2Inizor. args)))
 
   (h1-conn [_ host port args]
-    (hx-conn _ host port (H1Inizor. args)))
+    (if (:pools _)
+      (pooled-conn _ host port args)
+      (hx-conn _ host port (H1Inizor. args))))
 
   (ws-conn [_ host port args]
     (hx-conn _ host port (WSInizor. args)))
@@ -304,10 +465,9 @@
      (condp instance? msg
        Http2xMsg
        (let [ch (cc/channel conn)]
+         ;the h2 handler keys the promise by the new stream's id
          (c/do-with [out (promise)]
-           (let [pl (n/akey?? ch iz/rsp-key)]
-             (.add ^List pl out)
-             (n/write-msg ch msg))))
+           (n/write-msg ch (assoc msg :promise out))))
        Http1xMsg
        (let [{:keys [^Headers headers]} msg]
          (.add headers (h2/h2xhdr* SCHEME)
@@ -318,70 +478,29 @@
   (h1-send
     ([_ conn msg] (cc/h1-send _ conn msg nil))
     ([_ conn msg args]
-     (let [{:keys [request-method
-                   uri2 body headers]} msg
-           {:keys [keep-alive?
-                   encoding override]
-            :or {keep-alive? true}} args
-          ^Channel ch (cc/channel conn)
-          [_ target] (cc/encoded-path uri2)
-          ssl? (some? (n/get-ssl?? ch))
-          body (n/bbuf?? body ch encoding)
-          host (cc/remote-host conn)
-          port (cc/remote-port conn)
-          req (if-not (or (nil? body)
-                          (c/is? ByteBuf body))
-                (http-req<> request-method target)
-                (http-req<+> request-method target body))
-          clen (cond (c/is? ByteBuf body)
-                     (.readableBytes ^ByteBuf body)
-                     (c/is? File body)
-                     -1 ;(.length ^File body)
-                     (c/is? InputStream body)
-                     -1
-                     (nil? body)
-                     0
-                     :else
-                     (u/throw-IOE "Bad type %s." (class body)))]
-      (n/add-headers req (h1/std->headers headers))
-      (c/if-some+ [mo (c/stror override "")]
-        (n/set-header req "X-HTTP-Method-Override" mo))
-      (n/set-header req (n/h1hdr* HOST) host)
-      (n/set-header req
-                    (n/h1hdr* CONNECTION)
-                    (if-not keep-alive?
-                      (n/h1hdv* CLOSE)
-                      (n/h1hdv* KEEP_ALIVE)))
-      (if (zero? clen)
-        (HttpUtil/setContentLength req 0)
-        (do (if-not (c/is? FullHttpRequest req)
-              (HttpUtil/setTransferEncodingChunked req true))
-            (if-not (n/has-header? req "content-type")
-              (n/set-header req
-                            (n/h1hdr* CONTENT_TYPE)
-                            "application/octet-stream"))
-            (if (c/spos? clen)
-              (HttpUtil/setContentLength req clen))))
-      (c/debug (str "about to flush out req (headers), "
-                    "isKeepAlive= %s, content-length= %s") keep-alive? clen)
-      (c/do-with [out (promise)]
-        (let [pl (n/akey?? ch iz/rsp-key)
-              _ (.add ^List pl out)
-              cf (n/write-msg* ch req)
-              cf (condp instance? body
-                   File
-                   (n/write-msg* ch
-                                 (HttpChunkedInput.
-                                   (ChunkedFile. ^File body)))
-                   InputStream
-                   (n/write-msg* ch
-                                 (HttpChunkedInput.
-                                   (ChunkedStream. ^InputStream body))) cf)] (.flush ch)))))))
+     (h1-send* (cc/channel conn) (cc/remote-host conn) msg args))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(extend-protocol c/Finzable
+  NettyClientModule
+  (finz [me]
+    (let [{:keys [^Map pools group]} me]
+      (when pools
+        (doseq [p (.values pools)]
+          (c/try! (.close ^ChannelPool p)))
+        (.clear pools))
+      (if (some-> group realized?)
+        (c/try! (.shutdownGracefully
+                  ^EventLoopGroup (c/_1 @group)))) me)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn web-client-module<>
 
-  "Create a client module implemented in Netty."
+  "Create a client module implemented in Netty.  With :pooled?,
+  h1 connections are leased from per host:port pools, all on
+  one shared event loop group, call finz to shut them down.
+  :transport and :tuning are as for the web server, the
+  profile's :client part is used."
   {:arglists '([]
                [args])}
 
@@ -389,7 +508,18 @@
    (web-client-module<> nil))
 
   ([args]
-   (c/object<> NettyClientModule args)))
+   (let [{:keys [pooled? threads transport]} args]
+     (c/object<> NettyClientModule
+                 (if-not pooled?
+                   args
+                   (merge {:max-per-host 8
+                           :idle-timeout 60000
+                           :acquire-timeout 5000}
+                          args
+                          {:pools (ConcurrentHashMap.)
+                           :group (delay (n/group+channel
+                                           (or threads 0)
+                                           :tcpc transport))}))))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;EOF
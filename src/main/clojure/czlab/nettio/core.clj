@@ -29,7 +29,7 @@
            [io.netty.handler.ssl.util
             SelfSignedCertificate
             InsecureTrustManagerFactory]
-           [io.netty.channel.epoll Epoll]
+           [io.netty.channel.epoll Epoll EpollMode EpollChannelOption]
            [io.netty.channel.epoll
             EpollEventLoopGroup
             EpollDatagramChannel
@@ -48,6 +48,7 @@
            [java.io IOException OutputStream]
            [io.netty.handler.codec.http.websocketx
             TextWebSocketFrame
+            CloseWebSocketFrame
             BinaryWebSocketFrame]
            [io.netty.handler.codec.http.multipart
             HttpDataFactory
@@ -71,7 +72,26 @@
             ApplicationProtocolConfig$Protocol
             ApplicationProtocolConfig$SelectorFailureBehavior
             ApplicationProtocolConfig$SelectedListenerFailureBehavior]
-           [czlab.nettio InboundHandler]
+           [czlab.nettio
+            BodyStream
+            DateClock
+            InboundHandler
+            Metrics
+            SerialExecutor]
+           [czlab.niou.core Http2xMsg WsockMsg]
+           [java.util.function Consumer]
+           [java.util.concurrent
+            Executor
+            Executors
+            ExecutorService
+            TimeUnit
+            SynchronousQueue
+            ArrayBlockingQueue
+            ThreadPoolExecutor
+            ThreadPoolExecutor$AbortPolicy
+            RejectedExecutionException]
+           [io.netty.util.concurrent DefaultThreadFactory]
+           [clojure.lang Reflector]
            [czlab.niou Headers]
            [java.util Map List]
            [java.net
@@ -279,28 +299,130 @@
 (c/defmacro- gandc
 
   "Group and Channel info."
-  {:arglists '([e n])}
-  [e n]
+  {:arglists '([e u n])}
+  [e u n]
 
-  `(array-map :epoll ~e :nio ~n))
+  `(array-map :epoll ~e :io_uring ~u :nio ~n))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
-(defn group+channel
+(defn- uring-class
+
+  "A class of netty's io_uring transport, looked up at run
+  time, it is an incubator module, not part of netty-all."
+  ^Class [cn]
+
+  (Class/forName (str "io.netty.incubator.channel.uring." cn)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(c/def- uring?
+  (delay (try (boolean (Reflector/invokeStaticMethod (uring-class "IOUring")
+                                                     "isAvailable"
+                                                     (object-array 0)))
+              (catch Throwable _ false))))
 
-  "Event group & Channel type."
-  {:arglists '([t kind])}
-  [t kind]
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn transport
+
+  "The transport to run on, the one wanted if it is available,
+  else epoll, else nio.  io_uring needs netty's incubator module
+  on the classpath, and a kernel that has it."
+  {:arglists '([want])}
+  [want]
 
-  (when-some
-    [{:keys [epoll nio]}
-     ({:tcps (gandc EpollServerSocketChannel NioServerSocketChannel)
-       :tcpc (gandc EpollSocketChannel NioSocketChannel)
-       :udps (gandc EpollDatagramChannel NioDatagramChannel)} kind)]
-    (c/info "netty bootstraped with [%s]."
-            (if (Epoll/isAvailable) "EPoll" "Java/NIO"))
-    (if-not (Epoll/isAvailable)
-      [(NioEventLoopGroup. (int t)) nio]
-      [(EpollEventLoopGroup. (int t)) epoll])))
+  (let [e? (Epoll/isAvailable)]
+    (cond
+      (= :nio want) :nio
+      (and (= :io_uring want) @uring?) :io_uring
+      e? :epoll
+      :else :nio)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn group+channel
+
+  "Event group & Channel type, and the transport they are of."
+  {:arglists '([t kind]
+               [t kind want])}
+
+  ([t kind]
+   (group+channel t kind nil))
+
+  ([t kind want]
+   (when-some
+     [m ({:tcps (gandc EpollServerSocketChannel
+                       "IOUringServerSocketChannel" NioServerSocketChannel)
+          :tcpc (gandc EpollSocketChannel
+                       "IOUringSocketChannel" NioSocketChannel)
+          :udps (gandc EpollDatagramChannel
+                       "IOUringDatagramChannel" NioDatagramChannel)} kind)]
+     (let [tp (transport want)]
+       (if (and want (not= want tp))
+         (c/info "transport %s not available here." want))
+       (c/info "netty bootstraped with [%s]."
+               (case tp :epoll "EPoll" :io_uring "IO_Uring" "Java/NIO"))
+       (case tp
+         :epoll
+         [(EpollEventLoopGroup. (int t)) (m tp) tp]
+         :io_uring
+         [(Reflector/invokeConstructor (uring-class "IOUringEventLoopGroup")
+                                       (object-array [(int t)]))
+          (uring-class (m tp)) tp]
+         [(NioEventLoopGroup. (int t)) (m tp) tp])))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn tpopt*
+
+  "The transport's own ChannelOption by name, nil if
+  it has no such thing, nio has none."
+  {:tag ChannelOption
+   :arglists '([tp opt])}
+  [tp opt]
+
+  (when-some [^Class z (case tp
+                         :epoll EpollChannelOption
+                         :io_uring (uring-class "IOUringChannelOption")
+                         nil)]
+    (try (.get (.getField z (name opt)) nil)
+         (catch NoSuchFieldException _ nil))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(c/def- tuning-profiles
+  {;;fewer round trips, replies acked at once,
+   ;;sockets polled a little before sleeping
+   :latency {:server [:TCP_FASTOPEN (int 256)]
+             :child [:TCP_QUICKACK true
+                     :SO_BUSY_POLL (int 50)]
+             :client [:TCP_FASTOPEN_CONNECT true
+                      :TCP_QUICKACK true
+                      :SO_BUSY_POLL (int 50)]}
+   ;;many short lived connections, accepted only once
+   ;;data is in, and level triggered so one busy
+   ;;listener does not starve the others on its loop
+   :storm {:server [:TCP_FASTOPEN (int 1024)
+                    :TCP_DEFER_ACCEPT (int 1)
+                    :EPOLL_MODE :level]
+           :child [:TCP_QUICKACK true]
+           :client [:TCP_FASTOPEN_CONNECT true]}})
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn tuning
+
+  "The [option value] pairs of a tuning profile, :latency or
+  :storm, or of a map shaped like one, for a part of it -
+  :server, :child or :client.  Options the transport has no
+  notion of are left out."
+  {:arglists '([tp profile part])}
+  [tp profile part]
+
+  (let [spec (if (keyword? profile)
+               (tuning-profiles profile) profile)]
+    (if (and profile (nil? spec))
+      (c/info "unknown tuning profile %s." profile))
+    (for [[k v] (partition 2 (get spec part))
+          :let [o (tpopt* tp k)]
+          :when (some? o)]
+      [o (case v
+           :edge EpollMode/EDGE_TRIGGERED
+           :level EpollMode/LEVEL_TRIGGERED v)])))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defmacro num->status
@@ -593,17 +715,115 @@
 
   (or (= x :post)(= x :put)))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn executor<>
+
+  "Create the executor for a handler execution mode.
+  :virtual runs each request on its own virtual thread,
+  :pool on a fixed pool whose queue is bounded, anything
+  over the limit is rejected."
+  {:tag ExecutorService
+   :arglists '([mode options])}
+  [mode {:keys [threads queue keep-alive]}]
+
+  (case mode
+    :virtual
+    ;;looked up at run time, so this still
+    ;;loads on a jdk without virtual threads
+    (let [f (-> (Reflector/invokeStaticMethod Thread
+                                              "ofVirtual"
+                                              (object-array 0))
+                (.name "nettio-vt-" 0)
+                .factory)]
+      (Reflector/invokeStaticMethod Executors
+                                    "newThreadPerTaskExecutor"
+                                    (object-array [f])))
+    :pool
+    (let [n (c/num?? threads
+                     (* 2 (.availableProcessors (Runtime/getRuntime))))
+          q (c/num?? queue 1024)]
+      (ThreadPoolExecutor. (int n)
+                           (int n)
+                           (long (c/num?? keep-alive 60000))
+                           TimeUnit/MILLISECONDS
+                           (if (pos? q)
+                             (ArrayBlockingQueue. (int q))
+                             (SynchronousQueue.))
+                           (DefaultThreadFactory. "nettio-app" true)
+                           (ThreadPoolExecutor$AbortPolicy.)))
+    nil))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- reply-busy
+
+  "The handlers are all busy, ask the client to come back later."
+  [msg]
+
+  (c/debug "handlers busy, rejecting %s." (:uri msg))
+  ;;a streamed body will not be read, let it go
+  (c/try!
+    (some-> (c/cast? BodyStream (:body msg)) .close))
+  (c/try!
+    (cond
+      (c/is? WsockMsg msg)
+      (do (ref-del (:body msg))
+          (some-> ^Channel (:socket msg)
+                  (.writeAndFlush (CloseWebSocketFrame. 1013 "server busy"))))
+      (c/is? Http2xMsg msg)
+      (cc/reply-result (assoc msg
+                              :status 503
+                              :body nil
+                              :headers (doto (Headers.)
+                                         (.set "retry-after" "1"))))
+      (map? msg)
+      (-> (cc/http-result msg 503)
+          (cc/res-header-set "Retry-After" "1") cc/reply-result))))
+
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn app-handler
 
-  "Create a handler based on the user callback."
-  {:tag ChannelHandler
-   :arglists '([user-cb])}
-  [user-cb]
-  {:pre [(fn? user-cb)]}
+  "Create a handler based on the user callback.
 
-  (proxy [InboundHandler][]
-    (onRead [_ _ msg] (user-cb msg))))
+  The callback is run in the mode set by :exec-mode on the
+  server, or on the matching route - :inline on the event
+  loop, :virtual or :pool off it.  If serial?, requests not
+  already ordered by the h1 pipeline are run one at a time,
+  in arrival order, so their replies stay in order."
+  {:tag ChannelHandler
+   :arglists '([user-cb]
+               [user-cb args])}
+
+  ([user-cb]
+   (app-handler user-cb nil))
+
+  ([user-cb {:keys [exec-mode executors serial?]}]
+   {:pre [(fn? user-cb)]}
+   (let [se (if serial? (SerialExecutor.))]
+     (proxy [InboundHandler][]
+       (onRead [ctx _ msg]
+         (let [^ChannelHandlerContext ctx ctx
+               mode (or (if (map? msg)
+                          (get-in msg [:route :info :exec-mode])) exec-mode)
+               ^Executor ex (some-> (get executors mode) deref)
+               ^SerialExecutor
+               se (if-not (and (map? msg)
+                               (:pipeline-seq msg)) se)
+               task #(try (user-cb msg)
+                          (catch Throwable e
+                            (.fireExceptionCaught ctx e)))]
+           (cond
+             se
+             (.execute se
+                       (or ex (.executor ctx))
+                       ^Runnable task
+                       (reify Consumer
+                         (accept [_ _] (reply-busy msg))))
+             ex
+             (try (.execute ex ^Runnable task)
+                  (catch RejectedExecutionException _
+                    (reply-busy msg)))
+             :else
+             (user-cb msg))))))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn nobs!
@@ -1182,7 +1402,18 @@
      (if (or (bytes? ct)
              (string? ct)) (x->bbuf ch ct encoding) ct))))
 
-;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn date-stamp
+
+  "Set the Date header, from the shared clock, if not set."
+  {:arglists '([rsp])}
+  [^HttpResponse rsp]
+
+  (let [hds (.headers rsp)]
+    (if-not (.contains hds (h1hdr* DATE))
+      (.set hds (h1hdr* DATE) (DateClock/now))) rsp))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn http-reply<>
 
   "Create an incomplete response"
@@ -1194,8 +1425,9 @@
 
   ([code]
    {:pre [(number? code)]}
-   (DefaultHttpResponse. HttpVersion/HTTP_1_1
-                         (HttpResponseStatus/valueOf code))))
+   (date-stamp
+     (DefaultHttpResponse. HttpVersion/HTTP_1_1
+                           (HttpResponseStatus/valueOf code)))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn http-reply<+>
@@ -1215,30 +1447,31 @@
   ([code msg ^ByteBufAllocator alloc]
    (let [ver HttpVersion/HTTP_1_1
          status (num->status code)]
-     (cond
-       (c/is? ByteBuf msg)
-       (DefaultFullHttpResponse. ver
-                                 status ^ByteBuf msg)
-       (nil? msg)
-       (doto
-         (DefaultFullHttpResponse. ver status)
-         (HttpUtil/setContentLength 0))
-       :else
-       (let [bb (some-> alloc .directBuffer)]
-         (u/assert-IOE (some? bb) "No direct buffer.")
-         (cond (bytes? msg)
-               (.writeBytes bb ^bytes msg)
-               (map? msg)
-               (.writeCharSequence bb
-                                   ^String (:string msg)
-                                   ^Charset (:encoding msg))
-               (string? msg)
-               (.writeCharSequence bb
-                                   ^String msg
-                                   CharsetUtil/UTF_8)
-               :else
-               (u/throw-IOE "Rouge content %s." (type msg)))
-         (DefaultFullHttpResponse. ver status ^ByteBuf bb))))))
+     (date-stamp
+       (cond
+         (c/is? ByteBuf msg)
+         (DefaultFullHttpResponse. ver
+                                   status ^ByteBuf msg)
+         (nil? msg)
+         (doto
+           (DefaultFullHttpResponse. ver status)
+           (HttpUtil/setContentLength 0))
+         :else
+         (let [bb (some-> alloc .directBuffer)]
+           (u/assert-IOE (some? bb) "No direct buffer.")
+           (cond (bytes? msg)
+                 (.writeBytes bb ^bytes msg)
+                 (map? msg)
+                 (.writeCharSequence bb
+                                     ^String (:string msg)
+                                     ^Charset (:encoding msg))
+                 (string? msg)
+                 (.writeCharSequence bb
+                                     ^String msg
+                                     CharsetUtil/UTF_8)
+                 :else
+                 (u/throw-IOE "Rouge content %s." (type msg)))
+           (DefaultFullHttpResponse. ver status ^ByteBuf bb)))))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn cf-cb
@@ -1654,6 +1887,48 @@
   (getattr [me a]
     (akey?? me (akey* a))))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn metrics??
+
+  "The server's metrics recorder, if any."
+  {:tag Metrics
+   :arglists '([ctx])}
+  [ctx]
+
+  (:metrics (chcfg?? ctx)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn arrived
+
+  "Note a request coming in, returns its time-stamp,
+  nil if metrics are off."
+  {:arglists '([ctx])}
+  [ctx]
+
+  (some-> (metrics?? ctx) (.arrived (ch?? ctx))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn replied
+
+  "Record the latency of the reply to this request,
+  by route, once it has been written."
+  {:arglists '([gist status cf])}
+  [gist status cf]
+
+  (let [{:keys [arrived route socket]} gist]
+    (when-some [^Metrics
+                m (if (and arrived
+                           (c/is? ChannelFuture cf))
+                    (metrics?? socket))]
+      (cf-cb cf
+             (fn [^ChannelFuture f]
+               (.done m
+                      (.channel f)
+                      (some-> route :info :name name)
+                      (int status)
+                      (long arrived)
+                      (.isSuccess f)))))))
+
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;EOF
 
@@ -186,9 +186,7 @@
   [^ChannelHandlerContext ctx req ^HttpResponse rsp]
 
   (HttpUtil/setKeepAlive rsp (boolean (:keep-alive? req)))
-  (let [cf (.writeAndFlush ctx rsp)]
-    (if-not (:keep-alive? req)
-      (.addListener cf ChannelFutureListener/CLOSE))))
+  (n/date-stamp rsp))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- forbidden
@@ -199,8 +197,8 @@
               (HttpVersion/valueOf ^String (:protocol req))
               (n/num->status 403))]
     (HttpUtil/setContentLength rsp 0)
-    (respond ctx req rsp)
-    (u/throw-FFE "forbidden request intercepted by CORS.")))
+    (c/debug "forbidden request intercepted by CORS.")
+    (respond ctx req rsp)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- do-preflight
@@ -223,8 +221,8 @@
       (HttpUtil/isContentLengthSet rsp)
       (HttpUtil/setContentLength rsp 0))
 
-    (respond ctx req rsp)
-    (u/throw-FFE "handled CORS preflight request.")))
+    (c/debug "handled CORS preflight request.")
+    (respond ctx req rsp)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- is-preflight?
@@ -237,8 +235,11 @@
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn cors-read
 
-  "Read a request, applying CORS."
-  {:arglists '([ctx req])}
+  "Read a request, applying CORS.  Returns the reply to send
+  back, for a preflight or a forbidden origin, nil if the
+  request is to go on to the application."
+  {:tag HttpResponse
+   :arglists '([ctx req])}
   [^ChannelHandlerContext ctx req]
 
   (let [{:keys [short-circuit?] :as C}
@@ -26,19 +26,39 @@
             [czlab.nettio.cors :as cors])
 
   (:import [io.netty.handler.stream ChunkedWriteHandler]
-           [java.util ArrayList HashMap Map List]
+           [io.netty.buffer
+            ByteBuf
+            Unpooled
+            ByteBufUtil
+            ByteBufAllocator
+            CompositeByteBuf]
+           [java.util ArrayList HashMap Map Map$Entry]
            [czlab.niou.core WsockMsg]
-           [czlab.niou Headers]
+           [czlab.niou
+            Headers
+            LazyMap
+            MultipartDecoder
+            MultipartDecoder$TooLarge]
+           [org.apache.commons.fileupload FileItem]
            [io.netty.handler.codec.http.cors
             CorsConfigBuilder
             CorsConfig
             CorsHandler]
            [java.net URL URI InetSocketAddress]
            [czlab.nettio
+            H1Pipeline
+            ReadGate
+            BodyStream
+            NettyHeaders
+            WsHub
+            WsHub$Policy
+            WsDeflate
             DuplexHandler
             InboundHandler]
            [czlab.basal FailFast XData]
            [io.netty.util AttributeKey]
+           [io.netty.util.concurrent Promise PromiseNotifier]
+           [io.netty.handler.ssl SslHandler]
            [io.netty.handler.codec.http
             DefaultHttpHeaders
             LastHttpContent
@@ -59,7 +79,9 @@
             DefaultFullHttpRequest
             HttpContentDecompressor]
            [io.netty.channel
+            WriteBufferWaterMark
             ChannelPipeline
+            ChannelPromise
             ChannelFuture
             Channel
             ChannelHandler
@@ -80,8 +102,11 @@
             HttpPostRequestDecoder
             InterfaceHttpPostRequestDecoder
             HttpPostRequestDecoder$EndOfDataDecoderException]
+           [io.netty.handler.codec.http.websocketx.extensions
+            WebSocketServerExtensionHandler
+            WebSocketServerExtensionHandshaker]
            [io.netty.handler.codec.http.websocketx.extensions.compression
-            WebSocketServerCompressionHandler]))
+            PerMessageDeflateServerExtensionHandshaker]))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;(set! *warn-on-reflection* true)
@@ -161,10 +186,6 @@
 (c/def- ^HttpResponse expected-ok
   (n/http-reply<+> (n/scode* CONTINUE)))
 
-;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
-(c/def- ^HttpResponse expected-failed
-  (n/http-reply<+> (n/scode* EXPECTATION_FAILED)))
-
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (c/defmacro- decoder<>
 
@@ -184,26 +205,12 @@
   [hds]
   {:pre [(c/is? Headers hds)]}
 
-  (reduce
-    (fn [^HttpHeaders acc ^String n]
-      (let [lst (.get ^Headers hds n)]
-        (if (== 1 (.size lst))
-          (.set acc n ^String (.get lst 0))
-          (doseq [v lst]
-            (.add acc n ^String v))) acc))
-    (DefaultHttpHeaders.)
-    (.keySet ^Headers hds)))
-
-;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
-(defn- headers->std
-
-  ^Headers
-  [^HttpHeaders hds]
-
-  (reduce
-    (fn [^Headers acc ^String n]
-      (doseq [v (.getAll hds n)]
-       (.add acc n ^String v)) acc) (Headers.) (.names hds)))
+  (if-some [n (c/cast? NettyHeaders hds)]
+    (.unwrap n)
+    (let [^Headers hds hds
+          out (DefaultHttpHeaders.)]
+      (dotimes [i (.entryCount hds)]
+        (.add out (.nameAt hds i) (.valueAt hds i))) out)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- headers->map
@@ -217,15 +224,18 @@
              (mapv #(str %) (.getAll hds n)))) (.names hds)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
-(defn- params->map
+(defn- client-cert??
 
-  [^Map params]
+  "Only ask for the peer certs if client auth is on,
+  otherwise the engine throws on every request."
+  [^SslHandler ssl]
 
-  (c/preduce<map>
-    (fn [acc ^String n]
-      (assoc! acc
-              n
-              (mapv #(str %) (.get params n)))) (.keySet params)))
+  (if-some [e (some-> ssl .engine)]
+    (if (or (.getNeedClientAuth e)
+            (.getWantClientAuth e))
+      (c/try! (some-> e
+                      .getSession
+                      .getPeerCertificates first)))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (extend-protocol Netty->RingMap
@@ -235,35 +245,34 @@
           ch (n/ch?? ctx)
           hs (.headers req)
           u (.uri req)
-          ccert (c/try! (some-> ssl
-                                .engine
-                                .getSession
-                                .getPeerCertificates))
-          q (QueryStringDecoder. u)
           uriObj (URI. u)
           laddr (c/cast? InetSocketAddress
                          (.localAddress ch))
           out {:keep-alive? (HttpUtil/isKeepAlive req)
+               :arrived (n/arrived ctx)
                :protocol (.. req protocolVersion text)
                :request-method (n/get-method req)
-               :headers (headers->std hs)
+               :headers (NettyHeaders. hs)
                :scheme (if ssl :https :http)
-               :ssl-client-cert (first ccert)
+               :ssl-client-cert (client-cert?? ssl)
                :ssl? (some? ssl)
                :remote-port (c/s->long (.get hs "remote_port") 0)
                :remote-addr (str (.get hs "remote_addr"))
                :remote-host (str (.get hs "remote_host"))
                :server-port (c/s->long (.get hs "server_port") 0)
                :server-name (str (.get hs "server_name"))
-               :parameters (params->map (.parameters q))
+               :parameters (LazyMap.
+                             #(.parameters (QueryStringDecoder. u)))
                :query-string (.getRawQuery uriObj)
                :uri (.getRawPath uriObj)
-               :body (XData. body)
+               :body (if (c/is? BodyStream body)
+                       body
+                       (XData. body))
                :socket ch
                :uri2 uriObj
                :charset (n/get-charset req)
-               :cookies (n/crack-cookies req)
-               :local-host (some-> laddr .getHostName)
+               :cookies (LazyMap. #(n/crack-cookies req))
+               :local-host (some-> laddr .getHostString)
                :local-port (some-> laddr .getPort)
                :local-addr (some-> laddr .getAddress .getHostAddress)}]
       (n/akey+ ctx n/origin-key (.get hs (n/h1hdr* ORIGIN)))
@@ -281,10 +290,69 @@
                   :socket (n/ch?? ctx)
                   :body (XData. body)
                   :charset (n/get-charset res)
-                  :cookies (n/crack-cookies res)
+                  :cookies (LazyMap. #(n/crack-cookies res))
                   :status (.code s)
                   :status-reason (.reasonPhrase s)
-                  :headers (headers->std (.headers res))))))
+                  :headers (NettyHeaders. (.headers res))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- ws-frame
+
+  "Turn a websock message into a frame.  The body can be XData,
+  a CharSequence, encoded straight into a pooled buffer, or a
+  ByteBuf, which is handed over and released once written.
+  If cont?, the frame carries on a fragmented message, if not
+  fin?, more fragments are to follow."
+  [^ByteBufAllocator alloc msg cont? fin?]
+
+  (let [{:keys [is-close?
+                is-ping?
+                is-pong?
+                is-text?
+                body]} msg
+        text? (if (nil? is-text?)
+                (c/is? CharSequence body) is-text?)]
+    (c/debug "about to write a websock-frame.")
+    (cond is-close?
+          (CloseWebSocketFrame.)
+          is-ping?
+          (PingWebSocketFrame.)
+          is-pong?
+          nil;(PongWebSocketFrame.)
+          (some? body)
+          (let [bb (cond
+                     (c/is? ByteBuf body)
+                     body
+                     (c/is? CharSequence body)
+                     (ByteBufUtil/writeUtf8 alloc
+                                            ^CharSequence body)
+                     text?
+                     (ByteBufUtil/writeUtf8 alloc
+                                            (.strit ^XData body))
+                     :else
+                     (n/bbuf?? (.getBytes ^XData body)))]
+            (cond cont?
+                  (ContinuationWebSocketFrame. (boolean fin?) 0 ^ByteBuf bb)
+                  text?
+                  (TextWebSocketFrame. (boolean fin?) 0 ^ByteBuf bb)
+                  :else
+                  (BinaryWebSocketFrame. (boolean fin?) 0 ^ByteBuf bb))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- ws-control
+
+  "Deal with a control frame, returning the message to
+  pass on, :none if nothing, nil if not a control frame."
+  [ctx msg]
+
+  (cond
+    (c/is? PingWebSocketFrame msg)
+    (do (n/write-msg ctx (PongWebSocketFrame.))
+        {:is-ping? true})
+    (c/is? PongWebSocketFrame msg)
+    {:is-pong? true}
+    (c/is? CloseWebSocketFrame msg)
+    (do (n/close! ctx) :none)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (def
@@ -298,47 +366,239 @@
     (preWrite [ctx msg]
       (if-not (c/is? WsockMsg msg)
         msg
-        (let [ch (n/ch?? ctx)
-              {:keys [is-close?
-                      is-ping?
-                      is-pong?
-                      is-text?
-                      ^XData body]} msg]
-          (c/debug "about to write a websock-frame.")
-          (cond is-close?
-                (CloseWebSocketFrame.)
-                is-ping?
-                (PingWebSocketFrame.)
-                is-pong?
-                nil;(PongWebSocketFrame.)
-                is-text?
-                (try (TextWebSocketFrame. (.strit body))
-                     (finally (c/debug "writing a text ws-frame.")))
-                (some? body)
-                (try (BinaryWebSocketFrame. (n/bbuf?? (.getBytes body) ch))
-                     (finally (c/debug "writing a binary ws-frame.")))))))
+        (ws-frame (.alloc ^ChannelHandlerContext ctx) msg false true)))
     (onRead [ctx ch msg]
-      (let [bb (cond
-                 (c/is? PingWebSocketFrame msg)
-                 (do :ping
-                     (n/write-msg ctx (PongWebSocketFrame.)))
-                 (c/is? PongWebSocketFrame msg)
-                 :pong
-                 (c/is? CloseWebSocketFrame msg)
-                 (c/do->nil (n/close! ctx))
-                 (or (c/is? TextWebSocketFrame msg)
-                     (c/is? BinaryWebSocketFrame msg))
-                 (.content ^WebSocketFrame msg))]
-        (c/debug "reading a ws-frame = %s." msg)
-        (some->> (some-> (cond
-                           (= :pong bb) {:is-pong? true}
-                           (= :ping bb) {:is-ping? true}
-                           (some? bb)
-                           {:body (XData. (n/bbuf->bytes bb))
-                            :is-text? (c/is? TextWebSocketFrame msg)})
-                         (assoc :socket (n/ch?? ctx))
-                         cc/ws-msg<>)
-                 (n/fire-msg ctx))))))
+      (c/debug "reading a ws-frame = %s." msg)
+      (let [m (or (ws-control ctx msg)
+                  (if (or (c/is? TextWebSocketFrame msg)
+                          (c/is? BinaryWebSocketFrame msg))
+                    {:body (XData. (n/bbuf->bytes
+                                     (.content ^WebSocketFrame msg)))
+                     :is-text? (c/is? TextWebSocketFrame msg)}))]
+        (if (map? m)
+          (->> (assoc m :socket ch)
+               cc/ws-msg<> (n/fire-msg ctx)))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn ws-zero-copy<>
+
+  "A WebSocket Handler which does not copy the data.
+
+  The body of a message read is the frame's own ByteBuf,
+  retained, which the callback now owns and must release,
+  n/ref-del, or hand back in a write.  Fragments are joined
+  in a CompositeByteBuf, up to max-frame-size, or if
+  wsock-fragments?, passed on one by one as they come, with
+  is-last? set on the final one.
+
+  On writes, is-last? false starts or carries on a fragmented
+  message, which the next message without it ends."
+  {:tag ChannelHandler
+   :arglists '([args])}
+  [{:keys [max-frame-size wsock-fragments?]}]
+
+  (let [;;a fragmented message being read
+        acc (volatile! nil)
+        text? (volatile! false)
+        ;;a fragmented message being written
+        out? (volatile! false)
+        maxsz (c/num?? max-frame-size Integer/MAX_VALUE)]
+    (letfn
+      [(drop! []
+         (some-> ^ByteBuf @acc n/ref-del)
+         (vreset! acc nil))
+       (fire [ctx ch bb fin?]
+         (n/fire-msg ctx
+                     (cc/ws-msg<> {:body bb
+                                   :socket ch
+                                   :is-text? @text?
+                                   :is-last? fin?})))]
+      (proxy [DuplexHandler][true]
+        (onInactive [ctx] (drop!))
+        (preWrite [ctx msg]
+          (if-not (c/is? WsockMsg msg)
+            msg
+            (let [fin? (not (false? (:is-last? msg)))
+                  f (ws-frame (.alloc ^ChannelHandlerContext ctx)
+                              msg @out? fin?)]
+              ;;control frames may come in between fragments
+              (if (or (c/is? ContinuationWebSocketFrame f)
+                      (c/is? TextWebSocketFrame f)
+                      (c/is? BinaryWebSocketFrame f))
+                (vreset! out? (not fin?))) f)))
+        (onRead [ctx ch msg]
+          (if-some [m (ws-control ctx msg)]
+            (if (map? m)
+              (->> (assoc m :socket ch)
+                   cc/ws-msg<> (n/fire-msg ctx)))
+            (let [^WebSocketFrame f msg
+                  fin? (.isFinalFragment f)
+                  bb (.retain (.content f))]
+              (if-not (c/is? ContinuationWebSocketFrame f)
+                (vreset! text? (c/is? TextWebSocketFrame f)))
+              (cond
+                wsock-fragments?
+                (fire ctx ch bb fin?)
+                (and fin? (nil? @acc))
+                (fire ctx ch bb true)
+                :else
+                (let [^ChannelHandlerContext ctx ctx
+                      ^CompositeByteBuf
+                      cb (or @acc
+                             (vreset! acc
+                                      (.compositeBuffer (.alloc ctx)
+                                                        Integer/MAX_VALUE)))]
+                  (.addComponent cb true ^ByteBuf bb)
+                  (cond
+                    (> (.readableBytes cb) maxsz)
+                    (do (drop!)
+                        (-> (n/write-msg ctx
+                                         (CloseWebSocketFrame. 1009 "message too big"))
+                            (n/cf-close)))
+                    fin?
+                    (do (vreset! acc nil)
+                        (fire ctx ch cb true))))))))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn ws-hub<>
+
+  "A hub to broadcast websock messages by topic.
+
+  Each message is encoded once and shared by all subscribers,
+  and writes are flushed once per event loop tick.  A subscriber
+  past its high-water mark is dealt with by the policy - :drop
+  the message, :coalesce to only the latest one, which is sent
+  once it drains, or :disconnect it."
+  {:tag WsHub
+   :arglists '([]
+               [options])}
+
+  ([]
+   (ws-hub<> nil))
+
+  ([{:keys [policy low-water high-water]}]
+   (WsHub. (case policy
+             :coalesce WsHub$Policy/COALESCE
+             :disconnect WsHub$Policy/DISCONNECT
+             WsHub$Policy/DROP)
+           (if (and (c/spos? low-water)
+                    (c/spos? high-water))
+             (WriteBufferWaterMark. (int low-water)
+                                    (int high-water))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn ws-subscribe
+
+  "Subscribe the websock channel to the topic."
+  {:arglists '([hub topic ch])}
+  [hub topic ch]
+  {:pre [(c/is? WsHub hub)]}
+
+  (.subscribe ^WsHub hub (str topic) ^Channel ch))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn ws-unsubscribe
+
+  "Unsubscribe the websock channel from the topic."
+  {:arglists '([hub topic ch])}
+  [hub topic ch]
+  {:pre [(c/is? WsHub hub)]}
+
+  (.unsubscribe ^WsHub hub (str topic) ^Channel ch))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn ws-publish
+
+  "Send a message to all subscribers of the topic.  The
+  message can be a websock message, a string or bytes.
+  Returns the number of subscribers it was sent to."
+  {:arglists '([hub topic msg])}
+  [hub topic msg]
+  {:pre [(c/is? WsHub hub)]}
+
+  (if-some [f (ws-frame ByteBufAllocator/DEFAULT
+                        (if (map? msg)
+                          msg
+                          {:body (if (bytes? msg)
+                                   (Unpooled/wrappedBuffer ^bytes msg) msg)})
+                        false true)]
+    (.publish ^WsHub hub (str topic) ^WebSocketFrame f) 0))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- ws-compressor
+
+  "The permessage-deflate handler for this websock path, nil
+  if compression is off, or not wanted on this path.
+
+  Unless pooled? is false, without context takeover, the zlib
+  state is shared by all connections on an event loop, so an
+  idle connection holds none.  Offers which can't be met that
+  way go to netty's own, per connection, handshaker."
+  [cfg path max-size]
+
+  (let [{:keys [level
+                paths
+                pooled?
+                min-size
+                client-window-bits
+                server-no-context?
+                client-no-context?]
+         :or {level 6
+              pooled? true
+              min-size 256
+              client-window-bits 15
+              server-no-context? true
+              client-no-context? true}} cfg]
+    (when (and (map? cfg)
+               (or (empty? paths)
+                   (some #(cs/starts-with? path %) paths)))
+      (->> (cond->> [(PerMessageDeflateServerExtensionHandshaker.
+                       (int level)
+                       true
+                       (int client-window-bits)
+                       true
+                       (boolean client-no-context?)
+                       (WsDeflate/filter (int min-size)))]
+             pooled?
+             (cons (WsDeflate. (int level)
+                               (int min-size)
+                               (int (c/num?? max-size 0))
+                               (int client-window-bits)
+                               (boolean server-no-context?)
+                               (boolean client-no-context?))))
+           (into-array WebSocketServerExtensionHandshaker)
+           (WebSocketServerExtensionHandler.)))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(declare reply-in-order pipeline-admit)
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- reply-early
+
+  "Answer the current request here, rather than from the
+  application, still in its turn if pipelined.  A request
+  not yet in the pipeline is given its place there first.
+  Written through the channel, so the pipeline sees it."
+  [ctx pseq ^HttpResponse rsp]
+
+  (let [ch (n/ch?? ctx)
+        ka? (HttpUtil/isKeepAlive rsp)
+        pl (some-> ctx n/cache?? (c/mget :pipeline))]
+    (reply-in-order {:socket ch
+                     :pipeline-seq (or pseq
+                                       (some->> pl
+                                                (pipeline-admit ctx)))}
+                    #(c/do-with [cf (n/write-msg ch rsp)]
+                       (n/cf-close cf ka?)))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(c/defmacro- status<>
+
+  "A reply with just a status, closing the connection."
+  [code]
+
+  `(doto (n/http-reply<+> ~code)
+     (HttpUtil/setKeepAlive false)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- cfg-websock
@@ -348,31 +608,41 @@
   (let [cc (n/cache?? ctx)
         uri (.uri req)
         path (.path (QueryStringDecoder. uri))
-        {:keys [wsock-path max-frame-size]} (n/chcfg?? ctx)]
+        {:as args
+         :keys [wsock-path
+                max-frame-size
+                wsock-compress
+                wsock-zero-copy?]} (n/chcfg?? ctx)]
     (if (c/hgl? wsock-path)
       (when-not (cs/starts-with? path wsock-path)
         (c/mdel! cc :mode)
-        (n/reply-status ctx (n/scode* FORBIDDEN))
+        (reply-early ctx nil (status<> (n/scode* FORBIDDEN)))
         (u/throw-FFE "mismatch websock path in config.")))
     (let [cn (.name ctx)
           pp (n/cpipe?? ctx)
-          q (c/mget cc :queue)
+          pl (c/mget cc :pipeline)
           mock (DefaultFullHttpRequest.
                  (.protocolVersion req)
                  (.method req) (.uri req))]
       ;websock, so no pipeline!
-      (if q (.clear ^List q))
+      (if-some [^H1Pipeline pl pl]
+        (run! #(n/ref-del %) (.clear pl)))
       ;fake the headers
       (.add (.headers mock)
             (.headers req))
 
       ;alter pipeline
-      (n/pp->next pp cn "WSSCH" (WebSocketServerCompressionHandler.))
-      (n/pp->next pp "WSSCH" "WSSPH" (WebSocketServerProtocolHandler. uri nil true))
-
-      (n/pp->next pp "WSSPH"
-                  "WSACC" (WebSocketFrameAggregator. max-frame-size))
-      (n/pp->next pp "WSACC" "wsock" ws-monolith<>)
+      (n/pp->next pp
+                  (if-some [h (ws-compressor wsock-compress
+                                             path max-frame-size)]
+                    (do (n/pp->next pp cn "WSSCH" h) "WSSCH") cn)
+                  "WSSPH" (WebSocketServerProtocolHandler. uri nil true))
+
+      (if wsock-zero-copy?
+        (n/pp->next pp "WSSPH" "wsock" (ws-zero-copy<> args))
+        (do (n/pp->next pp "WSSPH"
+                        "WSACC" (WebSocketFrameAggregator. max-frame-size))
+            (n/pp->next pp "WSACC" "wsock" ws-monolith<>)))
 
       (n/remove-handler* pp
                               [HttpContentDecompressor
@@ -388,11 +658,22 @@
 
   [ctx]
 
-  (let [impl (c/mdel! (n/cache?? ctx) :adder)]
+  (let [cc (n/cache?? ctx)
+        impl (c/mdel! cc :adder)
+        parts (c/mdel! cc :parts)]
     (c/try!
       (some-> (c/cast? Attribute impl) .release))
     (c/try!
-      (some-> (c/cast? InterfaceHttpPostRequestDecoder impl) .destroy))))
+      (some-> (c/cast? InterfaceHttpPostRequestDecoder impl) .destroy))
+    (c/try!
+      (some-> (c/cast? BodyStream impl) .abort))
+    (c/try!
+      (when-some [^MultipartDecoder
+                  d (c/cast? MultipartDecoder impl)]
+        ;upload cut short, drop what we have
+        (if-not (.isDone d)
+          (doseq [n parts] (.delete ^FileItem n)))
+        (.close d)))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- assert-decoded-ok!
@@ -401,8 +682,10 @@
   [ctx msg]
 
   (when (n/decoder-err? msg)
-    (->> (n/scode* BAD_REQUEST)
-         (n/reply-status ctx))
+    ;a streamed request has its place already
+    (reply-early ctx
+                 (some-> ctx n/cache?? (c/mget :pseq))
+                 (status<> (n/scode* BAD_REQUEST)))
     (some-> (n/decoder-err-cause?? msg) (c/exception))
     (u/throw-FFE "bad request.")))
 
@@ -420,7 +703,21 @@
     (cond (n/ihprd? impl)
           (n/offer! impl part)
           (n/mp-attr? impl)
-          (n/add->mp-attr! impl part end?))))
+          (n/add->mp-attr! impl part end?)
+          (c/is? BodyStream impl)
+          (.offer ^BodyStream impl
+                  (.retain (.content part)) end?)
+          (c/is? MultipartDecoder impl)
+          (try (.offer ^MultipartDecoder impl (.content part))
+               (catch MultipartDecoder$TooLarge e
+                 (c/debug "%s" (.getMessage e))
+                 ;forget the rest of this request
+                 (clear-adder! ctx)
+                 (c/mdel! cc :msg)
+                 (->> (n/scode* REQUEST_ENTITY_TOO_LARGE)
+                      status<>
+                      (reply-early ctx (c/mget cc :pseq)))
+                 (u/throw-FFE "form field too large."))))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- do-last-part
@@ -431,9 +728,17 @@
         ^HttpMessage
         msg (c/mget cc :msg)
         impl (c/mget cc :adder)
-        body (if-not (n/ihprd? impl)
-               (n/get-mp-attr impl)
-               (n/parse-form-multipart impl))
+        body (cond (n/ihprd? impl)
+                   (n/parse-form-multipart impl)
+                   (c/is? MultipartDecoder impl)
+                   (let [out (c/mdel! cc :parts)]
+                     (try (.finish ^MultipartDecoder impl)
+                          (cu/form-items<> out)
+                          (catch Throwable e
+                            (doseq [n out]
+                              (.delete ^FileItem n)) (throw e))))
+                   :else
+                   (n/get-mp-attr impl))
         gist (do (.add (.headers msg)
                        (.trailingHeaders part))
                  (netty->ring msg ctx body))]
@@ -470,15 +775,34 @@
              err? (and (pos? max-msg-size)
                        (HttpUtil/isContentLengthSet req)
                        (> (HttpUtil/getContentLength req) max-msg-size))]
-         (-> (->> (if-not err?
-                    expected-ok expected-failed)
-                  (n/write-msg ctx))
-             (n/cf-cb (if err? (n/cfop<z>))))
+         (if-not err?
+           (n/write-msg ctx expected-ok)
+           (->> (n/scode* EXPECTATION_FAILED)
+                status<>
+                (reply-early ctx nil)))
          (not err?)))]
     (if (and (HttpUtil/is100ContinueExpected req)
              (not (cont-100?)))
       (u/throw-FFE "failed 100 continue."))))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- streaming??
+
+  "Server wide, or just for the matching route."
+  [ctx ^HttpRequest req method]
+
+  (let [{:keys [streaming?]} (n/chcfg?? ctx)]
+    (or (boolean streaming?)
+        (and (:streaming? (n/akey?? ctx n/routes-key))
+             (-> (n/match-one-route?? ctx
+                                      {:uri2 (URI. (.uri req))
+                                       :request-method method})
+                 (get-in [:info :streaming?])
+                 boolean)))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(declare fire-gist)
+
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- do-cache-req
 
@@ -499,16 +823,40 @@
                  (if post? :post :url)
                  (and post?
                       (c/embeds? ct ct-form-mpart)) :multipart)
-        {:keys [max-mem-size]}
+        {:keys [max-mem-size
+                upload-sink
+                max-field-size
+                stream-buf-size]}
         (n/chcfg?? ctx)
-        cc (n/cache?? ctx)]
+        cc (n/cache?? ctx)
+        bs (if (and (not ws?)
+                    (streaming?? ctx req m))
+             (BodyStream. (n/ch?? ctx)
+                          (long (or stream-buf-size
+                                    (* 64 c/KiloBytes)))))]
     (when ws?
       (c/mput! cc :mode :wsock)
       (c/debug "request is detected as a websock upgrade."))
     (c/mput! cc :msg req)
-    (c/mput! cc :adder (if (c/or?? [= rc] :post :multipart)
-                         (decoder<> ctx req)
-                         (n/data-attr<> max-mem-size)))))
+    (c/mput! cc :adder (cond (some? bs)
+                             bs
+                             (= rc :multipart)
+                             (let [out (ArrayList.)]
+                               (c/mput! cc :parts out)
+                               (cu/multipart<>
+                                 (->> (n/h1hdr* CONTENT_TYPE)
+                                      (n/get-header req))
+                                 (.alloc ^ChannelHandlerContext ctx)
+                                 upload-sink
+                                 max-field-size
+                                 #(.add out %)))
+                             (= rc :post)
+                             (decoder<> ctx req)
+                             :else
+                             (n/data-attr<> max-mem-size)))
+    ;hand over the head now, body follows
+    (if bs
+      (fire-gist ctx req (netty->ring req ctx bs)))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- do-cache-rsp
@@ -548,6 +896,7 @@
 
   (try
     (c/debug "REQ: %s." req)
+    (c/mdel! (n/cache?? ctx) :pseq)
     (assert-decoded-ok! ctx req)
     (do-100-cont ctx req)
     (do-cache-req ctx req)
@@ -560,23 +909,63 @@
       (or (c/is? FailFast e) (throw e)))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
-(defn- read-complete
+(defn- pipeline-admit
 
-  [ctx part]
+  [ctx ^H1Pipeline pl]
+
+  (c/do-with [s (.admit pl)]
+    (when (and (.isFull pl)
+               (not (.isPaused pl)))
+      (c/debug "pipeline is full, stop reading.")
+      (.setPaused pl true)
+      (.pause (ReadGate/of (n/ch?? ctx))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- fire-gist
+
+  [ctx msg gist]
 
   (let [cc (n/cache?? ctx)
-        msg (c/mget cc :msg)
         mode (c/mget cc :mode)
-        gist (do-last-part ctx part)]
+        pl (c/mget cc :pipeline)
+        gist (if (and pl
+                      (n/hreq? msg)
+                      (not= :wsock mode))
+               (assoc gist
+                      :pipeline-seq
+                      (pipeline-admit ctx pl)) gist)]
+    (c/mput! cc :pseq (:pipeline-seq gist))
     (try
-      (cors/cors-read ctx gist)
+      (when-some [rsp (cors/cors-read ctx gist)]
+        (->> (reply-early ctx (:pipeline-seq gist) rsp)
+             (n/replied gist (.code (.status rsp))))
+        (u/throw-FFE "request answered by CORS."))
       (c/mput! cc :cur msg)
       (if (not= :wsock mode)
         (n/fire-msg ctx gist)
-        (cfg-websock ctx msg))
+        (do (if (:arrived gist)
+              (some-> (n/metrics?? ctx) (.dropped (n/ch?? ctx))))
+            (cfg-websock ctx msg)))
       (catch Throwable e
         (or (c/is? FailFast e) (throw e))))))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- read-complete
+
+  [ctx part]
+
+  (let [cc (n/cache?? ctx)
+        ^HttpMessage
+        msg (c/mget cc :msg)]
+    (if-not (c/is? BodyStream
+                   (c/mget cc :adder))
+      (fire-gist ctx msg (do-last-part ctx part))
+      ;streamed, head has gone up already
+      (do (.add (.headers msg)
+                (.trailingHeaders ^LastHttpContent part))
+          (c/mdel! cc :adder)
+          (c/mdel! cc :msg)))))
+
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- on-read
 
@@ -599,37 +988,42 @@
   `(not= HttpResponseStatus/CONTINUE
          (some-> (c/cast? FullHttpResponse ~msg) .status)))
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
-(defn- on-write
+(defn- pipeline-resume
+
+  [ctx ^H1Pipeline pl]
+
+  ;replay the parts held back while we were full
+  (loop [m (.peekBacklog pl)]
+    (when (and (some? m)
+               (not (and (n/hreq? m)
+                         (.isFull pl))))
+      (.pollBacklog pl)
+      (on-read ctx m)
+      (recur (.peekBacklog pl))))
+  (when (and (.isPaused pl)
+             (not (.isFull pl))
+             (not (.hasBacklog pl)))
+    (c/debug "pipeline has room, resume reading.")
+    (.setPaused pl false)
+    (.resume (ReadGate/of (n/ch?? ctx)))))
 
-  [ctx msg]
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- on-write
 
-  (letfn
-    [(delhead [^List q] (if-not
-                          (.isEmpty q)
-                          (.remove q 0)))]
-    (when (and (!cont-100? msg)
-               (n/h1end? msg))
-      (c/debug "checking for pending requests.")
-      ;just replied, next check to process queued requests
-      (let [c (n/cache?? ctx)
-            out (ArrayList.)
-            q (c/mget c :queue)]
-        ;clear flag
-        (c/mput! c :cur nil)
-        ;grab next request & its parts
-        (loop [m (delhead q)]
-          (cond
-            (n/last-part? m) (.add out m) ;ok got one complete msg
-            (nil? m) (.clear out) ;something is wrong
-            :else (do (.add out m)
-                      (recur (delhead q)))))
-        (if-not (.isEmpty out)
-          (c/debug "**dequeue** request %s." (u/objid?? (.get out 0))))
-        ;process the queued request & its parts
-        (loop [m (delhead out)]
-          (when m
-            (on-read ctx m)
-            (recur (delhead out))))))))
+  [^ChannelHandlerContext ctx msg]
+
+  (when (and (!cont-100? msg)
+             (n/h1end? msg))
+    ;just replied, let the next one through
+    (let [^H1Pipeline
+          pl (c/mget (n/cache?? ctx) :pipeline)]
+      (when (and pl
+                 (.complete pl)
+                 (or (.isPaused pl)
+                     (.hasBacklog pl)))
+        ;not from inside the write call
+        (.execute (.executor ctx)
+                  #(pipeline-resume ctx pl))))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (def
@@ -642,6 +1036,8 @@
   (proxy [DuplexHandler][]
     (onHandlerAdded [ctx]
       (n/akey+ ctx n/cache-key (HashMap.)))
+    (onInactive [ctx]
+      (if (n/cache?? ctx) (clear-adder! ctx)))
     (preWrite [ctx msg]
       (cors/cors-write ctx msg))
     (onRead [ctx ch msg]
@@ -660,27 +1056,63 @@
   (proxy [DuplexHandler][]
     (onRead [ctx ch msg]
       (let [cc (n/cache?? ctx)
-            cur (c/mget cc :cur)
-            mode (c/mget cc :mode)
-            queue (c/mget cc :queue)]
+            ^H1Pipeline pl (c/mget cc :pipeline)]
         (cond
-          (some? cur)
-          (when (not= :wsock mode)
-            (.add ^List queue msg)
-            (if (n/hreq? msg)
-              (c/debug "**queue** request %s." (u/objid?? msg))))
+          (not (n/h1msg? msg))
+          (n/fire-msg ctx msg)
+          (or (.hasBacklog pl)
+              (and (n/hreq? msg)
+                   (.isFull pl)))
+          (do (.defer pl msg)
+              (if (n/hreq? msg)
+                (c/debug "**queue** request %s." (u/objid?? msg))))
           :else
-          (if (n/h1msg? msg)
-            (on-read ctx msg)
-            (n/fire-msg ctx msg)))))
+          (on-read ctx msg))))
     (preWrite [ctx msg]
       (cors/cors-write ctx msg))
     (onWrite [ctx msg _]
       (on-write ctx msg))
+    (onInactive [ctx]
+      (clear-adder! ctx)
+      (if-some [^H1Pipeline
+                pl (c/mget (n/cache?? ctx) :pipeline)]
+        (run! #(n/ref-del %) (.clear pl))))
     (onHandlerAdded [ctx]
-      (doto (n/akey+ ctx
-                     n/cache-key (HashMap.))
-        (c/mput! :cur nil) (c/mput! :queue (ArrayList.))))))
+      (let [{:keys [max-pipeline-depth]}
+            (n/chcfg?? ctx)]
+        (doto (n/akey+ ctx
+                       n/cache-key (HashMap.))
+          (c/mput! :cur nil)
+          (c/mput! :pipeline
+                   (H1Pipeline. (int (or max-pipeline-depth 16)))))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn reply-in-order
+
+  "Write the reply through the pipeline, if any, so that
+  replies go out in the same order as the requests came in."
+  {:tag ChannelFuture
+   :arglists '([gist writer])}
+  [gist writer]
+  {:pre [(fn? writer)]}
+
+  (let [{:keys [^Channel socket
+                pipeline-seq]} gist
+        ^H1Pipeline
+        pl (some-> socket n/cache?? (c/mget :pipeline))]
+    (if (or (nil? pl)
+            (nil? pipeline-seq))
+      (writer)
+      (let [p (.newPromise socket)
+            w #(try (.addListener ^ChannelFuture (writer)
+                                  (PromiseNotifier.
+                                    (into-array Promise [p])))
+                    (catch Throwable e
+                      (.tryFailure p e)))
+            r #(.submit pl (long pipeline-seq) ^Runnable w)]
+        (if (.inEventLoop (.eventLoop socket))
+          (r)
+          (.execute (.eventLoop socket) ^Runnable r)) p))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn h1-pipeline
@@ -702,7 +1134,9 @@
                 "h1"
                 (if pipelining? h1-complex<> h1-simple<>))
     (n/pp->last p "chunker" (ChunkedWriteHandler.))
-    (n/pp->last p n/user-cb (n/app-handler user-cb))))
+    (n/pp->last p
+                n/user-cb
+                (n/app-handler user-cb (assoc args :serial? true)))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;EOF
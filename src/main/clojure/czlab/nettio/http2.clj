@@ -21,40 +21,58 @@
             [czlab.basal.util :as u]
             [czlab.basal.core :as c]
             [czlab.nettio.http :as h1]
+            [czlab.nettio.ranges :as nr]
             [czlab.nettio.core :as n])
 
-  (:import [io.netty.handler.stream ChunkedWriteHandler]
-           [io.netty.util AttributeKey]
+  (:import [io.netty.handler.stream
+            ChunkedInput
+            ChunkedStream
+            ChunkedNioFile
+            ChunkedWriteHandler]
+           [io.netty.util AttributeKey AsciiString]
            [java.net URI InetSocketAddress]
-           [java.util Map HashMap]
+           [java.util Map Map$Entry HashMap]
+           [java.util.concurrent ConcurrentHashMap]
+           [java.util.function IntConsumer]
            [io.netty.buffer ByteBuf]
-           [java.io OutputStream]
+           [java.io File InputStream IOException OutputStream]
            [czlab.basal XData]
-           [czlab.niou Headers]
+           [czlab.niou Headers LazyMap]
            [czlab.niou.core Http2xMsg]
+           [czlab.nettio.ranges HttpRangesObj]
            [czlab.nettio
+            NettyHeaders
+            DateClock
+            BodyStream
+            H2StreamState
             InboundH2ToH1
             InboundHandler
             CPAggregator
             H2Handler
-            H2HandlerBuilder]
+            H2HandlerBuilder
+            Metrics]
            [io.netty.channel
             ChannelHandler
             ChannelPromise
+            ChannelFuture
             Channel
             ChannelPipeline
             ChannelHandlerContext]
-           [io.netty.handler.codec
-            HeadersUtils]
            [io.netty.handler.codec.http
-            HttpRequest]
+            HttpRequest
+            DefaultHttpHeaders
+            QueryStringDecoder]
            [io.netty.handler.codec.http2
             HttpConversionUtil
             Http2CodecUtil
             Http2FrameAdapter
             Http2Settings
             Http2Headers
+            Http2Connection
+            Http2Headers$PseudoHeaderName
+            Http2Stream
             Http2FrameListener
+            Http2ConnectionAdapter
             DefaultHttp2Connection
             DefaultHttp2Headers
             InboundHttp2ToHttpAdapterBuilder
@@ -68,8 +86,7 @@
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;(set! *warn-on-reflection* true)
-(c/defonce- ^AttributeKey h2msgHkey (n/akey<> :h2msg-h))
-(c/defonce- ^AttributeKey h2msgDkey (n/akey<> :h2msg-d))
+(defonce ^AttributeKey rsps-key (n/akey<> :h2-stream-rsps))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (extend-protocol cc/HttpResultMsgReplyer
@@ -96,29 +113,34 @@
   ^DefaultHttp2Headers
   [^Headers hds]
 
-  (reduce
-    #(let [^Http2Headers acc %1
-           ^String n %2
-           vs (.get hds n)]
-       (if (c/one? vs)
-         (.set acc n (first vs))
-         (doseq [v vs] (.add acc n v))) acc)
-    (DefaultHttp2Headers.) (.keySet hds)))
+  ;h2 wants lower-cased names
+  (let [out (DefaultHttp2Headers.)]
+    (if-some [n (c/cast? NettyHeaders hds)]
+      (let [it (.iteratorCharSequence (.unwrap n))]
+        (while (.hasNext it)
+          (let [^Map$Entry e (.next it)]
+            (.add ^Http2Headers out
+                  (.toLowerCase (AsciiString/of ^CharSequence (.getKey e)))
+                  ^CharSequence (.getValue e)))))
+      (dotimes [i (.entryCount hds)]
+        (.add ^Http2Headers out
+              (.toLowerCase (AsciiString/of (.nameAt hds i)))
+              (.valueAt hds i)))) out))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- headers->std
 
+  ^Headers
   [^Http2Headers hds]
 
-  (reduce
-    (fn [^Headers acc ^String n]
-      (let [arr (HeadersUtils/getAllAsString hds n)]
-        (if (c/one? arr)
-          (.set acc n (first arr))
-          (doseq [v arr]
-            (.add acc n v)))
-        acc))
-    (Headers.) (HeadersUtils/namesAsString hds)))
+  ;pseudo headers end up as fields of the message
+  (let [out (Headers.)
+        it (.iterator hds)]
+    (while (.hasNext it)
+      (let [^Map$Entry e (.next it)
+            ^CharSequence k (.getKey e)]
+        (if-not (Http2Headers$PseudoHeaderName/hasPseudoHeaderFormat k)
+          (.add out k ^CharSequence (.getValue e))))) out))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (def
@@ -136,23 +158,53 @@
               (c/debug "just ate h2 settings!"))
             :else (n/fire-msg ctx msg)))))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- chunked??
+
+  "Bodies sent as a paced run of DATA frames."
+  ^ChunkedInput
+  [ct]
+
+  (cond (c/is? ChunkedInput ct) ct
+        (c/is? InputStream ct) (ChunkedStream. ^InputStream ct)
+        (c/is? File ct) (ChunkedNioFile. ^File ct)))
+
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- on-h2-write
 
-  [^H2Handler self
+  "A client opens a new stream per request, a server
+  replies on the stream the request came in on.  Files,
+  streams, ranges and chunked inputs are read a chunk at
+  a time, no faster than the peer's window opens up."
+  [^H2Handler self ^Map rsps
    ^ChannelHandlerContext ctx msg ^ChannelPromise cp]
 
   (let
     [{:keys [request-method
-             uri uri2
-             ^XData body
+             uri uri2 status stream-id
+             body
              ^Headers headers]} msg
-     mtd (c/ucase (name request-method))
+     client? (some? rsps)
      ch (n/ch?? ctx)
-     body? (.hasContent body)
-     ^bytes ct (if body? (i/x->bytes body) nil)
-     clen (if ct (alength ct) 0)
-     _ (.set headers "content-length" (str clen))
+     ^XData xd (c/cast? XData body)
+     content (if xd (.content xd) body)
+     rg (c/cast? HttpRangesObj content)
+     in (chunked?? content)
+     ^bytes ct (if (and (nil? in)
+                        xd (.hasContent xd)) (i/x->bytes xd))
+     clen (cond ct (alength ct)
+                in (.length in) :else 0)
+     status (if (and rg
+                     (not client?)
+                     (== 200 (or status 200))) 206 status)
+     _ (if (neg? clen)
+         (.remove headers "content-length")
+         (.set headers "content-length" (str clen)))
+     _ (when (and rg (not client?))
+         (let [h (DefaultHttpHeaders.)]
+           (nr/fmt-success h rg)
+           (doseq [^Map$Entry e (.entries h)]
+             (.set headers ^String (.getKey e) ^String (.getValue e)))))
      _ (if-not (c/hgl? (.getFirst headers "content-type"))
          (.set headers "content-type" "application/octet-stream"))
      h2hds (std->headers headers)
@@ -164,83 +216,229 @@
                        (h2xhdr* STREAM_WEIGHT)
                        Http2CodecUtil/DEFAULT_PRIORITY_WEIGHT)
      sid (int (or (n/hv-int headers (h2xhdr* STREAM_ID))
+                  (if-not client? stream-id)
                   (.. enc connection local incrementAndGetNextStreamId)))]
-    (.authority h2hds (.getHostName ^InetSocketAddress (.remoteAddress ch)))
-    (.scheme h2hds (if ssl? "https" "http"))
-    (.method h2hds mtd)
-    (.path h2hds (.getRawPath ^URI uri2))
+    (if-not client?
+      (do (.status h2hds (str (or status 200)))
+          (if-not (.contains h2hds "date")
+            (.set h2hds "date" (DateClock/now)))
+          (n/replied msg (or status 200) cp))
+      (do (.authority h2hds
+                      (.getHostName ^InetSocketAddress (.remoteAddress ch)))
+          (.scheme h2hds (if ssl? "https" "http"))
+          (.method h2hds (c/ucase (name request-method)))
+          (.path h2hds (.getRawPath ^URI uri2))))
+    (when-some [p (if client? (:promise msg))]
+      ;replies are matched by stream, in whatever order they come
+      (.put rsps sid p)
+      (n/cf-cb cp
+               (fn [^ChannelFuture f]
+                 (if-not (.isSuccess f)
+                   (some-> (.remove rsps sid)
+                           (deliver (.cause f)))))))
     (try
       (.writeHeaders enc ctx sid h2hds
                      depid weight
                      ;exclusive padding endstream?
-                     false 0 (not (pos? clen)) (.newPromise pagg))
-      (when (pos? clen)
+                     false 0 (and (nil? in)
+                                  (not (pos? clen))) (.newPromise pagg))
+      (cond
+        (some? in)
+        (.writeBody self ctx sid in (.newPromise pagg))
+        (pos? clen)
         (.writeData enc ctx sid
                     (n/bbuf?? ct ch) 0 true (.newPromise pagg)))
       (catch Throwable t
+        (some-> in .close)
         (.onError self ctx true t)
         (.setFailure pagg t))
       (finally
         (.doneAllocatingPromises pagg)))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
-(defn h2-handler<>
+(defn- h2-gist
+
+  "A reply if there is a :status, else a request
+  built from the pseudo headers."
+  [ctx sid ^Http2Headers hds body]
+
+  (let [ssl (n/get-ssl?? ctx)
+        ch (n/ch?? ctx)
+        std (headers->std hds)
+        msg (if-some [s (.status hds)]
+              (cc/h2-msg<> (c/s->long (str s) 0) std body)
+              (let [path (str (.path hds))
+                    m (cc/h2-msg<> (keyword (c/lcase (str (.method hds))))
+                                   path std body)]
+                (assoc m
+                       :arrived (n/arrived ctx)
+                       :route (n/match-one-route?? ctx m)
+                       :server-name (some-> (.authority hds) str)
+                       :parameters (LazyMap.
+                                     #(.parameters (QueryStringDecoder. path))))))
+        laddr (c/cast? InetSocketAddress (.localAddress ch))]
+    (assoc msg
+           :protocol "HTTP/2.0"
+           :stream-id sid
+           :socket ch
+           :ssl? (some? ssl)
+           :scheme (if ssl :https :http)
+           :local-host (some-> laddr .getHostString)
+           :local-port (some-> laddr .getPort))))
 
-  "Create a H2 handler."
-  {:tag H2Handler
-   :arglists '([rcp max-mem-size])}
-  [rcp max-mem-size]
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- credit<>
+
+  "Hand window credit back for bytes the application
+  has taken off a streamed body."
+  ^IntConsumer
+  [^H2Handler self ^ChannelHandlerContext ctx sid]
 
   (letfn
-    [(finz [ctx sid]
-       (let [hh (n/akey?? ctx h2msgHkey)
-             dd (n/akey?? ctx h2msgDkey)
-             attr (c/mdel! dd sid)
-             hds (c/mdel! hh sid)
-             b (n/get-http-data attr true)
-             msg (assoc (cc/h2-msg<> :get "/poo" (headers->std hds) b)
-                        :socket (n/ch?? ctx))]
-         (try (n/fire-msg ctx msg)
-              (finally (.release ^Attribute attr)))))
-     (read0 [ctx sid]
-       (let [m (or (n/akey?? ctx h2msgDkey)
-                   (n/akey+ ctx h2msgDkey (HashMap.)))
-             attr (c/mget m sid)]
-         (if (nil? attr)
-           (c/mput! m
-                    sid
-                    (n/data-attr<> max-mem-size)))))
-     (read1 [ctx sid data end?]
-       (let [m (n/akey?? ctx h2msgDkey)
-             attr (c/mget m sid)]
-         (.addContent ^Attribute
-                      attr
-                      (.retain ^ByteBuf data) (boolean end?))
-         (if end? (finz ctx sid))))]
-    (let [c (DefaultHttp2Connection. (nil? rcp))]
-      (.buildEx
-        (proxy [H2HandlerBuilder][c]
-          (newHandler [d e s]
-            (proxy [H2Handler][d e s]
-              (write [ctx msg cp]
-                (if (c/is? Http2xMsg msg)
-                  (on-h2-write this ctx msg cp)
-                  (.parWrite ^H2Handler this ctx msg cp)))
-              (onSettingsRead [ctx ss]
-                (if rcp (deliver rcp (n/ch?? ctx)))
-                (c/debug "%s h2 settings: received."
-                         (if rcp "client" "server")))
-              (onData [ctx sid data pad end?]
-                (c/debug "rec'ved h2-data: sid#%s, end?=%s." sid end?)
-                (c/do-with [b (+ pad (.readableBytes ^ByteBuf data))]
-                  (read0 ctx sid)
-                  (read1 ctx sid data end?)))
-              (onHeaders [ctx sid hds pad end?]
-                (c/debug "rec'ved h2-headers: sid#%s, end?=%s." sid end?)
-                (let [m (or (n/akey?? ctx h2msgHkey)
-                            (n/akey+ ctx h2msgHkey (HashMap.)))]
-                  (c/mput! m sid hds)
-                  (if end? (finz ctx sid)))))))))))
+    [(consume [n]
+       (c/try!
+         (when-some [s (.. self connection (stream (int sid)))]
+           (if (.. self decoder flowController (consumeBytes s (int n)))
+             (.flush ctx)))))]
+    (reify IntConsumer
+      (accept [_ n]
+        (if (.. ctx executor inEventLoop)
+          (consume n)
+          (.execute (.executor ctx) #(consume n)))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- count-streams
+
+  "Keep the server's open stream gauge up to date."
+  [^Http2Connection c ^Metrics m]
+
+  (if m
+    (.addListener c
+                  (proxy [Http2ConnectionAdapter][]
+                    (onStreamAdded [_] (.streamOpened m))
+                    (onStreamRemoved [_] (.streamClosed m))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn h2-handler<>
+
+  "Create a H2 handler.  Each stream keeps its state as a
+  connection property.  With :streaming?, server wide or on
+  the route, a request is handed on at its HEADERS frame and
+  the body follows as a BodyStream, window credit going back
+  to the peer only as the application takes the bytes."
+  {:tag H2Handler
+   :arglists '([rcp max-mem-size]
+               [rcp max-mem-size metrics])}
+
+  ([rcp max-mem-size]
+   (h2-handler<> rcp max-mem-size nil))
+
+  ([rcp max-mem-size metrics]
+   (let [c (DefaultHttp2Connection. (nil? rcp))
+         _ (count-streams c metrics)
+         pk (.newKey c)
+         ;client side, reply promises keyed by stream id
+         rsps (if rcp (ConcurrentHashMap.))]
+     (letfn
+       [(state?? [sid]
+          (some-> (.stream c (int sid)) (.getProperty pk)))
+        (state-del [sid]
+          (some-> (.stream c (int sid)) (.removeProperty pk)))
+        (streaming? [ctx gist]
+          (and (nil? rcp)
+               (or (boolean (:streaming? (n/chcfg?? ctx)))
+                   (boolean (get-in gist [:route :info :streaming?])))))
+        (finz [ctx sid]
+          (let [^H2StreamState st (state-del sid)
+                attr (.data st)
+                b (n/get-http-data attr true)
+                gist (.gist st)]
+            (try (n/fire-msg ctx
+                             (if (nil? gist)
+                               (h2-gist ctx sid (.headers st) b)
+                               ;;made at HEADERS, trailers may have come since
+                               (assoc gist
+                                      :body (cc/toXData b)
+                                      :headers (headers->std (.headers st)))))
+                 (finally (some-> attr .release)))))
+        (on-headers [self ctx sid hds end?]
+          (if-some [^H2StreamState st (state?? sid)]
+            ;trailers
+            (if (nil? (.body st))
+              (do (.addTrailers st hds)
+                  (if end? (finz ctx sid)))
+              (when end?
+                (state-del sid)
+                (.offer (.body st) nil true)))
+            (let [st (H2StreamState. hds)
+                  gist (if-not end?
+                         (h2-gist ctx sid hds nil))]
+              (.setProperty (.stream c (int sid)) pk st)
+              (cond
+                end?
+                (finz ctx sid)
+                (streaming? ctx gist)
+                (let [bs (BodyStream. (n/ch?? ctx)
+                                      (credit<> self ctx sid))]
+                  (.setBody st bs)
+                  (n/fire-msg ctx (assoc gist :body bs)))
+                :else
+                (.setGist st gist)))))
+        (on-data [ctx sid ^ByteBuf data pad end?]
+          (let [^H2StreamState st (state?? sid)
+                n (.readableBytes data)]
+            (cond
+              (nil? st)
+              (+ pad n)
+              (some? (.body st))
+              (do (if end? (state-del sid))
+                  (.offer (.body st) (.retain data) (boolean end?))
+                  ;the rest once taken
+                  pad)
+              :else
+              (let [attr (or (.data st)
+                             (c/doto->> (n/data-attr<> max-mem-size)
+                                        (.setData st)))]
+                (.addContent ^Attribute attr (.retain data) (boolean end?))
+                (if end? (finz ctx sid))
+                (+ pad n)))))]
+       (.addListener c
+                     (proxy [Http2ConnectionAdapter][]
+                       (onStreamRemoved [^Http2Stream s]
+                         (when-some [^H2StreamState
+                                     st (.removeProperty s pk)]
+                           ;;counted in, but never handed on
+                           (when-some [g (.gist st)]
+                             (if (and metrics (:arrived g))
+                               (.dropped ^Metrics metrics
+                                         ^Channel (:socket g))))
+                           (.release st))
+                         (when rsps
+                           (some-> (.remove ^Map rsps (.id s))
+                                   (deliver (IOException.
+                                              "h2 stream closed before reply.")))))))
+       (.buildEx
+         (doto
+           (proxy [H2HandlerBuilder][c]
+             (newHandler [d e s]
+               (proxy [H2Handler][d e s]
+                 (write [ctx msg cp]
+                   (if (c/is? Http2xMsg msg)
+                     (on-h2-write this rsps ctx msg cp)
+                     (.parWrite ^H2Handler this ctx msg cp)))
+                 (onSettingsRead [ctx ss]
+                   (when rcp
+                     (n/akey+ ctx rsps-key rsps)
+                     (deliver rcp (n/ch?? ctx)))
+                   (c/debug "%s h2 settings: received."
+                            (if rcp "client" "server")))
+                 (onData [ctx sid data pad end?]
+                   (c/debug "rec'ved h2-data: sid#%s, end?=%s." sid end?)
+                   (on-data ctx sid data pad end?))
+                 (onHeaders [ctx sid hds pad end?]
+                   (c/debug "rec'ved h2-headers: sid#%s, end?=%s." sid end?)
+                   (on-headers this ctx sid hds end?)))))
+           (.queueStreams (some? rcp))))))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn hx-pipeline
@@ -250,9 +448,10 @@
   [p args]
   {:pre [(c/is? ChannelPipeline p)]}
 
-  (let [{:keys [user-cb
+  (let [{:keys [user-cb metrics
                 cors-cfg max-frame-size]} args
-        co (DefaultHttp2Connection. true)
+        co (c/doto->> (DefaultHttp2Connection. true)
+                      (count-streams metrics))
         f (proxy [InboundH2ToH1]
                  [co (int max-frame-size) false false]
             (onSettings [ctx ch msg]
@@ -266,7 +465,7 @@
       (->> (h1/config->cors cors-cfg)
            CorsHandler. (n/pp->last p "cors")))
     (n/pp->last p "h1" h1/h1-simple<>)
-    (n/pp->last p n/user-cb (n/app-handler user-cb))))
+    (n/pp->last p n/user-cb (n/app-handler user-cb args))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn h2-pipeline
@@ -276,12 +475,12 @@
   [p args]
   {:pre [(c/is? ChannelPipeline p)]}
 
-  (let [{:keys [user-cb
+  (let [{:keys [user-cb metrics
                 max-mem-size]} args]
     (n/pp->last p
                 "svr-h2f"
-                (h2-handler<> nil max-mem-size))
-    (n/pp->last p "user-func" (n/app-handler user-cb))))
+                (h2-handler<> nil max-mem-size metrics))
+    (n/pp->last p "user-func" (n/app-handler user-cb args))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;EOF
@@ -48,6 +48,8 @@
             DuplexHandler
             APNHttp2Handler
             APNHttpXHandler
+            WsDeflate
+            Metrics
             PipelineConfigurator]
            [io.netty.handler.ssl
             SslContext
@@ -62,11 +64,15 @@
             ApplicationProtocolConfig$SelectorFailureBehavior
             ApplicationProtocolConfig$SelectedListenerFailureBehavior]
            [java.security KeyStore]
-           [java.util List]
+           [java.util Map List ArrayList]
+           [java.util.concurrent TimeUnit]
+           [io.netty.channel.pool ChannelPool]
+           [io.netty.handler.timeout IdleStateEvent IdleStateHandler]
            [java.net URI]
            [io.netty.util
             AttributeKey]
            [io.netty.channel
+            ChannelInboundHandlerAdapter
             ChannelInitializer
             ChannelPipeline
             ChannelPromise
@@ -80,8 +86,11 @@
             WebSocketClientHandshaker
             WebSocketFrameAggregator
             WebSocketClientHandshakerFactory]
+           [io.netty.handler.codec.http.websocketx.extensions
+            WebSocketClientExtensionHandler
+            WebSocketClientExtensionHandshaker]
            [io.netty.handler.codec.http.websocketx.extensions.compression
-            WebSocketClientCompressionHandler]))
+            PerMessageDeflateClientExtensionHandshaker]))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;(set! *warn-on-reflection* true)
@@ -91,6 +100,32 @@
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defonce ^AttributeKey rsp-key  (n/akey<> :client-rsp-results))
+(defonce ^AttributeKey pool-key  (n/akey<> :client-conn-pool))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- pool-release
+
+  "If pooled, hand the connection back once all replies are in."
+  [ctx keep?]
+
+  (when-some [^ChannelPool
+              p (n/akey?? ctx pool-key)]
+    (let [^Channel ch (n/ch?? ctx)
+          ^List pl (n/akey?? ch rsp-key)]
+      (when (or (not keep?)
+                (.isEmpty pl))
+        (if-not keep? (.close ch))
+        (.release p ch)))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- rsp-promise
+
+  "h2 replies are matched by stream id, the rest in order."
+  [ctx msg]
+
+  (if-some [^Map m (n/akey?? ctx h2/rsps-key)]
+    (some->> (:stream-id msg) (.remove m))
+    (.remove ^List (n/akey?? ctx rsp-key) 0)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (c/def-
@@ -98,13 +133,26 @@
   client-hdlr
   (proxy [InboundHandler][]
     (onRead [ctx ch msg]
-      (let [pl (n/akey?? ctx rsp-key)
-            p (.remove ^List pl 0)]
-        (some-> p (deliver msg))))
+      (some-> (rsp-promise ctx msg) (deliver msg))
+      (pool-release ctx (boolean (:keep-alive? msg))))
     (onError [ctx err]
-      (let [pl (n/akey?? ctx rsp-key)
-            p (.remove ^List pl 0)]
-        (some-> p (deliver err))))))
+      (if-some [^Map m (n/akey?? ctx h2/rsps-key)]
+        (let [ps (vec (.values m))]
+          (.clear m)
+          (doseq [p ps] (deliver p err)))
+        (some-> (rsp-promise ctx nil) (deliver err)))
+      (pool-release ctx false))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(c/def-
+  ^{:tag ChannelHandler}
+  idle-closer
+  (proxy [InboundHandler][]
+    (userEventTriggered [ctx evt]
+      (if (c/is? IdleStateEvent evt)
+        (do (c/debug "closing idle pooled connection.")
+            (n/close! ctx))
+        (.fireUserEventTriggered ^ChannelHandlerContext ctx evt)))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- webc-ssl-inizor<>
@@ -182,6 +230,24 @@
         (n/pp->last pp "3" (ChunkedWriteHandler.))
         (n/pp->last pp n/user-cb client-hdlr)))))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn init-pooled!
+
+  "Initialize a pooled http client connection, it gets
+  closed after being idle for idle-timeout millis."
+  {:arglists '([ch pool args])}
+  [^Channel ch pool {:keys [idle-timeout] :as args}]
+
+  (n/akey+ ch rsp-key (ArrayList.))
+  (n/akey+ ch pool-key pool)
+  (doto (.pipeline ch)
+    (.addLast "idle"
+              (IdleStateHandler. 0 0
+                                 (long (or idle-timeout 60000))
+                                 TimeUnit/MILLISECONDS))
+    (.addLast "idle-cb" ^ChannelHandler idle-closer)
+    (.addLast "inizor" ^ChannelHandler (webc-inizor<> (promise) args))))
+
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- hshaker
 
@@ -191,6 +257,30 @@
   (WebSocketClientHandshakerFactory/newHandshaker
     uri WebSocketVersion/V13 nil true (DefaultHttpHeaders.)))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- wsc-compressor
+
+  "The permessage-deflate handler for a websock client, nil if
+  compression is off.  Unlike netty's default, a server asking
+  the client not to keep its context is agreed to."
+  [cfg]
+
+  (if-not (false? cfg)
+    (let [{:keys [level
+                  min-size
+                  server-no-context?]
+           :or {level 6
+                min-size 256}} cfg]
+      (WebSocketClientExtensionHandler.
+        (into-array WebSocketClientExtensionHandshaker
+                    [(PerMessageDeflateClientExtensionHandshaker.
+                       (int level)
+                       false
+                       15
+                       true
+                       (boolean server-no-context?)
+                       (WsDeflate/filter (int min-size)))])))))
+
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn websock-inizor<>
 
@@ -199,62 +289,115 @@
    :arglists '([rcp args])}
   [rcp
    {:keys [uri2 user-cb
-           server-cert max-frame-size] :as args}]
+           server-cert
+           max-frame-size
+           wsock-compress
+           wsock-zero-copy?] :as args}]
 
   (letfn
     [(wsh<> []
        (let [hs (hshaker uri2)]
-         (proxy [InboundHandler][true]
+         (proxy [InboundHandler][]
            (onActive [ctx]
              (c/debug "about to start wsc handshake...")
              (.handshake hs (n/ch?? ctx)))
+           ;;frames are passed on as they are, so no
+           ;;auto-release, and no retain to make up for it
            (onRead [ctx ch msg]
              (cond
                (not (.isHandshakeComplete hs))
                (try
+                 ;;this also drops the aggregator
                  (->> (c/cast? FullHttpResponse msg)
                       (.finishHandshake hs ch))
                  (deliver rcp ch)
                  (n/dbg-pipeline (n/cpipe?? ch))
-                 (catch Exception e (deliver rcp e)))
+                 (catch Exception e (deliver rcp e))
+                 (finally (n/ref-del msg)))
 
                (c/is? FullHttpResponse msg)
-               (u/throw-ISE
-                 "Unexpected Response (rc=%s)."
-                 (.status ^FullHttpResponse msg))
+               (try (u/throw-ISE
+                      "Unexpected Response (rc=%s)."
+                      (.status ^FullHttpResponse msg))
+                    (finally (n/ref-del msg)))
 
                (c/is? CloseWebSocketFrame msg)
-               (do (n/close! ctx)
+               (do (n/ref-del msg)
+                   (n/close! ctx)
                    (c/debug "received close frame."))
 
                :else
-               (n/fire-msg ctx (n/ref-add msg)))))))]
+               (n/fire-msg ctx msg))))))]
     (proxy [PipelineConfigurator][]
       (onInitChannel [pp]
         (n/client-ssl?? pp server-cert args)
         (n/pp->last pp "1" (HttpClientCodec.))
         (n/pp->last pp "2"
                     (HttpObjectAggregator. 96000))
-        (n/pp->last pp "3" WebSocketClientCompressionHandler/INSTANCE)
+        (some->> (wsc-compressor wsock-compress)
+                 (n/pp->last pp "3"))
         (n/pp->last pp "4" (wsh<>))
-        (n/pp->last pp "5"
-                    (WebSocketFrameAggregator. max-frame-size))
-        (n/pp->last pp "6" h1/ws-monolith<>)
+        (if wsock-zero-copy?
+          (n/pp->last pp "6" (h1/ws-zero-copy<> args))
+          (do (n/pp->last pp "5"
+                          (WebSocketFrameAggregator. max-frame-size))
+              (n/pp->last pp "6" h1/ws-monolith<>)))
         (n/pp->last pp n/user-cb
                     (proxy [InboundHandler][]
                       (onRead [ctx _ msg] (user-cb msg))))))))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- udp-batcher
+
+  "Hand all datagrams of one read loop to batch-cb as a vector,
+  together with the channel.  They are released once it returns,
+  and replies written with .write are flushed together after,
+  so they go out in one batch."
+  ^ChannelHandler [batch-cb]
+
+  (let [bag (ArrayList.)]
+    (proxy [ChannelInboundHandlerAdapter][]
+      (channelRead [ctx msg] (.add bag msg))
+      (channelReadComplete [^ChannelHandlerContext ctx]
+        (when-not (.isEmpty bag)
+          (let [ch (.channel ctx)
+                ps (vec bag)]
+            (.clear bag)
+            (try (batch-cb ch ps)
+                 (catch Throwable e
+                   (c/exception e))
+                 (finally
+                   (doseq [p ps] (n/ref-del p))
+                   (.flush ch)))))
+        (.fireChannelReadComplete ctx))
+      (channelInactive [^ChannelHandlerContext ctx]
+        (doseq [p bag] (n/ref-del p))
+        (.clear bag)
+        (.fireChannelInactive ctx)))))
+
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn udp-inizor<>
 
-  "Initialize pipeline for UDP."
+  "Initialize pipeline for UDP.  With a batch-cb, datagrams
+  are handed over per read loop, rather than one by one."
   {:tag PipelineConfigurator
    :arglists '([args])}
-  [{:keys [user-cb] :as args}]
+  [{:keys [user-cb batch-cb] :as args}]
 
   (proxy [PipelineConfigurator][]
     (onInitChannel [pp]
-      (n/pp->last pp n/user-cb (n/app-handler user-cb)))))
+      (if (fn? batch-cb)
+        (n/pp->last pp n/user-cb (udp-batcher batch-cb))
+        (n/pp->last pp n/user-cb (n/app-handler user-cb))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- add-metrics
+
+  "Count connections and raw bytes, ahead of everything else."
+  [pp {:keys [^Metrics metrics]}]
+
+  (if metrics
+    (n/pp->last pp "metrics" (.handler metrics))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- web-ssl-inizor<>
@@ -275,6 +418,7 @@
              (h2/hx-pipeline pp args)))))]
     (proxy [PipelineConfigurator][]
       (onInitChannel [pp]
+        (add-metrics pp args)
         (n/server-ssl?? pp keyfile passwd args)
         (n/pp->last pp "svr-neg" (ssl-negotiator))))))
 
@@ -289,6 +433,7 @@
   (if (c/nichts? server-key)
     (proxy [PipelineConfigurator][]
       (onInitChannel [pp]
+        (add-metrics pp args)
         (h1/h1-pipeline pp args)))
     (web-ssl-inizor<> server-key args)))
 
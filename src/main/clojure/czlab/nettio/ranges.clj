@@ -21,7 +21,10 @@
             [czlab.basal.io :as i]
             [czlab.basal.core :as c :refer [n# is?]])
 
-  (:import [io.netty.channel ChannelHandlerContext]
+  (:import [io.netty.channel
+            FileRegion
+            DefaultFileRegion
+            ChannelHandlerContext]
            [io.netty.handler.stream ChunkedInput]
            [io.netty.handler.codec.http
             HttpHeaderNames
@@ -38,13 +41,13 @@
             Unpooled
             ByteBuf
             ByteBufAllocator]
+           [java.nio.channels FileChannel]
+           [java.nio.file OpenOption StandardOpenOption]
            [java.io
-            InputStream
             IOException
             Closeable
             File
-            RandomAccessFile
-            ByteArrayInputStream]))
+            RandomAccessFile]))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;(set! *warn-on-reflection* true)
@@ -65,9 +68,7 @@
   [obj] `(Long/valueOf (c/strim ~obj)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
-(c/defmacro- xfile?
-  [x]
-  `(condp instance? ~x File true RandomAccessFile true false))
+(c/def- chunk-size (* 2 c/FourK))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- cmpl
@@ -75,148 +76,141 @@
   ;(.compareTo (Long/valueOf a) b))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
-(defn- xfiles??
-  [src]
+(defn- fchannel??
+
+  "Get a file-channel to the source, if it is a file."
+  ^FileChannel [src]
+
   (c/condp?? instance? src
-    File [(RandomAccessFile. ^File src "r") (i/fsize src)]
-    RandomAccessFile [src (.length ^RandomAccessFile src)]))
+    File (FileChannel/open (.toPath ^File src)
+                           (into-array OpenOption
+                                       [StandardOpenOption/READ]))
+    RandomAccessFile (.getChannel ^RandomAccessFile src)
+    FileChannel src))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defrecord ByteRangeChunk [])
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
-(defn- ck-readable-bytes
-  [r]
-  (- (ck-size r) (c/mu-int (:range-pos r))))
+(defn- part-size
+
+  "Size of the chunk on the wire, preamble included."
+  ^long [r]
+
+  (+ (alength ^bytes (:preamble r)) (ck-size r)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
-(defn- has-next?
-  [rgObj]
-  (let [{:keys [ranges
-                current]} rgObj
-        cur (c/mu-int current)]
-    (and (< cur (n# ranges))
-         (pos? (ck-readable-bytes (nth ranges cur))))))
+(defn- read-bytes
+
+  "Serve the next range as a slice of the source,
+  nothing is copied."
+  ^ByteBuf [rgObj]
+
+  (let [{:keys [ranges source
+                current bytes-read]} rgObj
+        cur (c/mu-int current)
+        {:keys [^bytes preamble start]
+         :as r} (nth ranges cur)
+        body (Unpooled/wrappedBuffer ^bytes source
+                                     (int start)
+                                     (int (ck-size r)))]
+    (c/mu-int current (+ 1 cur))
+    (c/mu-long bytes-read + (part-size r))
+    (if (zero? (alength preamble))
+      body
+      (Unpooled/wrappedBuffer
+        (into-array ByteBuf
+                    [(Unpooled/wrappedBuffer preamble) body])))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
-(defn- ck-pack
-  [rg out offset]
-  (letfn
-    [(ck-read [r out pos len]
-       (let [{:keys [start range-pos source]} r
-             t (+ start (c/mu-int range-pos))]
-         (condp instance? source
-           InputStream
-           (let [s (c/cast? InputStream source)]
-             (.reset s)
-             (.skip s t)
-             (.read s out pos len))
-           RandomAccessFile
-           (let [f (c/cast? RandomAccessFile source)]
-             (.seek f t)
-             (.read f out pos len))
-           -1)))]
-    (let
-      [{:keys [preamble preamble-pos]} rg
-       pos (c/mu-int* offset)
-       plen (n# preamble)
-       bfsz (n# out)
-       cnt (c/mu-int* 0)
-       ppos (c/mu-int* (c/mu-int preamble-pos))]
-      (while (and (< (c/mu-int pos) bfsz)
-                  (< (c/mu-int ppos) plen))
-        (aset ^bytes out
-              (c/mu-int pos)
-              (aget ^bytes preamble (c/mu-int ppos)))
-        (c/mu-int ppos + 1)
-        (c/mu-int pos + 1)
-        (c/mu-int cnt + 1))
-      ;update pos
-      (c/mu-int preamble-pos (c/mu-int ppos))
-      (when (< (c/mu-int pos) bfsz)
-        (let [r (ck-readable-bytes rg)
-              d (- bfsz (c/mu-int pos))
-              len (if (> r d) d r)
-              c (ck-read rg out (c/mu-int pos) (int len))
-              {:keys [start range-pos length]} rg]
-          (u/assert-IOE (not (neg? c))
-                        "error reading file: length=%s, seek=%s"
-                        length
-                        (+ start (c/mu-int range-pos)))
-          (c/mu-int range-pos + c)
-          (c/mu-int cnt + c)))
-      (c/mu-int cnt))))
+(defn- read-file
+
+  "Fill a pooled direct buffer from the file, using
+  positional reads, the buffer may span several ranges."
+  ^ByteBuf [rgObj ^ByteBufAllocator allocator]
+
+  (let [{:keys [ranges source
+                offset
+                current bytes-read]} rgObj
+        rlen (n# ranges)
+        ^FileChannel fc source
+        buf (.directBuffer allocator
+                           (int chunk-size) (int chunk-size))]
+    (try
+      (loop []
+        (let [cur (c/mu-int current)]
+          (when (and (< cur rlen)
+                     (.isWritable buf))
+            (let [{:keys [^bytes preamble start]
+                   :as r} (nth ranges cur)
+                  plen (alength preamble)
+                  off (c/mu-long offset)
+                  room (.writableBytes buf)]
+              (if (< off plen)
+                (let [n (min room (- plen off))]
+                  (.writeBytes buf preamble (int off) (int n))
+                  (c/mu-long offset + n))
+                (let [n (min room (- (part-size r) off))
+                      pos (+ (long start) (- off plen))
+                      c (.writeBytes buf fc pos (int n))]
+                  (u/assert-IOE (not (neg? c))
+                                "error reading file: length=%s, pos=%s"
+                                (:flen rgObj) pos)
+                  (c/mu-long offset + c)))
+              (when (>= (c/mu-long offset) (part-size r))
+                (c/mu-int current (+ 1 cur))
+                (c/mu-long offset 0))
+              (recur)))))
+      (c/mu-long bytes-read + (.readableBytes buf))
+      (c/debug "reading-chunk: read= %s." (c/mu-long bytes-read))
+      buf
+      (catch Throwable e
+        (.release buf) (throw e)))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defrecord HttpRangesObj []
   c/Finzable
   (finz [rgObj]
-    (assoc rgObj :finz? true))
+    (.close rgObj) rgObj)
   ChunkedInput
   (readChunk [_ ^ChannelHandlerContext ctx]
     (.readChunk _ (.alloc ctx)))
   (readChunk [me ^ByteBufAllocator allocator]
-    (let [buff (byte-array (* 2 c/FourK))
-          blen (alength buff)
-          {:keys [ranges
-                  bytes-read current]} me
-          rlen (n# ranges)
-          cnt (c/mu-int* 0)
-          cur (c/mu-int* (c/mu-int current))]
-      (while (and (< (c/mu-int cnt) blen)
-                  (< (c/mu-int cur) rlen))
-        (when-some [rg (nth ranges (c/mu-int cur))]
-          (c/debug "reading-chunk: range=%s - %s." (c/mu-int cur) rg)
-          (if (pos? (ck-readable-bytes rg))
-            (do (c/mu-int cnt
-                          + (ck-pack rg
-                                     buff (c/mu-int cnt)))
-                (c/debug "reading-chunk: count=%s." (c/mu-int cnt)))
-            (c/mu-int cur + 1))))
-      (c/mu-int current (c/mu-int cur))
-      (when (pos? (c/mu-int cnt))
-        (c/mu-int bytes-read + (c/mu-int cnt))
-        (c/debug "reading-chunk: count=%s.", (c/mu-int cnt))
-        (c/debug "reading-chunk: read= %s." (c/mu-int bytes-read))
-        (Unpooled/wrappedBuffer buff 0 (int (c/mu-int cnt))))))
-  (length [me] (c/mu-int (:total-bytes me)))
-  (progress [me] (c/mu-int (:bytes-read me)))
-  (isEndOfInput [me] (not (has-next? me)))
+    (when-not (.isEndOfInput me)
+      (if (bytes? (:source me))
+        (read-bytes me)
+        (read-file me allocator))))
+  (length [me] (c/mu-long (:total-bytes me)))
+  (progress [me] (c/mu-long (:bytes-read me)))
+  (isEndOfInput [me]
+    (>= (c/mu-int (:current me)) (n# (:ranges me))))
   (close [me]
-    (if-some [s (c/cast? Closeable (:source me))] (i/klose s)))
-  Object
-  (finalize [me] (when (:finz? me)
-                   (.close me)
-                   (c/debug "rangeObject finzed!"))))
+    (if-some [s (c/cast? Closeable (:source me))] (i/klose s))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- brange-chunk<>
 
-  [src cType start end]
+  [flen cType start end]
 
-  (let [[s ln] (cond (xfile? src) (xfiles?? src)
-                     (bytes? src) [(doto (i/istream src)
-                                     (.mark 0)) (c/n# src)]
-                     :else (u/throw-BadArg  "bad source"))]
-    (c/object<> ByteRangeChunk
-                :length ln
-                :source s
-                :preamble (byte-array 0)
-                :range-pos (c/mu-int* 0)
-                :preamble-pos (c/mu-int* 0)
-                :start start :end end :ctype cType)))
+  (c/object<> ByteRangeChunk
+              :length flen
+              :preamble (byte-array 0)
+              :start start :end end :ctype cType))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- brange-chunk<+>
 
-  [src ctype start end]
+  "A part of a multipart/byteranges body, all but the
+  first have their delimiter start with a CRLF."
+  [flen ctype start end first?]
 
   (let [{:as C
          :keys [ctype start end length]}
-        (brange-chunk<> src ctype start end)]
+        (brange-chunk<> flen ctype start end)]
     (assoc C
            :preamble
            (i/x->bytes (c/sbf+ (c/sbf<>)
+                               (if first? "" "\r\n")
                                "--"
                                DEF-BD
                                "\r\n"
@@ -225,6 +219,18 @@
                                "Content-Range: bytes "
                                start "-" end "/" length "\r\n\r\n")))))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- brange-end<>
+
+  "The close delimiter of a multipart/byteranges body,
+  as a part with no bytes of its own."
+  []
+
+  (c/object<> ByteRangeChunk
+              :length 0
+              :start 0 :end -1
+              :preamble (i/x->bytes (str "\r\n--" DEF-BD "--\r\n"))))
+
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- range-init
 
@@ -289,16 +295,20 @@
         (let
           [cs (sanitize-ranges rgObj chunks)
            many? (c/one+? cs)
-           {:keys [source ctype]} rgObj
-           R (mapv #(let
-                      [{:keys [start end]} %]
-                      (if-not many?
-                        (brange-chunk<> source ctype start end)
-                        (brange-chunk<+> source ctype start end))) cs)]
+           {:keys [flen ctype]} rgObj
+           R (cond-> (into []
+                           (map-indexed
+                             #(let
+                                [{:keys [start end]} %2]
+                                (if-not many?
+                                  (brange-chunk<> flen ctype start end)
+                                  (brange-chunk<+> flen ctype
+                                                   start end (zero? %1))))) cs)
+               many? (conj (brange-end<>)))]
           (u/assert-BadData (not-empty R) "Invalid byte ranges")
-          (assoc rgObj
-                 :ranges R
-                 :total-bytes (c/mu-int* (calc-all rgObj))))))))
+          (let [rgObj (assoc rgObj :ranges R)]
+            (assoc rgObj
+                   :total-bytes (c/mu-long* (calc-all rgObj)))))))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn fmt-error
@@ -331,10 +341,27 @@
         (.set ^HttpHeaders hds
               (n/h1hdr* CONTENT_RANGE)
               (str (n/h1hdv* BYTES)
-                   " " start "-" end "/" flen))
-        (.set ^HttpHeaders hds
-              (n/h1hdr* CONTENT_TYPE)
-              (str "multipart/byteranges; boundary=" DEF-BD))))))
+                   " " start "-" end "/" flen)))
+      (.set ^HttpHeaders hds
+            (n/h1hdr* CONTENT_TYPE)
+            (str "multipart/byteranges; boundary=" DEF-BD)))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn file-region??
+
+  "If this is a single range over a file, return
+  the range as a zero-copy file region."
+  {:tag FileRegion
+   :arglists '([rgObj])}
+  [rgObj]
+
+  (let [{:keys [ranges source]} rgObj]
+    (when (c/one? ranges)
+      (if-some [fc (c/cast? FileChannel source)]
+        (let [{:keys [start end]} (c/_1 ranges)]
+          (DefaultFileRegion. fc
+                              (long start)
+                              (long (+ 1 (- end start)))))))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn http-ranges<>
@@ -350,19 +377,26 @@
    (c/debug "range= %s, type= %s, source= %s." range cType source)
    (when (c/matches? range "^\\s*bytes=[0-9,-]+")
      (u/try!!!
-       (let [[s ln] (cond (xfile? source) (xfiles?? source)
-                          (bytes? source) [source (n# source)]
-                          :else (u/throw-BadArg "bad source"))]
+       (let [[s ln] (if (bytes? source)
+                      [source (n# source)]
+                      (if-some [fc (fchannel?? source)]
+                        [fc (.size fc)]
+                        (u/throw-BadArg "bad source")))
+             rg (c/object<> HttpRangesObj
+                            :ranges nil
+                            :flen ln
+                            :source s
+                            :ctype cType
+                            :offset (c/mu-long* 0)
+                            :bytes-read (c/mu-long* 0)
+                            :current (c/mu-int)
+                            :total-bytes (c/mu-long* 0))]
          (c/debug "file-range-object: len = %s, source = %s." ln s)
-         (range-init (c/object<> HttpRangesObj
-                                 :ranges nil
-                                 :flen ln
-                                 :source s
-                                 :finz? false
-                                 :ctype cType
-                                 :bytes-read (c/mu-int)
-                                 :current (c/mu-int)
-                                 :total-bytes (c/mu-int)) range))))))
+         (try
+           (or (range-init rg range)
+               (do (c/finz rg) nil))
+           (catch Throwable e
+             (c/finz rg) (throw e))))))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;EOF
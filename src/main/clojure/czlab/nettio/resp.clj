@@ -27,17 +27,38 @@
             [czlab.nettio.http :as h1]
             [czlab.nettio.ranges :as nr])
 
-  (:import [io.netty.channel ChannelFuture Channel ChannelHandlerContext]
+  (:import [io.netty.channel
+            Channel
+            FileRegion
+            ChannelFuture
+            DefaultFileRegion
+            ChannelHandlerContext]
            [io.netty.buffer Unpooled ByteBuf ByteBufAllocator]
-           [java.io IOException File InputStream]
+           [java.io
+            File
+            IOException
+            InputStream
+            ByteArrayOutputStream]
+           [java.util.zip
+            GZIPOutputStream
+            DeflaterOutputStream]
+           [java.nio.file
+            Files
+            StandardCopyOption]
+           [java.util.concurrent
+            Executors
+            ExecutorService
+            ConcurrentHashMap]
+           [io.netty.util.concurrent DefaultThreadFactory]
            [io.netty.util ReferenceCountUtil]
            [clojure.lang APersistentVector]
            [java.nio.charset Charset]
            [java.net HttpCookie URL]
-           [java.util Date]
+           [java.util Date Map Map$Entry LinkedHashMap Collections]
            [czlab.basal XData]
-           [czlab.niou Headers DateUtil]
+           [czlab.niou DateUtil]
            [czlab.niou.core WsockMsg Http1xMsg HttpResultMsg]
+           [czlab.nettio BodyStream FileCache FileCache$Entry NettyHeaders]
            [czlab.nettio.ranges HttpRangesObj]
            [io.netty.handler.codec.http.cookie
             Cookie
@@ -47,6 +68,8 @@
             DefaultHttpHeaders
             FullHttpResponse
             HttpChunkedInput
+            DefaultLastHttpContent
+            HttpServerCodec
             HttpVersion
             HttpUtil
             HttpMessage
@@ -89,7 +112,7 @@
   {:pre [(or (nil? status)
              (number? status))]}
   (c/object<> HttpResultMsg
-              :headers (Headers.)
+              :headers (NettyHeaders. (DefaultHttpHeaders.))
               :request theReq
               :cookies {}
               :protocol (.text HttpVersion/HTTP_1_1)
@@ -141,11 +164,21 @@
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn etag-file
 
-  "ETag based on a file object."
-  ^String [in]
+  "ETag based on a file object, taken from
+  the file cache if one is given."
+  {:tag String
+   :arglists '([in]
+               [in cache])}
 
-  (if-some [f (io/file in)]
-    (format "\"%s-%s\"" (.lastModified f) (.hashCode f))))
+  ([in]
+   (if-some [f (io/file in)]
+     (format "\"%s-%s\"" (.lastModified f) (.hashCode f))))
+
+  ([in cache]
+   (if-some [e (some-> ^FileCache cache
+                       (.get (io/file in)))]
+     (.etag ^FileCache$Entry e)
+     (etag-file in))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (c/defmacro- code-ok?
@@ -244,8 +277,10 @@
           (let [t (DateUtil/parseHttpDate hd -1)]
             (if (and (c/spos? lastMod)
                      (c/spos? t)
-                     (> lastMod t)) [code body] [pc g]))
-          (not= hd eTag) [code body] :else [pc g])))
+                     (> lastMod t))
+              (do (c/finz g) [code body]) [pc g]))
+          (not= hd eTag)
+          (do (c/finz g) [code body]) :else [pc g])))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- encode-cookies
@@ -260,6 +295,261 @@
              (u/throw-BadArg "Bad cookie"))]
        (conj! %1 (.encode ServerCookieEncoder/STRICT c))) cookies))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(c/def- compress-dft
+  {:precompressed? true
+   :generate? false
+   :cache-dir nil
+   :dynamic? true
+   :min-size 1024
+   :max-size (* 64 c/MegaBytes)
+   :encodings ["gzip" "deflate"]
+   :types ["text/"
+           "application/json"
+           "application/javascript"
+           "application/xml"
+           "application/xhtml+xml"
+           "image/svg+xml"]})
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(c/def- enc-exts {"gzip" ".gz" "deflate" ".deflate"})
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;how many variants to remember, and how long before
+;;the file is looked at again for a change
+(c/def- variants-max 1024)
+(c/def- variants-ttl 1000)
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- drop-variant
+
+  "Delete the copy, if it was one we made."
+  [{:keys [^File file gen?]}]
+
+  (if gen? (c/try! (.delete file))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;path|encoding => {:mtime :file :gen? :checked}, least
+;;recently used go first, taking their copy with them
+(c/def- ^Map variants
+  (Collections/synchronizedMap
+    (proxy [LinkedHashMap] [64 0.75 true]
+      (removeEldestEntry [^Map$Entry e]
+        (c/do-with [full? (> (.size ^Map this) variants-max)]
+          (if full? (drop-variant (.getValue e))))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- compress-cfg
+
+  "The compression settings for this reply, nil if
+  turned off or the body is already encoded."
+  [res ^Channel socket]
+
+  (let [{:keys [compress temp-dir]} (n/chcfg?? socket)]
+    (if (and (map? compress)
+             (not (cc/msg-header? res "content-encoding")))
+      (merge compress-dft
+             {:cache-dir temp-dir} compress))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- compressible?
+
+  "Is this content-type on the allow list?"
+  [{:keys [types]} ctype]
+
+  (if-some [ct (some-> ctype c/lcase)]
+    (and (not (mm/is-compressed? ct))
+         (boolean (some #(cs/starts-with? ct %) types)))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn accept-encoding
+
+  "Pick the encoding the client likes best, by q-value,
+  ties going to the order given, nil if none is acceptable."
+  {:arglists '([ae encs])}
+  [ae encs]
+
+  (if (c/hgl? ae)
+    (let [qs (reduce
+               #(let [[n & ps] (c/split %2 ";")
+                      q (some (fn [p]
+                                (if-some [[_ v] (re-matches #"\s*[qQ]\s*=\s*([0-9.]+)\s*" p)]
+                                  (c/try! (Double/parseDouble v)))) ps)]
+                  (assoc %1 (c/lcase (c/strim n)) (or q 1.0))) {} (c/split ae ","))
+          star (get qs "*" 0.0)]
+      (some->> encs
+               (map #(vector % (get qs % star)))
+               (filter #(pos? (second %)))
+               (sort-by second >)
+               first
+               first))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- encoder<>
+
+  ^DeflaterOutputStream [enc out]
+
+  (if (= "gzip" enc)
+    (GZIPOutputStream. out)
+    (DeflaterOutputStream. out)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- gen-variant
+
+  "Compress the file into the cache dir, the name is tied to
+  the file's path and time-stamp so a change gets a new copy."
+  ^File [^File f lm enc dir]
+
+  (let [dir (io/file dir)
+        out (io/file dir
+                     (format "%s.%x.%d%s"
+                             (.getName f)
+                             (.hashCode (.getCanonicalPath f))
+                             (long lm) (enc-exts enc)))]
+    (when-not (.isFile out)
+      (let [tmp (File/createTempFile "czlab" "tmp" dir)]
+        (try (with-open [in (io/input-stream f)
+                         os (encoder<> enc (io/output-stream tmp))]
+               (io/copy in os))
+             (Files/move (.toPath tmp)
+                         (.toPath out)
+                         (into-array StandardCopyOption
+                                     [StandardCopyOption/ATOMIC_MOVE
+                                      StandardCopyOption/REPLACE_EXISTING]))
+             (finally (.delete tmp)))))
+    out))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;copies are made off the event loop, one at a time
+(c/def- variant-maker
+  (delay (Executors/newSingleThreadExecutor
+           (DefaultThreadFactory. "nettio-variants" true))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- make-variant
+
+  "Make the copy in the background, it is served once made,
+  as long as the file has not changed in the meantime."
+  [k ^File f lm enc dir]
+
+  (.execute ^ExecutorService @variant-maker
+            #(when-some [out (c/try! (gen-variant f lm enc dir))]
+               (let [ok? (locking variants
+                           (when (== (long lm)
+                                     (long (or (:mtime (.get variants k)) -1)))
+                             (.put variants
+                                   k
+                                   {:mtime lm
+                                    :file out
+                                    :gen? true
+                                    :checked (System/currentTimeMillis)})
+                             true))]
+                 (if-not ok? (c/try! (.delete ^File out)))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- file-variant
+
+  "A compressed copy of the file, either a sibling (.gz, .deflate)
+  which is not older than the file, or one made on demand, in the
+  background, the file going out as is till then.  The file is
+  looked at again for a change at most once a second, a change
+  replaces the copy, and the one we made is deleted."
+  ^File [^File f enc ctype
+         {:keys [precompressed? generate?
+                 cache-dir min-size max-size] :as cfg}]
+
+  (let [k (str (.getPath f) "|" enc)
+        now (System/currentTimeMillis)
+        {:keys [mtime file checked] :as v} (.get variants k)]
+    (cond (and v
+               (< (- now (long checked)) variants-ttl))
+          file
+          (and v
+               (== (long mtime) (.lastModified f)))
+          (do (.put variants k (assoc v :checked now)) file)
+          :else
+          (let [lm (.lastModified f)
+                sib (io/file (str (.getPath f) (enc-exts enc)))
+                sib? (and precompressed?
+                          (.isFile sib)
+                          (>= (.lastModified sib) lm))
+                gen? (and (not sib?)
+                          generate?
+                          cache-dir
+                          (<= (long min-size)
+                              (.length f)
+                              (long (or max-size Long/MAX_VALUE)))
+                          (compressible? cfg ctype))
+                out (if sib? sib)]
+            (some-> v drop-variant)
+            (.put variants
+                  k
+                  {:mtime lm
+                   :file out
+                   :checked now
+                   :gen? false})
+            (if gen? (make-variant k f lm enc cache-dir))
+            out))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- deflate-bytes
+
+  "Compress a dynamic body, returns nil if it didn't shrink."
+  [enc ^bytes body]
+
+  (let [baos (ByteArrayOutputStream. (max 64 (quot (alength body) 3)))]
+    (with-open [os (encoder<> enc baos)]
+      (.write os body))
+    (if (< (.size baos) (alength body)) (.toByteArray baos))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- etag-enc
+
+  "Each encoding is its own representation, so give it its own ETag."
+  [etag enc]
+
+  (if (and enc
+           (c/hgl? etag)
+           (cs/ends-with? etag "\""))
+    (str (subs etag 0 (dec (count etag))) "-" enc "\"") etag))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- zero-copy?
+
+  "Can file content be sent as a FileRegion,
+  i.e. plain http 1.x without ssl?"
+  [^Channel ch]
+
+  (let [pp (.pipeline ch)]
+    (and (nil? (n/get-ssl?? pp))
+         (some? (.get pp HttpServerCodec)))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- file-error
+
+  "404 if the file is not there, 500 if it cannot be read,
+  else nil - rather than send it out as an empty 200."
+  [^File f]
+
+  (cond (not (.isFile f)) 404
+        (not (.canRead f)) 500))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- skip-body?
+
+  "The reply is going out before the streamed body was read in
+  full.  Can the rest of it be read off and dropped, keeping the
+  connection, or is too much left, or not known how much?"
+  [^BodyStream bs request ^Channel socket]
+
+  (or (.isComplete bs)
+      (let [clen (c/s->long (cc/msg-header request "content-length") -1)
+            {:keys [stream-buf-size]} (n/chcfg?? socket)]
+        (and (>= clen 0)
+             (<= (- clen (.receivedBytes bs))
+                 (long (or stream-buf-size
+                           (* 64 c/KiloBytes))))))))
+
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- replyer<>
 
@@ -284,6 +574,12 @@
           {:keys [headers last-mod etag cookies] :as cfg} res
           {:keys [keep-alive?
                   ^Channel socket request-method]} request
+          ;;a streamed body the app may not have read in full
+          ^BodyStream
+          bs (c/cast? BodyStream (:body request))
+          keep-alive? (and keep-alive?
+                           (or (nil? bs)
+                               (skip-body? bs request socket)))
           ;^Channel ch (:socket req)
           ;method (:method req)
           cs (u/charset?? charset)
@@ -293,10 +589,43 @@
           conds (zmap-headers request conds-hds)
           rhds (zmap-headers res resp-hds)
           cType (get-in rhds [:ctype :value])
+          zcfg (if (code-ok? status)
+                 (compress-cfg res socket))
+          ae (if zcfg
+               (accept-encoding (cc/msg-header request "accept-encoding")
+                                (:encodings zcfg)))
+          ;;a file may have a compressed copy, pick it before
+          ;;the ranges are worked out, ranges apply to the copy
+          vary? (and zcfg (c/is? File body0))
+          fv (if (and vary? ae)
+               (file-variant body0 ae cType zcfg))
+          [body0 enc] (if fv [fv ae] [body0 nil])
+          ;;small hot files are served from memory, no stat needed
+          ^FileCache$Entry
+          ent (if (c/is? File body0)
+                (some-> ^FileCache
+                        (:fcache (n/chcfg?? socket)) (.get ^File body0)))
+          ;;not cached, so make sure it is there to be sent
+          ferr (if (and (nil? ent)
+                        (c/is? File body0)) (file-error body0))
+          [status body0] (if ferr [ferr nil] [status body0])
+          etag (etag-enc (or etag (some-> ent .etag)) enc)
+          ;;a body to be compressed on the fly is tagged as such,
+          ;;so that the checks below see the tag the client has
+          etag0 etag
+          etag (if (and zcfg ae
+                        (nil? enc)
+                        (:dynamic? zcfg)
+                        (bytes? body0)
+                        (>= (count body0) (:min-size zcfg))
+                        (compressible? zcfg cType))
+                 (etag-enc etag ae) etag)
+          last-mod (or last-mod (some-> ent .lastModified))
           [status body]
           (if (code-ok? status)
             (if-range? etag last-mod status cType body0 conds)
             [status body0])
+          rg0 (c/cast? HttpRangesObj body)
           [status body]
           (if (code-ok? status)
             (if-match? request-method etag status body conds)
@@ -317,17 +646,42 @@
           (if (and (= :head request-method)
                    (code-ok? status))
             [status nil] [status body])
+          dyn? (and zcfg
+                    (nil? enc)
+                    (:dynamic? zcfg)
+                    (bytes? body)
+                    (>= (count body) (:min-size zcfg))
+                    (compressible? zcfg cType))
+          vary? (or vary? dyn?)
+          zb (if (and dyn? ae)
+               (deflate-bytes ae body))
+          [body enc] (if zb [zb ae] [body enc])
+          ;;a representation of its own, so its own tag
+          etag (if-not zb etag0 etag)
           rangeRef
-          (if-some
-            [ro (c/cast? HttpRangesObj body)] (c/finz ro))
+          (c/cast? HttpRangesObj body)
+          _ (if (and rg0
+                     (not (identical? rg0 rangeRef))) (c/finz rg0))
+          zc? (zero-copy? socket)
+          fr (if (and zc? rangeRef)
+               (nr/file-region?? rangeRef))
           [body clen]
           (cond (c/is? InputStream body)
                 [(HttpChunkedInput.
                    (ChunkedStream. ^InputStream body)) -1]
+                fr
+                [fr (.count fr)]
                 rangeRef
-                [(HttpChunkedInput. ^ChunkedInput body) -1] ;(.length ^ChunkedInput body)]
+                [(HttpChunkedInput. ^ChunkedInput body) (.length ^ChunkedInput body)]
                 (bytes? body)
                 [body (count body)]
+                (and ent
+                     (identical? body body0))
+                [ent (.length ent)]
+                (and zc?
+                     (c/is? File body))
+                (let [n (.length ^File body)]
+                  [(DefaultFileRegion. ^File body 0 n) n])
                 (c/is? File body)
                 [(HttpChunkedInput. (ChunkedNioFile. ^File body)) -1];(.length ^File body)]
                 (nil? body)
@@ -335,6 +689,9 @@
                 :else
                 (u/throw-IOE "Unsupported result content"))
           _ (c/debug "body = %s." body)
+          ;;a cache hit has its header values encoded already
+          ^FileCache$Entry
+          hit (c/cast? FileCache$Entry body)
           [rsp body]
           (cond (bytes? body)
                 [(n/http-reply<+> status body (.alloc socket)) nil]
@@ -346,7 +703,16 @@
                 :else
                 [(n/http-reply<> status) body])
           hds (.set (.headers ^HttpMessage rsp)
-                    (h1/std->headers headers))]
+                    (h1/std->headers headers))
+          _ (n/date-stamp rsp)]
+      (if (and vary?
+               (not (some-> (.get hds (n/h1hdr* VARY))
+                            c/lcase
+                            (cs/includes? "accept-encoding"))))
+        (.add hds (n/h1hdr* VARY) "Accept-Encoding"))
+      (if (and enc
+               (code-ok? status))
+        (.set hds (n/h1hdr* CONTENT_ENCODING) enc))
       (cond (== status 416)
             (nr/fmt-error hds body0)
             rangeRef
@@ -355,11 +721,14 @@
       (c/debug "body-len = %s." clen)
       (if-not (zero? clen)
         (->> (and body
+                  (c/sneg? clen)
                   (not (c/is? FullHttpResponse rsp)))
              boolean
              (HttpUtil/setTransferEncodingChunked rsp )))
       (if-not (c/sneg? clen)
-        (HttpUtil/setContentLength rsp clen))
+        (if hit
+          (.set hds (n/h1hdr* CONTENT_LENGTH) (.lengthHeader hit))
+          (HttpUtil/setContentLength rsp clen)))
       (if (c/sneg? clen)
         (HttpUtil/setKeepAlive rsp false)
         (HttpUtil/setKeepAlive rsp keep-alive?))
@@ -373,20 +742,82 @@
                (not (get-in rhds [:last-mod :has?])))
         (.set hds
               (n/h1hdr* LAST_MODIFIED)
-              (DateUtil/formatHttpDate ^long last-mod)))
+              (if (and hit
+                       (== last-mod (.lastModified hit)))
+                (.lastModifiedHeader hit)
+                (DateUtil/asciiHttpDate ^long last-mod))))
       (if (and (c/hgl? etag)
                (not (get-in rhds [:etag :has?])))
-        (.set hds (n/h1hdr* ETAG) etag))
-      (let [c? (HttpUtil/isKeepAlive rsp)
-            cf (if (nil? body)
-                 (do (c/debug "reply has no chunked body, write and flush %s." rsp)
-                     (.writeAndFlush socket rsp))
-                 (do (c/debug "reply has chunked body, write and flush %s." rsp)
-                     (.write socket rsp)
-                     (c/debug "reply body, write and flush body: %s." body)
-                     (.writeAndFlush socket body)))]
-        (c/debug "resp replied, keep-alive? = %s." c?)
-        (n/cf-close cf c?)))))
+        (.set hds
+              (n/h1hdr* ETAG)
+              (if (and hit
+                       (= etag (.etag hit)))
+                (.etagHeader hit) etag)))
+      (if (and zb
+               (get-in rhds [:etag :has?]))
+        (.set hds
+              (n/h1hdr* ETAG)
+              (etag-enc (.get hds (n/h1hdr* ETAG)) ae)))
+      (if (and ent
+               (nil? enc)
+               (some? body)
+               (some? (.contentType ent))
+               (not (get-in rhds [:ctype :has?])))
+        (.set hds (n/h1hdr* CONTENT_TYPE) (.contentType ent)))
+      (h1/reply-in-order
+        request
+        #(let [c? (HttpUtil/isKeepAlive rsp)
+               cf (cond
+                    (nil? body)
+                    (do (c/debug "reply has no chunked body, write and flush %s." rsp)
+                        (.writeAndFlush socket rsp))
+                    (c/is? FileRegion body)
+                    (do (c/debug "reply has file region, write and flush %s." rsp)
+                        (.write socket rsp)
+                        (.write socket body)
+                        (n/write-last-content socket true))
+                    (c/is? FileCache$Entry body)
+                    (let [^File f body0
+                          b (.content ^FileCache$Entry body)]
+                      (c/debug "reply has cached file, write and flush %s." rsp)
+                      (if (some? b)
+                        ;;as http content, h2 via the http->h2 adapter too
+                        (do (.write socket rsp)
+                            (.writeAndFlush socket (DefaultLastHttpContent. b)))
+                        ;;dropped since, go back to the file as it is now
+                        (if-some [ec (file-error f)]
+                          (do (.setStatus ^HttpResponse rsp
+                                          (HttpResponseStatus/valueOf (int ec)))
+                              (HttpUtil/setContentLength rsp 0)
+                              (.remove hds (n/h1hdr* ETAG))
+                              (.remove hds (n/h1hdr* LAST_MODIFIED))
+                              (.remove hds (n/h1hdr* CONTENT_TYPE))
+                              (.write socket rsp)
+                              (n/write-last-content socket true))
+                          (let [n (.length f)]
+                            (HttpUtil/setContentLength rsp n)
+                            (when (not= (.lastModified f)
+                                        (.lastModified ^FileCache$Entry body))
+                              (.remove hds (n/h1hdr* ETAG))
+                              (.remove hds (n/h1hdr* LAST_MODIFIED)))
+                            (.write socket rsp)
+                            (if zc?
+                              (do (.write socket (DefaultFileRegion. f 0 n))
+                                  (n/write-last-content socket true))
+                              (->> (ChunkedNioFile. f)
+                                   HttpChunkedInput.
+                                   (.writeAndFlush socket)))))))
+                    :else
+                    (do (c/debug "reply has chunked body, write and flush %s." rsp)
+                        (.write socket rsp)
+                        (c/debug "reply body, write and flush body: %s." body)
+                        (.writeAndFlush socket body)))]
+           (c/debug "resp replied, keep-alive? = %s." c?)
+           ;;no one is reading the body any more, drop the rest
+           (if bs (n/cf-cb cf (fn [_] (.close bs))))
+           (n/cf-close cf c?)
+           (n/replied request status cf)
+           cf)))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;EOF
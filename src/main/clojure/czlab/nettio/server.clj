@@ -21,12 +21,20 @@
             [czlab.basal.core :as c]
             [czlab.basal.util :as u]
             [czlab.basal.io :as i]
+            [czlab.niou.mime :as mm]
+            [czlab.niou.core :as cc]
+            [czlab.nettio.resp :as nr]
             [czlab.niou.routes :as cr]
             [czlab.nettio.core :as n]
             [czlab.nettio.iniz :as z])
 
   (:import [io.netty.handler.logging LogLevel LoggingHandler]
-           [czlab.nettio H1DataFactory]
+           [czlab.nettio DateClock FileCache H1DataFactory Metrics Metrics$Route]
+           [czlab.niou.core Http2xMsg]
+           [czlab.niou Headers]
+           [czlab.basal XData]
+           [java.util.function Function]
+           [java.util.concurrent ExecutorService]
            [java.net URL InetAddress]
            [io.netty.bootstrap
             Bootstrap
@@ -35,6 +43,7 @@
            [io.netty.channel
             EventLoopGroup
             ChannelOption
+            FixedRecvByteBufAllocator
             Channel
             ChannelHandler
             ChannelHandlerContext]))
@@ -47,12 +56,38 @@
 
   [{:keys [channel] :as server}]
 
-  (let [^Channel ch (nth channel 0)]
+  (doseq [^Channel ch channel]
     (when (some-> ch .isOpen)
       (c/try! (.close ch)
-              (c/debug "stopped channel: %s." ch)))
-    (-> (dissoc server :host :port)
-        (assoc :impl nil :channel nil :started? false))))
+              (c/debug "stopped channel: %s." ch))))
+  (-> (dissoc server :host :port)
+      (assoc :impl nil :channel nil :started? false)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(c/def- prom-ctype "text/plain; version=0.0.4; charset=utf-8")
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- metrics-cb
+
+  "Answer a GET on the metrics path with Prometheus
+  text, pass everything else on to the application."
+  [^Metrics m path user-cb]
+
+  (fn [msg]
+    (if-not (and (= path (:uri msg))
+                 (= :get (:request-method msg)))
+      (user-cb msg)
+      (let [txt (.prometheus m)]
+        (cc/reply-result
+          (if (c/is? Http2xMsg msg)
+            (assoc msg
+                   :status 200
+                   :body (XData. txt)
+                   :headers (doto (Headers.)
+                              (.set "content-type" prom-ctype)))
+            (-> (cc/http-result msg)
+                (cc/res-header-set "content-type" prom-ctype)
+                (cc/res-body-set txt))))))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- build<tcp>
@@ -67,6 +102,15 @@
                 rcv-buf
                 options
                 temp-dir
+                file-cache
+                exec-mode
+                exec-pool
+                transport
+                reuse-port?
+                tuning
+                metrics?
+                metrics-path
+                user-cb
                 inizor
                 backlog
                 max-msg-size
@@ -74,6 +118,21 @@
                 max-frame-size]}
         (merge {:max-frame-size (* 32 c/MegaBytes)
                 :max-msg-size Integer/MAX_VALUE
+                :max-pipeline-depth 16
+                :compress {}
+                :file-cache nil
+                :exec-mode :inline
+                :wsock-compress {}
+                :wsock-zero-copy? false
+                :wsock-fragments? false
+                :exec-pool {}
+                :transport nil
+                :reuse-port? false
+                :tuning nil
+                :metrics? true
+                :metrics-path nil
+                :stream-buf-size (* 64 c/KiloBytes)
+                :max-field-size c/MegaBytes
                 :temp-dir (i/file-repo)
                 :backlog c/KiloBytes
                 :threads 0
@@ -82,12 +141,44 @@
                 :rcv-buf (* 2 c/MegaBytes)
                 :max-mem-size i/*membuf-limit*} (:args server))
          args' (dissoc args' :routes :options)
+         args' (if (map? file-cache)
+                 (let [{:keys [max-bytes max-entry]
+                        :or {max-bytes (* 64 c/MegaBytes)
+                             max-entry c/MegaBytes}} file-cache]
+                   (->> (reify Function
+                          (apply [_ f] (mm/guess-content-type f)))
+                        (FileCache. max-bytes max-entry)
+                        (assoc args' :fcache))) args')
+         ;;created on first use, a route may ask
+         ;;for a mode the server does not default to
+         args' (assoc args'
+                      :executors
+                      {:virtual (delay (n/executor<> :virtual exec-pool))
+                       :pool (delay (n/executor<> :pool exec-pool))})
+         ;;but fail now, not on the first request
+         _ (some-> (get-in args' [:executors exec-mode]) deref)
+         args' (if-not metrics?
+                 args'
+                 (let [m (Metrics.)]
+                   (assoc args'
+                          :metrics m
+                          :user-cb (if (and user-cb
+                                            (c/hgl? metrics-path))
+                                     (metrics-cb m metrics-path user-cb) user-cb))))
          boss (if (pos? boss) boss 1)
          threads (if (pos? threads) threads 0)
          bs (ServerBootstrap.)
          hdlr (inizor args')
-         [^EventLoopGroup gb z] (n/group+channel boss :tcps)
-         [^EventLoopGroup gw _] (n/group+channel threads :tcps)]
+         [^EventLoopGroup gw z tp] (n/group+channel threads :tcps transport)
+         ;;a listener per worker loop, each accepting
+         ;;on its own, no boss group to funnel through
+         multi? (and reuse-port? (not= :nio tp))
+         ^EventLoopGroup
+         gb (if multi? gw (first (n/group+channel boss :tcps tp)))
+         nsocks (if multi?
+                  (count (iterator-seq (.iterator gw))) 1)]
+    (if (and reuse-port? (not multi?))
+      (c/info "reuse-port needs epoll or io_uring, one listener."))
     (n/config-disk-files true (u/fpath temp-dir))
     (if (pos? threads)
       (c/info "threads=%s." threads)
@@ -102,9 +193,16 @@
                                 [:SO_REUSEADDR true
                                  :SO_BACKLOG (int backlog)]))]
       (.option bs (n/chopt* k) v))
+    (if multi?
+      (.option bs (n/tpopt* tp :SO_REUSEPORT) true))
+    (doseq [[o v] (n/tuning tp tuning :server)]
+      (.option bs ^ChannelOption o v))
+    (doseq [[o v] (n/tuning tp tuning :child)]
+      (.childOption bs ^ChannelOption o v))
 
     (.group bs gb gw)
     (.channel bs z)
+    (DateClock/start gw)
     (.childHandler bs ^ChannelHandler hdlr)
     (.handler bs (LoggingHandler. LogLevel/DEBUG))
 
@@ -122,7 +220,7 @@
 
     (try (assoc server
                 :impl bs
-                :channel (object-array 1))
+                :channel (object-array nsocks))
          (finally
            (c/debug "web-server implemented - ok.")))))
 
@@ -132,20 +230,28 @@
   [server options]
 
   (letfn
-    [(ssvr [^ServerBootstrap bs host port]
+    [(ssvr [^ServerBootstrap bs host port left]
        (let [^H1DataFactory
              dfac (.. bs config
                       childAttrs (get n/dfac-key))
              ip (if (c/nichts? host)
                   (InetAddress/getLocalHost)
                   (InetAddress/getByName host))
+             {:keys [^FileCache fcache executors]}
+             (.. bs config childAttrs (get n/chcfg-key))
+             ;;only once the last listener is gone
              quit #(do %1
-                       (c/try! (some-> dfac .cleanAllHttpData))
-                       (c/try! (.. bs config
-                                   childGroup shutdownGracefully))
-                       (c/try! (.. bs config
-                                   group shutdownGracefully))
-                       (c/debug "server @ip %s stopped." host))]
+                       (when (zero? (swap! left dec))
+                         (c/try! (some-> dfac .cleanAllHttpData))
+                         (c/try! (some-> fcache .close))
+                         (doseq [d (vals executors)
+                                 :when (realized? d)]
+                           (c/try! (some-> ^ExecutorService @d .shutdown)))
+                         (c/try! (.. bs config
+                                     childGroup shutdownGracefully))
+                         (c/try! (.. bs config
+                                     group shutdownGracefully))
+                         (c/debug "server @ip %s stopped." host)))]
          (c/do-with [ch (.. bs
                             (bind ip (int port)) sync channel)]
            (c/info "web-server starting on %s:%s." host port)
@@ -155,9 +261,13 @@
           (build<tcp> server)
           {:keys [host port]} options
           port (c/num?? port 80)
-          host (c/stror host (n/lhost-name))]
-      (->> (ssvr impl host port)
-           (aset #^"[Ljava.lang.Object;" channel 0))
+          host (c/stror host (n/lhost-name))
+          nsocks (alength #^"[Ljava.lang.Object;" channel)
+          left (atom nsocks)]
+      ;;with reuse-port, each bind lands on the next loop
+      (dotimes [i nsocks]
+        (->> (ssvr impl host port left)
+             (aset #^"[Ljava.lang.Object;" channel i)))
       (assoc server :started? true :host host :port port))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
@@ -166,12 +276,22 @@
   [server]
 
   (let [{:as args'
-         :keys [inizor threads options]}
+         :keys [inizor threads options
+                transport reuse-port? gro?
+                max-datagram-size batch-size]}
         (merge {:threads 0
+                :transport nil
+                :reuse-port? false
+                :gro? false
+                :batch-size 32
+                :max-datagram-size 2048
                 :rcv-buf (* 2 c/MegaBytes)} (:args server))
         threads (if (pos? threads) threads 0)
         bs (Bootstrap.)
-        [g z] (n/group+channel threads :udps)]
+        [^EventLoopGroup g z tp] (n/group+channel threads :udps transport)
+        multi? (and reuse-port? (not= :nio tp))
+        nsocks (if multi?
+                 (count (iterator-seq (.iterator g))) 1)]
 
     (if (pos? threads)
       (c/info "threads=%s." threads)
@@ -182,13 +302,30 @@
                                 [:SO_BROADCAST true]))]
       (.option bs (n/chopt* k) v))
 
+    ;;one socket per event loop, the kernel spreads the
+    ;;datagrams over them, and each is read in batches
+    (if (and reuse-port? (not multi?))
+      (c/info "reuse-port needs epoll or io_uring, binding a single socket."))
+    (if multi?
+      (.option bs (n/tpopt* tp :SO_REUSEPORT) true))
+    (when-let [o (and (c/spos? max-datagram-size)
+                       (n/tpopt* tp :MAX_DATAGRAM_PAYLOAD_SIZE))]
+      (.option bs o (int max-datagram-size))
+      (.option bs
+               ChannelOption/RCVBUF_ALLOCATOR
+               (FixedRecvByteBufAllocator.
+                 (int (* max-datagram-size
+                         (max 1 batch-size))))))
+    (when-let [o (and gro? (n/tpopt* tp :UDP_GRO))]
+      (.option bs o true))
+
     (.channel bs z)
     (.group bs g)
     (.handler bs ^ChannelHandler (inizor args'))
 
     (try (assoc server
                 :impl bs
-                :channel (object-array 1))
+                :channel (object-array nsocks))
          (finally (c/debug "udp-server implemented - ok.")))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
@@ -197,13 +334,14 @@
   [server options]
 
   (letfn
-    [(ssvr [^Bootstrap bs host port]
+    [(ssvr [^Bootstrap bs host port left]
        (let [ip (if (c/nichts? host)
                   (InetAddress/getLocalHost)
                   (InetAddress/getByName host))
-             quit #(c/try! %1 (.. bs config
-                                  group shutdownGracefully)
-                           (c/debug "server @ip %s stopped." host))]
+             quit #(when (zero? (swap! left dec))
+                     (c/try! %1 (.. bs config
+                                    group shutdownGracefully)
+                             (c/debug "server @ip %s stopped." host)))]
          (c/do-with [ch (.. bs
                             (bind ip (int port)) sync channel)]
            (c/info "udp-server starting on %s:%s." host port)
@@ -213,11 +351,81 @@
           (build<udp> server)
           {:keys [host port]} options
           port (c/num?? port 4444)
-          host (c/stror host (n/lhost-name))]
-      (->> (ssvr impl host port)
-           (aset #^"[Ljava.lang.Object;" channel 0))
+          host (c/stror host (n/lhost-name))
+          nsocks (alength #^"[Ljava.lang.Object;" channel)
+          left (atom nsocks)]
+      ;;each bind lands on the next event loop
+      (dotimes [i nsocks]
+        (->> (ssvr impl host port left)
+             (aset #^"[Ljava.lang.Object;" channel i)))
       (assoc server :started? true :host host :port port))))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- server-cfg
+
+  "The settings handed to each channel."
+  [server]
+
+  (some-> ^ServerBootstrap (:impl server)
+          .config .childAttrs (get n/chcfg-key)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn file-cache-stats
+
+  "Counters of the static file cache, nil if not enabled."
+  {:arglists '([server])}
+  [server]
+
+  (when-some [^FileCache fc (:fcache (server-cfg server))]
+    {:hits (.hits fc)
+     :misses (.misses fc)
+     :evictions (.evictions fc)
+     :invalidations (.invalidations fc)
+     :entries (.size fc)
+     :bytes (.bytes fc)}))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn metrics
+
+  "A snapshot of the server's metrics, nil if not enabled.
+  Latencies are in nanoseconds, per route name."
+  {:arglists '([server])}
+  [server]
+
+  (when-some [^Metrics m (:metrics (server-cfg server))]
+    {:connections (.activeConnections m)
+     :connections-total (.totalConnections m)
+     :bytes-in (.bytesIn m)
+     :bytes-out (.bytesOut m)
+     :requests (.requests m)
+     :in-flight (.inflight m)
+     :h2-streams (.activeStreams m)
+     :failed-writes (.failedWrites m)
+     :routes (c/preduce<map>
+               (fn [acc [k ^Metrics$Route r]]
+                 (let [h (.latency r)]
+                   (assoc! acc
+                           k
+                           {:count (.count h)
+                            :p50 (.quantile h 0.5)
+                            :p90 (.quantile h 0.9)
+                            :p99 (.quantile h 0.99)
+                            :p999 (.quantile h 0.999)
+                            :2xx (.replies r 2)
+                            :4xx (.replies r 4)
+                            :5xx (.replies r 5)})))
+               (.routes m))}))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn metrics-text
+
+  "The server's metrics in Prometheus text format."
+  {:tag String
+   :arglists '([server])}
+  [server]
+
+  (some-> ^Metrics (:metrics (server-cfg server)) .prometheus))
+
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defrecord NettyTcpServer [args]
   c/Startable
@@ -235,7 +443,15 @@
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn udp-server-module<>
 
-  "Create a UDP server implemented in Netty."
+  "Create a UDP server implemented in Netty.
+
+  :transport is :epoll, :io_uring or :nio, whichever is there
+  is used if not.  Unless on nio, :reuse-port? binds one socket
+  per event loop with SO_REUSEPORT.  :max-datagram-size and
+  :batch-size set up the batched reads (recvmmsg), and :gro?
+  turns on UDP GRO, for which :max-datagram-size must allow
+  for merged datagrams.
+  A :batch-cb gets the channel and all datagrams of one read."
   {:arglists '([]
                [args])}
 
@@ -249,7 +465,13 @@
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn web-server-module<>
 
-  "Create a Http server implemented in Netty."
+  "Create a Http server implemented in Netty.
+
+  :transport is :epoll, :io_uring or :nio, whichever is there
+  is used if not.  Unless on nio, :reuse-port? binds one
+  listener per worker loop with SO_REUSEPORT, so accepts are
+  spread by the kernel.  :tuning is a profile, :latency or
+  :storm, or a map of :server and :child transport options."
   {:arglists '([]
                [args])}
 
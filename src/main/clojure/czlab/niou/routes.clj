@@ -44,7 +44,7 @@
                               :mount "/public/somedir"}})
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
-(defrecord RouteCracker [routes])
+(defrecord RouteCracker [routes trie])
 (defrecord RouteMatchResult [])
 (defrecord RouteInfo []
   Object
@@ -131,6 +131,158 @@
                        "Cannot gen path for route %s." id)
       (conj (into '() v) s))))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(c/def- regex-chars #"[\\\[\]\(\)\{\}\*\+\?\.\^\$\|]")
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- dotted?
+
+  "A literal segment whose only regex metacharacter is '.',
+  like app.js or v1.0."
+  [^String s]
+
+  (and (cs/includes? s ".")
+       (nil? (re-find regex-chars (cs/replace s "." "")))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- dots->local
+
+  "Keep the dots of a literal segment from matching a '/'."
+  [^String s]
+
+  (if (dotted? s) (cs/replace s "." "[^/]") s))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- path->segs
+
+  "Split the path into segments, keeping empty ones."
+  ^"[Ljava.lang.String;" [^String path]
+
+  (.split (str path) "/" -1))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- route-segs
+
+  "Parse a route uri => [[kind value capture?]...], kind is
+  one of :static, :param or :regex."
+  [pattern groups]
+
+  (mapv #(if-some [[_ k] (re-matches place-holder %)]
+           (let [gv (get groups (keyword k))]
+             (if (c/hgl? gv) [:regex gv true] [:param k]))
+           (cond (dotted? %) [:regex (dots->local %) false]
+                 (re-find regex-chars %) [:regex % false]
+                 :else [:static %]))
+        (path->segs pattern)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- spans?
+
+  "If the segment regex may match a '/', and so more than one
+  segment - erring on the side of yes.  A [^/] never does."
+  [^String rx]
+
+  (let [rx (cs/replace rx "[^/]" "")]
+    (boolean
+      (or (re-find #"(?<!\\)\.|/|\[\^|\\[SWDPp]" rx)
+          (some #(try (re-matches (Pattern/compile (str "[" % "]")) "/")
+                      (catch Throwable _ true))
+                (map last (re-seq #"\[([^\]]*)\]" rx)))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- trie+
+
+  "Insert the route into the trie, keyed by its segments.
+  Terminal nodes keep routes as [order route-info]."
+  [node segs pos ri]
+
+  (if (empty? segs)
+    (update node :routes (fnil conj []) [pos ri])
+    (let [[k v cap?] (first segs)
+          segs (rest segs)]
+      (case k
+        :static
+        (update-in node
+                   [:static v]
+                   #(trie+ (or % {}) segs pos ri))
+        :param
+        (update node
+                :param
+                #(trie+ (or % {}) segs pos ri))
+        :regex
+        (update-in node
+                   [:regex [v cap?]]
+                   #(trie+ (or % {:cap? cap?
+                                  :rx (Pattern/compile v)}) segs pos ri))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- build-trie
+
+  "Index routes by verb, each verb gets its own trie,
+  routes without a verb go under :*.  Routes which may
+  match across segments are kept aside, in order, to be
+  matched on the whole path."
+  [routes]
+
+  (reduce
+    (fn [acc [pos ri]]
+      (let [segs (:segments ri)]
+        (reduce #(if (:spans? ri)
+                   (update-in %1 [%2 :linear] (fnil conj []) [pos ri])
+                   (update %1 %2 (fnil trie+ {}) segs pos ri))
+                acc
+                (or (:verb ri) [:*]))))
+    {}
+    (map-indexed vector (vals routes))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- best-of
+
+  "Pick the candidate with the lower route order."
+  [a b]
+
+  (cond (nil? a) b
+        (nil? b) a
+        (< (long (a 0)) (long (b 0))) a
+        :else b))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- trie-seek
+
+  "Walk the trie, returns [order route-info captures] of
+  the first defined route that matches."
+  [node ^"[Ljava.lang.String;" segs pos caps]
+
+  (let [pos (long pos)]
+    (if (== pos (alength segs))
+      (if-some [r (first (:routes node))] (conj r caps))
+      (let [s (aget segs pos)
+            n (+ 1 pos)
+            {:keys [static param regex]} node]
+        (best-of
+          (best-of (if-some [x (get static s)]
+                     (trie-seek x segs n caps))
+                   (reduce-kv
+                     (fn [acc _ x]
+                       (best-of acc
+                                (if (.matches (.matcher ^Pattern (:rx x) s))
+                                  (trie-seek x segs n
+                                             (if (:cap? x) (conj caps s) caps))))) nil regex))
+          (if (and param
+                   (pos? (.length s)))
+            (trie-seek param segs n (conj caps s))))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- linear-seek
+
+  "The first of the routes kept aside that matches the whole
+  path, as [order route-info nil match-result]."
+  [node mtd path]
+
+  (some (fn [[pos ri]]
+          (if-some [m (match-path?? ri mtd path)] [pos ri nil m]))
+        (:linear node)))
+
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn crack-route
 
@@ -139,9 +291,26 @@
   [rc gist]
   {:pre [(c/is? RouteCracker rc)]}
 
-  (let [{:keys [uri request-method]} gist]
-    (some #(let [[_ v] %]
-             (match-path?? v request-method uri)) (:routes rc))))
+  (let [{:keys [uri request-method]} gist
+        {:keys [trie]} rc
+        segs (path->segs uri)]
+    (if-some [[_ ri caps m]
+                 (reduce best-of
+                         nil
+                         (for [k [request-method :*]
+                               :let [t (get trie k)]
+                               :when t]
+                           (best-of (trie-seek t segs 0 [])
+                                    (linear-seek t request-method uri))))]
+      (or m
+          (c/object<> RouteMatchResult
+                  :info ri
+                  :params
+                  (c/preduce<map>
+                    #(let [[k v] %2]
+                       (assoc! %1
+                               k
+                               (nth caps (- (long v) 1)))) (:groups ri)))))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn is-routable?
@@ -173,7 +342,7 @@
                       (var-set params
                                (assoc @params gk @cg))
                       (str "(" (c/stror gv "[^/]+") ")"))
-                    %2)))
+                    (dots->local %2))))
        (c/split-str pattern "/" true)) @parts @params]))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
@@ -192,7 +361,8 @@
                    (set? verb) (if (not-empty verb) verb))
         handler (if handler (u/var* cljrt handler))
         [path pieces params]
-        (regex-path (c/strim pattern) groups)]
+        (regex-path (c/strim pattern) groups)
+        segs (route-segs (c/strim pattern) groups)]
     (c/debug "Route input: %s." pattern)
     (c/debug "Route regex: %s." path)
     (c/object<> RouteInfo
@@ -202,6 +372,11 @@
                        :width pieces
                        :groups params
                        :handler handler
+                       :segments segs
+                       :spans? (boolean
+                                 (some (fn [[k v]]
+                                         (and (= :regex k)
+                                              (spans? v))) segs))
                        :regex (Pattern/compile path)))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
@@ -230,7 +405,11 @@
   {:arglists '([route-defs])}
   [route-defs]
 
-  (RouteCracker. (load-routes route-defs)))
+  (let [rs (load-routes route-defs)]
+    ;flag it, so servers can skip the lookup
+    (assoc (RouteCracker. rs (build-trie rs))
+           :streaming?
+           (boolean (some :streaming? (vals rs))))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;EOF
@@ -23,19 +23,16 @@
             [czlab.niou.core :as nc]
             [czlab.niou.mime :as mm])
 
-  (:import [org.apache.commons.io.output DeferredFileOutputStream]
-           [org.apache.commons.fileupload.util Streams]
-           [org.apache.commons.fileupload
-            FileUploadException
-            FileItemHeaders
-            FileItemStream
-            FileItem
-            FileUpload
-            UploadContext
-            FileItemIterator]
-           [czlab.niou Headers]
+  (:import [org.apache.commons.fileupload FileItem]
+           [czlab.niou
+            MultipartDecoder
+            MultipartDecoder$Part
+            MultipartDecoder$Sink]
+           [io.netty.buffer Unpooled ByteBufAllocator]
+           [java.util.function Consumer]
+           [java.util ArrayList]
            [czlab.basal XStream XData]
-           [java.io File FileInputStream]))
+           [java.io File InputStream FileInputStream]))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;(set! *warn-on-reflection* true)
@@ -244,61 +241,54 @@
               :body (nc/toXData data true)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
-(defn- hconv
+(defn part->item
 
-  [^FileItemHeaders hds]
-
-  (let [h (Headers.)
-        it (some-> hds .getHeaderNames)]
-    (while (and it (.hasNext it))
-      (let [n (.next it)
-            vs (.getHeaders hds n)]
-        (while (.hasNext vs)
-          (.add h n (.next vs))))) h))
-
-;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
-(defn- eval-field
-
-  "Process a file-item."
-  ^FileItem
-  [^FileItemStream item]
-
-  (let [res (XData.)
-        ffld? (.isFormField item)]
-    (file-item<> ffld?
-                 (.getContentType item)
-                 (hconv (.getHeaders item))
-                 (.getFieldName item)
-                 (.getName item)
-                 (if ffld?
-                   (c/wo* [out (i/baos<>)
-                           inp (.openStream item)]
-                     (Streams/copy inp out false)
-                     (.reset res out))
-                   (c/wo* [inp (.openStream item)
-                           out (DeferredFileOutputStream. i/*membuf-limit*
-                                                          "czlab" "tmp" (i/file-repo))]
-                     (Streams/copy inp out false)
-                     (.flush out)
-                     (.reset res (or (.getFile out) (.getData out))))))))
+  "Wrap a decoded multipart part as a file-item."
+  {:tag FileItem
+   :arglists '([p])}
+  [^MultipartDecoder$Part p]
+
+  (file-item<> (.isFormField p)
+               (.contentType p)
+               (.headers p)
+               (.fieldName p)
+               (.fileName p)
+               (if (.isFormField p)
+                 (XData. (.value p))
+                 (some-> (.file p) XData.))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
-(defn- process-form
-
-  ^FileItemIterator
-  [gist body]
-
-  (->> (reify UploadContext
-         (getContentLength [_] (:clen gist))
-         (getContentType [_] (:ctype gist))
-         (getCharacterEncoding [_]
-           (mm/charset?? (:ctype gist)))
-         (contentLength [_] (:clen gist))
-         (getInputStream [_] (.stream ^XData body)))
-       (.getItemIterator
-         (proxy [FileUpload][]
-           (parseRequest [_]
-             (c/trap! FileUploadException "Not supported"))))))
+(defn multipart<>
+
+  "Create an incremental multipart decoder, chunks are offered
+  as they arrive and cb is called with each item as it completes.
+  File parts go to a temp file, unless sink, a fn taking
+  [field fname ctype], returns a WritableByteChannel.  A form
+  field over max-field bytes fails with MultipartDecoder$TooLarge."
+  {:tag MultipartDecoder
+   :arglists '([ctype cb]
+               [ctype alloc sink cb]
+               [ctype alloc sink max-field cb])}
+
+  ([ctype cb]
+   (multipart<> ctype nil nil cb))
+
+  ([ctype alloc sink cb]
+   (multipart<> ctype alloc sink nil cb))
+
+  ([ctype alloc sink max-field cb]
+   {:pre [(fn? cb)]}
+   (MultipartDecoder. (MultipartDecoder/boundary ctype)
+                      (or alloc ByteBufAllocator/DEFAULT)
+                      (i/file-repo)
+                      (if (fn? sink)
+                        (reify MultipartDecoder$Sink
+                          (open [_ field fname ctype]
+                            (sink field fname ctype))))
+                      (long (or max-field
+                                MultipartDecoder/MAX_FIELD))
+                      (reify Consumer
+                        (accept [_ p] (cb (part->item p)))))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn parse-form-post
@@ -308,14 +298,22 @@
   {:arglists '([gist body])}
   [gist body]
 
-  (let [iter (->> (nc/toXData body)
-                  (process-form gist))]
-    (loop [bag (form-items<>)]
-      (if-not (and iter
-                   (.hasNext iter))
-        bag
-        (recur (add-item bag
-                         (eval-field (.next iter))))))))
+  (let [out (ArrayList.)
+        buf (byte-array 8192)
+        d (multipart<> (:ctype gist) #(.add out %))]
+    (try
+      (c/wo* [^InputStream
+              inp (.stream (nc/toXData body))]
+        (loop [n (.read inp buf)]
+          (when (pos? n)
+            (.offer d (Unpooled/wrappedBuffer buf 0 n))
+            (recur (.read inp buf)))))
+      (.finish d)
+      (form-items<> out)
+      (catch Throwable e
+        (doseq [n out] (.delete ^FileItem n)) (throw e))
+      (finally
+        (.close d)))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;EOF
@@ -14,19 +14,27 @@
 
 (ns czlab.niou.webss
 
-  "A Http Web Session."
+  "A Http Web Session.
+
+  By default the attributes travel in the session cookie.
+  Given a SessionStore, they are kept on the server instead,
+  and the cookie carries just the signed session id."
 
   (:require [czlab.twisty.core :as t]
             [clojure.java.io :as io]
+            [clojure.edn :as edn]
             [clojure.string :as cs]
             [czlab.basal.util :as u]
             [czlab.basal.io :as i]
             [czlab.basal.core :as c]
             [czlab.niou.core :as v])
 
-  (:import [java.security GeneralSecurityException]
+  (:import [java.security GeneralSecurityException MessageDigest]
+           [java.util.concurrent ConcurrentHashMap]
+           [java.util.concurrent.atomic AtomicLong]
+           [java.nio.charset StandardCharsets]
            [java.net HttpCookie]
-           [java.util Date]
+           [java.util Map$Entry Date]
            [java.io File]))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
@@ -46,6 +54,104 @@
 (c/def- lt-flag :__xf384n ) ;; last access time
 (c/def- et-flag :__xf484n ) ;; expiry time
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defprotocol SessionStore
+  "Where server side sessions are kept, by id."
+  (load-session [_ id] "The saved session, nil if none or idle too long.")
+  (save-session [_ id data] "Save the session.")
+  (drop-session [_ id] "Forget the session."))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn mem-store<>
+
+  "A bounded in-memory session store.  Sessions idle for
+  longer than idle-secs are dropped, and once there are more
+  than max-sessions, the least recently used ones go first."
+  {:arglists '([]
+               [options])}
+
+  ([]
+   (mem-store<> nil))
+
+  ([{:keys [max-sessions idle-secs]
+     :or {max-sessions 100000 idle-secs 1800}}]
+   (let [m (ConcurrentHashMap.)
+         ttl (* 1000 (long idle-secs))
+         cap (long max-sessions)]
+     (letfn
+       [(at [v] (.get ^AtomicLong (nth v 1)))
+        (sweep! [now]
+          (let [it (.iterator (.entrySet m))]
+            (while (.hasNext it)
+              (if (< (+ ttl (long (at (.getValue ^Map$Entry (.next it))))) now)
+                (.remove it))))
+          ;;still too many, drop the oldest tenth
+          (let [n (- (.size m) cap)]
+            (when (pos? n)
+              (doseq [^Map$Entry e (->> (.entrySet m)
+                                        (sort-by #(at (.getValue ^Map$Entry %)))
+                                        (take (+ n (quot cap 10))))]
+                (.remove m (.getKey e) (.getValue e))))))]
+       (reify SessionStore
+         (load-session [_ id]
+           (when-some [v (.get m id)]
+             (let [now (u/system-time)]
+               (if (< (+ ttl (long (at v))) now)
+                 (do (.remove m id v) nil)
+                 (do (.set ^AtomicLong (nth v 1) now)
+                     (nth v 0))))))
+         (save-session [_ id data]
+           (let [now (u/system-time)]
+             (.put m id [data (AtomicLong. now)])
+             (if (> (.size m) cap) (sweep! now))))
+         (drop-session [_ id]
+           (.remove m id)))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn file-store<>
+
+  "A session store on the local disk, one edn file per
+  session, idle ones are dropped when next looked up.  A
+  stand-in for a shared backend, attributes must be edn."
+  {:arglists '([dir]
+               [dir options])}
+
+  ([dir]
+   (file-store<> dir nil))
+
+  ([dir {:keys [idle-secs] :or {idle-secs 1800}}]
+   (let [dir (doto (io/file dir) .mkdirs)
+         ttl (* 1000 (long idle-secs))
+         fp #(io/file dir (str (u/url-encode %) ".edn"))]
+     (reify SessionStore
+       (load-session [_ id]
+         (let [^File f (fp id)
+               now (u/system-time)]
+           (when (.exists f)
+             (if (< (+ ttl (.lastModified f)) now)
+               (do (.delete f) nil)
+               (do (.setLastModified f now)
+                   (c/try! (edn/read-string (slurp f))))))))
+       (save-session [_ id data]
+         (let [^File f (fp id)
+               tmp (io/file dir (str (.getName f) "." (u/uid<>)))]
+           (spit tmp (pr-str data))
+           (.renameTo tmp f)))
+       (drop-session [_ id]
+         (.delete ^File (fp id)))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- dirty!
+
+  "Apply f to the session, noting that it has changed."
+  [wss f]
+
+  (swap! wss
+         #(let [m (f %)]
+            (if (empty? (:impls m))
+              m
+              (assoc-in m [:impls :$dirty?] true)))))
+
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn- reset-flags
 
@@ -74,8 +180,8 @@
   (if crypt?
     (when (or (c/nichts? $cright)
               (c/nichts? $cleft)
-              (.equals ^String $cleft
-                       (t/gen-mac pkey $cright)))
+              (not (.equals ^String $cleft
+                            (t/gen-mac pkey $cright))))
       (c/error "session cookie - broken.")
       (c/trap! GeneralSecurityException "Bad Session Cookie."))))
 
@@ -142,10 +248,10 @@
   {:arglists '([wss idleSecs])}
   [wss idleSecs]
 
-  (swap! wss
-         #(update-in %
-                     [:attrs]
-                     assoc is-flag idleSecs)))
+  (dirty! wss
+          #(update-in %
+                      [:attrs]
+                      assoc is-flag idleSecs)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn last-accessed-time
@@ -216,8 +322,8 @@
   {:arglists '([wss k])}
   [wss k]
 
-  (swap! wss
-         #(update-in % [:attrs] dissoc k)))
+  (dirty! wss
+          #(update-in % [:attrs] dissoc k)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn set-session-attr
@@ -226,8 +332,8 @@
   {:arglists '([wss k v])}
   [wss k v]
 
-  (swap! wss
-         #(update-in % [:attrs] assoc k v)))
+  (dirty! wss
+          #(update-in % [:attrs] assoc k v)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn session-attr
@@ -245,7 +351,7 @@
   {:arglists '([wss])}
   [wss]
 
-  (c/assoc!! wss :attrs {}))
+  (dirty! wss #(assoc % :attrs {})))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn session-attrs
@@ -259,10 +365,13 @@
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn invalidate!
 
-  "Invalidate this session."
+  "Invalidate this session, dropping it from its store, if any."
   {:arglists '([wss])}
   [wss]
 
+  (let [{{:keys [store]} :impls :keys [attrs]} @wss]
+    (if (some? store)
+      (c/try! (drop-session store (ssid-flag attrs)))))
   (c/assoc!! wss :impls {} :attrs {}))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
@@ -272,8 +381,8 @@
   {:arglists '([wss p])}
   [wss p]
 
-  (swap! wss
-         #(update-in % [:impls] assoc user-flag p)))
+  (dirty! wss
+          #(update-in % [:impls] assoc user-flag p)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn principal
@@ -344,7 +453,8 @@
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn wsession<>
 
-  "Create a Web Session."
+  "Create a Web Session, a :store in arg makes a new
+  session a server side one."
   {:arglists '([pkey]
                [pkey arg]
                [pkey cookie secure?])}
@@ -372,10 +482,59 @@
 
   (if secure? (str (t/gen-mac pkey data) "|" data) data))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- set-cookie
+
+  [res mvs value]
+
+  (let [{{:keys [max-age-secs
+                 domain-path
+                 domain
+                 hidden? secure?]} :impls} @mvs
+        ck (HttpCookie. session-cookie value)]
+    ;;session cookie should always be -1 -> maxAge
+    ;;and really should be httpOnly=true
+    (doto ck
+      (.setHttpOnly (boolean hidden?))
+      (.setSecure (boolean secure?))
+      (.setMaxAge (if (c/spos? max-age-secs) max-age-secs -1)))
+    (if (c/hgl? domain-path) (.setPath ck domain-path))
+    (if (c/hgl? domain) (.setDomain ck domain))
+    (update-in res
+               [:cookies] assoc (.getName ck) ck)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- store-down
+
+  "Save a changed server side session, only a
+  new one needs its id sent down in a cookie."
+  [res mvs]
+
+  (let [{:keys [attrs impls]} @mvs
+        {:keys [store $new? $token]} impls
+        id (ssid-flag attrs)
+        token (if $new?
+                (macit?? (session-signer mvs) id true) $token)]
+    (save-session store
+                  id
+                  {:token token
+                   :attrs attrs
+                   :impls (select-keys impls
+                                       [user-flag
+                                        :domain
+                                        :secure?
+                                        :hidden?
+                                        :domain-path
+                                        :max-age-secs])})
+    (swap! mvs
+           update :impls assoc :$token token :$new? false :$dirty? false)
+    (if $new? (set-cookie res mvs token) res)))
+
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn downstream
 
-  "Set session-cookie for outbound message#response."
+  "Set session-cookie for outbound message#response.
+  Nothing is done for a session that has not changed."
   {:arglists '([res][res session])}
 
   ([res]
@@ -384,38 +543,63 @@
   ([res sessionObj]
    (let [req (:request res)
          mvs (or sessionObj
-                 (:session req))]
-     (if (or (nil? mvs)
-             (is-session-null? mvs))
+                 (:session req))
+         {:keys [$new? $dirty?
+                 store crypt?]} (some-> mvs deref :impls)]
+     (cond
+       (or (nil? mvs)
+           (is-session-null? mvs)
+           (not (or $new? $dirty?)))
        res
-       (let [_ (c/debug "session ok, about to set-cookie!")
-             pkey (session-signer mvs)
-             data (encode-attrs mvs)
-             {{:keys [max-age-secs
-                      domain-path
-                      domain
-                      crypt? hidden? secure?]} :impls} @mvs
-             ck (->> (macit?? pkey data crypt?)
-                     (HttpCookie. session-cookie))]
-         ;;session cookie should always be -1 -> maxAge
-         ;;and really should be httpOnly=true
-         (doto ck
-           (.setHttpOnly (boolean hidden?))
-           (.setSecure (boolean secure?))
-           (.setMaxAge (if (c/spos? max-age-secs) max-age-secs -1)))
-         (if (c/hgl? domain-path) (.setPath ck domain-path))
-         (if (c/hgl? domain) (.setDomain ck domain))
-         (update-in res
-                    [:cookies] assoc (.getName ck) ck))))))
+       (some? store)
+       (store-down res mvs)
+       :else
+       (do (c/debug "session ok, about to set-cookie!")
+           (set-cookie res
+                       mvs
+                       (macit?? (session-signer mvs)
+                                (encode-attrs mvs) crypt?)))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+(defn- store-up
+
+  "Look up the session named in the cookie.  The cookie
+  must be the very token handed out for it, so there is
+  no mac to work out, a null session if anything is off."
+  [pkey ^HttpCookie ck store]
+
+  (let [v (str (some-> ck .getValue))
+        pos (cs/index-of v \|)
+        id (if pos (subs v (+ 1 pos)))
+        {:keys [token attrs impls]}
+        (if (c/hgl? id) (load-session store id))]
+    (if-not (and (string? token)
+                 (MessageDigest/isEqual
+                   (.getBytes ^String token StandardCharsets/UTF_8)
+                   (.getBytes v StandardCharsets/UTF_8)))
+      (atom {:$pkey pkey :attrs {} :impls {}})
+      (atom {:$pkey pkey
+             :attrs (assoc attrs lt-flag (u/system-time))
+             :impls (assoc impls
+                           :store store
+                           :$token token
+                           :$new? false)}))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn upstream
 
-  "Create session from session-cookie."
-  {:arglists '([pkey cookies encrypt?])}
-  [pkey cookies encrypt?]
+  "Create session from session-cookie, or with a store,
+  load it from the store by the id in the cookie."
+  {:arglists '([pkey cookies encrypt?]
+               [pkey cookies encrypt? store])}
+
+  ([pkey cookies encrypt?]
+   (upstream pkey cookies encrypt? nil))
 
-  (wsession<> pkey (get cookies session-cookie) encrypt?))
+  ([pkey cookies encrypt? store]
+   (if (nil? store)
+     (wsession<> pkey (get cookies session-cookie) encrypt?)
+     (store-up pkey (get cookies session-cookie) store))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;EOF
@@ -0,0 +1,217 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright © 2013-2024, Kenneth Leung. All rights reserved. */
+
+package czlab.nettio;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * A request body handed over as it arrives, one ByteBuf at a time.
+ *
+ * The event loop offers parts, the application takes them, from
+ * another thread, and must release each one.  When too many bytes
+ * are queued up, the channel stops reading, and starts again once
+ * the consumer has caught up.
+ *
+ * A stream that is flow controlled by the peer, such as a h2 stream,
+ * never pauses the channel, instead the bytes taken are handed back
+ * as window credit.
+ *
+ */
+public class BodyStream implements Closeable {
+
+  private final ArrayDeque<ByteBuf> _parts = new ArrayDeque<ByteBuf>();
+  private final IntConsumer _credit;
+  private final ReadGate _gate;
+  private final long _high;
+  private final long _low;
+
+  private long _queued;
+  private long _received;
+  private boolean _paused;
+  private boolean _ended;
+  private boolean _aborted;
+  private boolean _closed;
+
+  /**
+   */
+  public BodyStream(Channel ch, long highWater) {
+    this(ch, highWater, null);
+  }
+
+  /**
+   * Flow controlled by the peer, credit is called with
+   * the size of each part taken, or discarded.
+   */
+  public BodyStream(Channel ch, IntConsumer credit) {
+    this(ch, Long.MAX_VALUE, credit);
+  }
+
+  private BodyStream(Channel ch, long highWater, IntConsumer credit) {
+    _gate = ReadGate.of(ch);
+    _credit = credit;
+    _high = Math.max(1, highWater);
+    _low = _high >> 1;
+  }
+
+  /**
+   * Called from the event loop, takes ownership of the part.
+   */
+  public synchronized void offer(ByteBuf part, boolean last) {
+    if (_closed || _aborted || _ended) {
+      if (part != null) {
+        //skipped, still counts as read off the wire
+        _received += part.readableBytes();
+        part.release();
+      }
+      if (last) { _ended = true; }
+      return;
+    }
+    if (part != null) {
+      _received += part.readableBytes();
+      if (part.isReadable()) {
+        _queued += part.readableBytes();
+        _parts.addLast(part);
+      } else {
+        part.release();
+      }
+    }
+    if (last) { _ended = true; }
+    if (!_paused && !_ended && _queued >= _high) {
+      _paused = true;
+      _gate.pause();
+    }
+    notifyAll();
+  }
+
+  /**
+   * Connection went away before the body was fully read,
+   * whatever is queued is dropped.
+   */
+  public void abort() {
+    boolean resume;
+    synchronized (this) {
+      if (_ended || _aborted) { return; }
+      _aborted = true;
+      for (ByteBuf b : _parts) { b.release(); }
+      _parts.clear();
+      _queued = 0;
+      resume = _paused;
+      _paused = false;
+      notifyAll();
+    }
+    if (resume) { _gate.resume(); }
+  }
+
+  /**
+   * Next part, or null if the timeout elapsed or the body has ended,
+   * use isEnd to tell them apart.
+   */
+  public ByteBuf poll(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+    boolean resume = false;
+    ByteBuf b;
+    int n;
+    synchronized (this) {
+      long w = unit.toNanos(timeout);
+      boolean forever = w >= Long.MAX_VALUE >> 1;
+      long end = forever ? 0 : System.nanoTime() + w;
+      while (_parts.isEmpty() && !_ended && !_aborted && !_closed) {
+        if (forever) {
+          wait();
+        } else {
+          w = end - System.nanoTime();
+          if (w <= 0) { return null; }
+          TimeUnit.NANOSECONDS.timedWait(this, w);
+        }
+      }
+      b = _parts.pollFirst();
+      if (b == null) {
+        if (_aborted) { throw new IOException("Connection closed, body incomplete."); }
+        return null;
+      }
+      n = b.readableBytes();
+      _queued -= n;
+      if (_paused && _queued <= _low) {
+        _paused = false;
+        resume = true;
+      }
+    }
+    if (resume) { _gate.resume(); }
+    if (_credit != null) { _credit.accept(n); }
+    return b;
+  }
+
+  /**
+   * Wait for the next part, null at end of body.
+   */
+  public ByteBuf take() throws IOException, InterruptedException {
+    return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   */
+  public synchronized boolean isEnd() {
+    return _parts.isEmpty() && (_ended || _closed);
+  }
+
+  /**
+   */
+  public synchronized long queuedBytes() {
+    return _queued;
+  }
+
+  /**
+   * Bytes of the body that have come in so far, read or not.
+   */
+  public synchronized long receivedBytes() {
+    return _received;
+  }
+
+  /**
+   * True once the last part has come in.
+   */
+  public synchronized boolean isComplete() {
+    return _ended;
+  }
+
+  /**
+   * Discard the rest of the body.
+   */
+  @Override
+  public void close() {
+    boolean resume;
+    long n;
+    synchronized (this) {
+      if (_closed) { return; }
+      _closed = true;
+      for (ByteBuf b : _parts) { b.release(); }
+      _parts.clear();
+      n = _queued;
+      _queued = 0;
+      resume = _paused;
+      _paused = false;
+      notifyAll();
+    }
+    if (resume) { _gate.resume(); }
+    if (_credit != null && n > 0) { _credit.accept((int) n); }
+  }
+
+}
+
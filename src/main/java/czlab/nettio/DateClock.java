@@ -0,0 +1,71 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright © 2013-2024, Kenneth Leung. All rights reserved. */
+
+package czlab.nettio;
+
+import czlab.niou.DateUtil;
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The current time as a ready to use Date header value, shared by
+ * all responses.  A server ticks it once a second on one of its
+ * event loops, without a ticker, it is refreshed by the callers.
+ *
+ */
+public enum DateClock {
+;
+
+  private static final AtomicReference<ScheduledFuture<?>> _timer =
+    new AtomicReference<ScheduledFuture<?>>();
+
+  private static volatile AsciiString _date;
+  private static volatile long _sec = -1;
+
+  /** The date, good to the second. */
+  public static AsciiString now() {
+    ScheduledFuture<?> f = _timer.get();
+    if (f == null || f.isDone()) {
+      long s = System.currentTimeMillis() / 1000;
+      if (s != _sec) { tick(s); }
+    }
+    return _date;
+  }
+
+  private static void tick(long sec) {
+    _date = DateUtil.asciiHttpDate(sec * 1000);
+    _sec = sec;
+  }
+
+  /**
+   * Tick on one of the group's event loops, till the group
+   * shuts down.  Does nothing if already ticking.
+   */
+  public static void start(EventExecutorGroup g) {
+    ScheduledFuture<?> f = _timer.get();
+    if (f != null && !f.isDone()) { return; }
+    long ms = System.currentTimeMillis();
+    tick(ms / 1000);
+    //line up with the start of each second
+    ScheduledFuture<?> t = g.next().scheduleAtFixedRate(
+        () -> tick(System.currentTimeMillis() / 1000),
+        1000 - (ms % 1000), 1000, TimeUnit.MILLISECONDS);
+    if (!_timer.compareAndSet(f, t)) { t.cancel(false); }
+  }
+
+}
+
@@ -0,0 +1,321 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright © 2013-2024, Kenneth Leung. All rights reserved. */
+
+package czlab.nettio;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.AsciiString;
+import czlab.niou.DateUtil;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A bounded LRU cache of small files, held in pooled direct buffers.
+ *
+ * A hit costs no file I/O at all, not even a stat, the content is
+ * handed out as a retained duplicate and the length, time-stamp,
+ * ETag and content-type are kept alongside, already encoded as
+ * header values.  Instead of checking
+ * the file each time, the parent directories are watched, and an
+ * entry is dropped as soon as its file is touched.
+ *
+ */
+public class FileCache implements Closeable {
+
+  /**
+   * A cached file.
+   */
+  public static class Entry {
+    private final ByteBuf _buf;
+    private final long _length;
+    private final long _lastMod;
+    private final String _etag;
+    private final AsciiString _ctype;
+    private final AsciiString _lengthHdr;
+    private final AsciiString _lastModHdr;
+    private final AsciiString _etagHdr;
+    private boolean _live = true;
+
+    Entry(ByteBuf buf, long lastMod, String etag, String ctype) {
+      _buf = buf;
+      _length = buf.readableBytes();
+      _lastMod = lastMod;
+      _etag = etag;
+      _ctype = ctype == null ? null : AsciiString.of(ctype);
+      _lengthHdr = AsciiString.of(Long.toString(_length));
+      _lastModHdr = DateUtil.asciiHttpDate(lastMod);
+      _etagHdr = AsciiString.of(etag);
+    }
+
+    public long length() { return _length; }
+    public long lastModified() { return _lastMod; }
+    public String etag() { return _etag; }
+    /** Null if no mime function was given. */
+    public AsciiString contentType() { return _ctype; }
+    /** Content-Length, as a header value. */
+    public AsciiString lengthHeader() { return _lengthHdr; }
+    /** Last-Modified, as a header value. */
+    public AsciiString lastModifiedHeader() { return _lastModHdr; }
+    /** ETag, as a header value. */
+    public AsciiString etagHeader() { return _etagHdr; }
+
+    /**
+     * The content, which the caller must release, or null
+     * if the entry has been dropped in the meantime.
+     */
+    public synchronized ByteBuf content() {
+      return _live ? _buf.retainedDuplicate() : null;
+    }
+
+    synchronized void free() {
+      if (_live) {
+        _live = false;
+        _buf.release();
+      }
+    }
+  }
+
+  private final LinkedHashMap<Path, Entry> _map =
+    new LinkedHashMap<Path, Entry>(64, 0.75f, true);
+  private final Map<Path, WatchKey> _dirs = new HashMap<Path, WatchKey>();
+  private final Function<File, String> _mime;
+  private final ByteBufAllocator _alloc;
+  private final WatchService _watcher;
+  private final long _maxBytes;
+  private final long _maxEntry;
+  private long _bytes;
+  //bumped on each invalidation, a load that
+  //sees it move must not cache what it read
+  private long _gen;
+
+  private final LongAdder _hits = new LongAdder();
+  private final LongAdder _misses = new LongAdder();
+  private final LongAdder _evictions = new LongAdder();
+  private final LongAdder _invalidations = new LongAdder();
+
+  /**
+   */
+  public FileCache(long maxBytes,
+                   long maxEntry,
+                   Function<File, String> mime) throws IOException {
+    _alloc = PooledByteBufAllocator.DEFAULT;
+    _maxBytes = Math.max(0, maxBytes);
+    _maxEntry = Math.min(Math.min(Math.max(0, maxEntry), _maxBytes),
+                         Integer.MAX_VALUE);
+    _mime = mime;
+    _watcher = FileSystems.getDefault().newWatchService();
+    Thread t = new Thread(this::watch, "nettio-file-cache");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * The cached file, loading it on a miss, null if it
+   * is not a regular file or too big to be cached.
+   */
+  public Entry get(File f) {
+    Path p = f.toPath().toAbsolutePath().normalize();
+    synchronized (this) {
+      Entry e = _map.get(p);
+      if (e != null) {
+        _hits.increment();
+        return e;
+      }
+    }
+    _misses.increment();
+    try {
+      return load(f, p);
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+
+  private Entry load(File f, Path p) throws IOException {
+    long len = f.length();
+    long lm = f.lastModified();
+    if (!f.isFile() || len > _maxEntry) { return null; }
+    //watch before reading, so a change made while
+    //reading is not missed
+    watchDir(p.getParent());
+    long gen;
+    synchronized (this) { gen = _gen; }
+    ByteBuf b = _alloc.directBuffer((int) len);
+    try (FileChannel fc = FileChannel.open(p, StandardOpenOption.READ)) {
+      long pos = 0;
+      while (pos < len) {
+        int n = b.writeBytes(fc, pos, (int) (len - pos));
+        if (n < 0) { break; }
+        pos += n;
+      }
+    } catch (IOException ex) {
+      b.release();
+      throw ex;
+    }
+    if (b.readableBytes() != len ||
+        f.lastModified() != lm) {
+      //changed under our feet, let the caller read the file
+      b.release();
+      return null;
+    }
+    Entry e = new Entry(b, lm,
+                        "\"" + lm + "-" + f.hashCode() + "\"",
+                        _mime == null ? null : _mime.apply(f));
+    List<Entry> dead = new ArrayList<Entry>();
+    boolean stale;
+    synchronized (this) {
+      //invalidated while reading, that event has come and
+      //gone, so what was read must not be kept
+      stale = gen != _gen;
+      if (!stale) {
+        Entry old = _map.put(p, e);
+        if (old != null) {
+          _bytes -= old._length;
+          dead.add(old);
+        }
+        _bytes += len;
+        Iterator<Entry> it = _map.values().iterator();
+        while (_bytes > _maxBytes && it.hasNext()) {
+          Entry x = it.next();
+          if (x == e) { continue; }
+          it.remove();
+          _bytes -= x._length;
+          _evictions.increment();
+          dead.add(x);
+        }
+      }
+    }
+    for (Entry x : dead) { x.free(); }
+    if (stale) {
+      e.free();
+      return null;
+    }
+    return e;
+  }
+
+  private synchronized void watchDir(Path dir) throws IOException {
+    if (dir != null && !_dirs.containsKey(dir)) {
+      _dirs.put(dir, dir.register(_watcher,
+                                  ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY));
+    }
+  }
+
+  /**
+   * Drop the entry for this file, if any.
+   */
+  public void invalidate(Path p) {
+    Entry e;
+    synchronized (this) {
+      ++_gen;
+      e = _map.remove(p.toAbsolutePath().normalize());
+      if (e != null) { _bytes -= e._length; }
+    }
+    if (e != null) {
+      _invalidations.increment();
+      e.free();
+    }
+  }
+
+  /** Drop every entry under this directory. */
+  private void invalidateDir(Path dir) {
+    List<Entry> dead = new ArrayList<Entry>();
+    synchronized (this) {
+      ++_gen;
+      Iterator<Map.Entry<Path, Entry>> it = _map.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<Path, Entry> me = it.next();
+        if (dir.equals(me.getKey().getParent())) {
+          it.remove();
+          _bytes -= me.getValue()._length;
+          dead.add(me.getValue());
+        }
+      }
+    }
+    for (Entry x : dead) {
+      _invalidations.increment();
+      x.free();
+    }
+  }
+
+  private void watch() {
+    while (true) {
+      WatchKey k;
+      try {
+        k = _watcher.take();
+      } catch (InterruptedException | ClosedWatchServiceException ex) {
+        return;
+      }
+      Path dir = (Path) k.watchable();
+      for (WatchEvent<?> ev : k.pollEvents()) {
+        if (ev.kind() == OVERFLOW) {
+          invalidateDir(dir);
+        } else {
+          invalidate(dir.resolve((Path) ev.context()));
+        }
+      }
+      if (!k.reset()) {
+        synchronized (this) { _dirs.remove(dir); }
+        invalidateDir(dir);
+      }
+    }
+  }
+
+  public long hits() { return _hits.sum(); }
+  public long misses() { return _misses.sum(); }
+  public long evictions() { return _evictions.sum(); }
+  public long invalidations() { return _invalidations.sum(); }
+  public synchronized int size() { return _map.size(); }
+  public synchronized long bytes() { return _bytes; }
+
+  /**
+   * Stop watching and free all the buffers.
+   */
+  @Override
+  public void close() {
+    try { _watcher.close(); } catch (IOException e) { }
+    List<Entry> dead;
+    synchronized (this) {
+      dead = new ArrayList<Entry>(_map.values());
+      _map.clear();
+      _dirs.clear();
+      _bytes = 0;
+    }
+    for (Entry x : dead) { x.free(); }
+  }
+
+}
+
@@ -0,0 +1,167 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright © 2013-2024, Kenneth Leung. All rights reserved. */
+
+package czlab.nettio;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Per connection state for http 1.1 pipelining.
+ *
+ * Every request handed to the application is given a sequence number,
+ * replies are parked in a fixed size ring, indexed by that number, and
+ * released strictly in order.  Once the number of requests in flight
+ * reaches the capacity, the connection should stop reading, any parts
+ * already decoded are held in the backlog until a slot frees up.
+ *
+ * Not thread-safe, only to be touched from the channel's event loop.
+ *
+ */
+public class H1Pipeline {
+
+  private final Runnable[] _slots;
+  private final ArrayDeque<Object> _backlog = new ArrayDeque<Object>();
+
+  private boolean _draining;
+  private boolean _paused;
+
+  //next seq to give out
+  private long _rseq;
+  //next seq allowed to write
+  private long _wseq;
+  //replies fully written
+  private long _dseq;
+
+  /**
+   */
+  public H1Pipeline(int depth) {
+    _slots = new Runnable[Math.max(1, depth)];
+  }
+
+  /**
+   */
+  public int capacity() {
+    return _slots.length;
+  }
+
+  /** Number of requests waiting for a complete reply. */
+  public int inFlight() {
+    return (int) (_rseq - _dseq);
+  }
+
+  /**
+   */
+  public boolean isFull() {
+    return inFlight() >= _slots.length;
+  }
+
+  /** Give the next request its sequence number. */
+  public long admit() {
+    return _rseq++;
+  }
+
+  /**
+   * Run the reply for this request if it is next in line,
+   * otherwise park it till the earlier ones have gone out.
+   */
+  public void submit(long seq, Runnable reply) {
+    if (seq < _wseq) {
+      //too late, someone already replied
+      reply.run();
+    } else {
+      _slots[(int) (seq % _slots.length)] = reply;
+      drain();
+    }
+  }
+
+  /**
+   * A reply has been written out in full, returns true if
+   * there is room for more requests.
+   */
+  public boolean complete() {
+    if (_dseq < _rseq) { ++_dseq; }
+    //replies written without going through submit
+    while (_wseq < _dseq) {
+      _slots[(int) (_wseq % _slots.length)] = null;
+      ++_wseq;
+    }
+    drain();
+    return !isFull();
+  }
+
+  private void drain() {
+    if (_draining) { return; }
+    _draining = true;
+    try {
+      while (_wseq < _rseq) {
+        int pos = (int) (_wseq % _slots.length);
+        Runnable r = _slots[pos];
+        if (r == null) { break; }
+        _slots[pos] = null;
+        ++_wseq;
+        r.run();
+      }
+    } finally {
+      _draining = false;
+    }
+  }
+
+  /**
+   */
+  public boolean isPaused() {
+    return _paused;
+  }
+
+  /**
+   */
+  public void setPaused(boolean b) {
+    _paused = b;
+  }
+
+  /**
+   */
+  public boolean hasBacklog() {
+    return !_backlog.isEmpty();
+  }
+
+  /**
+   */
+  public void defer(Object msg) {
+    _backlog.addLast(msg);
+  }
+
+  /**
+   */
+  public Object peekBacklog() {
+    return _backlog.peekFirst();
+  }
+
+  /**
+   */
+  public Object pollBacklog() {
+    return _backlog.pollFirst();
+  }
+
+  /** Drop all pending replies and return the held back parts. */
+  public Object[] clear() {
+    Object[] out = _backlog.toArray();
+    _backlog.clear();
+    Arrays.fill(_slots, null);
+    _wseq = _dseq = _rseq;
+    return out;
+  }
+
+}
+
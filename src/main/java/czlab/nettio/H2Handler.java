@@ -21,6 +21,9 @@ import io.netty.handler.codec.http2.Http2FrameLogger;
 import io.netty.handler.codec.http2.Http2ConnectionHandler;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelPromise;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.FullHttpRequest;
@@ -36,7 +39,17 @@ import io.netty.handler.codec.http2.Http2Flags;
 import io.netty.handler.codec.http2.Http2FrameListener;
 import io.netty.handler.codec.http2.Http2Headers;
 import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2Stream;
+import static io.netty.handler.codec.http2.Http2Error.INTERNAL_ERROR;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2ConnectionAdapter;
+import io.netty.handler.codec.http2.Http2RemoteFlowController;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
 import io.netty.util.CharsetUtil;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import static io.netty.buffer.Unpooled.copiedBuffer;
 import static io.netty.buffer.Unpooled.unreleasableBuffer;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
@@ -51,9 +64,133 @@ public abstract class H2Handler extends Http2ConnectionHandler implements Http2F
 
   public static final Logger TLOG = getLogger(H2Handler.class);
 
+  //bodies being sent, by stream id
+  private final IntObjectMap<BodyWriter> _writers = new IntObjectHashMap<BodyWriter>();
+
   public H2Handler(Http2ConnectionDecoder decoder, Http2ConnectionEncoder encoder,
                    Http2Settings initialSettings) {
     super(decoder, encoder, initialSettings);
+    encoder.flowController().listener(new Http2RemoteFlowController.Listener() {
+      @Override
+      public void writabilityChanged(Http2Stream s) {
+        BodyWriter w = _writers.get(s.id());
+        if (w != null && encoder().flowController().isWritable(s)) {
+          //not from inside the flow controller
+          w._ctx.executor().execute(w::resume);
+        }
+      }
+    });
+    connection().addListener(new Http2ConnectionAdapter() {
+      @Override
+      public void onStreamActive(Http2Stream s) {
+        BodyWriter w = _writers.get(s.id());
+        if (w != null) { w.resume(); }
+      }
+      @Override
+      public void onStreamClosed(Http2Stream s) {
+        BodyWriter w = _writers.remove(s.id());
+        if (w != null) { w.abort(new IOException("h2 stream closed, body incomplete.")); }
+      }
+    });
+  }
+
+  /**
+   * Send the body as DATA frames, reading the next chunk only while the
+   * peer's window, and the channel, have room for it.  The input is
+   * closed when done.  The headers must have been written already.
+   */
+  public ChannelFuture writeBody(ChannelHandlerContext ctx, int streamId,
+                                 ChunkedInput<ByteBuf> in, ChannelPromise promise) {
+    BodyWriter w = new BodyWriter(ctx, streamId, in, promise);
+    _writers.put(streamId, w);
+    w.resume();
+    return promise;
+  }
+
+  /**
+   * One body in flight, only touched from the event loop.
+   */
+  private final class BodyWriter implements ChannelFutureListener {
+
+    private final ChannelHandlerContext _ctx;
+    private final ChunkedInput<ByteBuf> _in;
+    private final ChannelPromise _promise;
+    private final int _sid;
+    private boolean _done;
+
+    BodyWriter(ChannelHandlerContext ctx, int sid,
+               ChunkedInput<ByteBuf> in, ChannelPromise promise) {
+      _ctx = ctx;
+      _sid = sid;
+      _in = in;
+      _promise = promise;
+    }
+
+    void resume() {
+      if (_done) { return; }
+      Http2Connection c = connection();
+      Http2Stream s = c.stream(_sid);
+      if (s == null) {
+        //a client stream may still be queued up
+        if (c.streamMayHaveExisted(_sid)) {
+          _writers.remove(_sid);
+          abort(new IOException("h2 stream closed, body incomplete."));
+        }
+        return;
+      }
+      Http2RemoteFlowController fc = encoder().flowController();
+      try {
+        boolean wrote = false;
+        while (!_done && fc.isWritable(s)) {
+          ByteBuf b = _in.readChunk(_ctx.alloc());
+          boolean end = _in.isEndOfInput();
+          if (b == null && !end) {
+            //nothing to read just yet
+            _ctx.executor().schedule(this::resume, 10, TimeUnit.MILLISECONDS);
+            break;
+          }
+          if (b == null) { b = Unpooled.EMPTY_BUFFER; }
+          wrote = true;
+          if (end) {
+            _done = true;
+            _writers.remove(_sid);
+            closeInput();
+            encoder().writeData(_ctx, _sid, b, 0, true, _promise);
+          } else {
+            encoder().writeData(_ctx, _sid, b, 0, false, _ctx.newPromise().addListener(this));
+          }
+        }
+        if (wrote) { flush(_ctx); }
+      } catch (Throwable t) {
+        _writers.remove(_sid);
+        abort(t);
+        resetStream(_ctx, _sid, INTERNAL_ERROR.code(), _ctx.newPromise());
+      }
+    }
+
+    @Override
+    public void operationComplete(ChannelFuture f) {
+      if (!f.isSuccess() && !_done) {
+        _writers.remove(_sid);
+        abort(f.cause());
+      }
+    }
+
+    void abort(Throwable t) {
+      if (!_done) {
+        _done = true;
+        closeInput();
+        _promise.tryFailure(t);
+      }
+    }
+
+    private void closeInput() {
+      try {
+        _in.close();
+      } catch (Exception e) {
+        if (CU.canLog()) TLOG.warn("", e);
+      }
+    }
   }
 
   public void onError(ChannelHandlerContext ctx, boolean outbound, Throwable cause) {
@@ -82,12 +219,14 @@ public abstract class H2Handler extends Http2ConnectionHandler implements Http2F
 
   @Override
   public int onDataRead(ChannelHandlerContext ctx, int streamId, ByteBuf data, int padding, boolean endOfStream) {
-    int processed = data.readableBytes() + padding;
-    onData(ctx, streamId, data, padding, endOfStream);
-    return processed;
+    return onData(ctx, streamId, data, padding, endOfStream);
   }
 
-  protected abstract void onData(ChannelHandlerContext ctx, int streamId,
+  /**
+   * Returns the bytes processed right away, the rest must be
+   * handed back later through the local flow controller.
+   */
+  protected abstract int onData(ChannelHandlerContext ctx, int streamId,
       ByteBuf data, int padding, boolean endOfStream);
 
   protected abstract void onHeaders(ChannelHandlerContext ctx, int streamId,
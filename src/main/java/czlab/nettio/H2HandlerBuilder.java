@@ -42,6 +42,14 @@ public abstract class H2HandlerBuilder
     return super.build();
   }
 
+  /**
+   * Hold back new streams once the peer's
+   * SETTINGS_MAX_CONCURRENT_STREAMS is reached.
+   */
+  public H2HandlerBuilder queueStreams(boolean b) {
+    return encoderEnforceMaxConcurrentStreams(b);
+  }
+
   @Override
   protected H2Handler build(Http2ConnectionDecoder decoder,
                             Http2ConnectionEncoder encoder,
@@ -0,0 +1,104 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright © 2013-2024, Kenneth Leung. All rights reserved. */
+
+package czlab.nettio;
+
+import io.netty.handler.codec.http.multipart.Attribute;
+import io.netty.handler.codec.http2.Http2Headers;
+
+/**
+ * What the h2 handler keeps for a stream, from its first HEADERS
+ * frame till the message is handed on.  Attached to the stream as
+ * a connection property, so it goes away with the stream.
+ *
+ * Only to be touched from the channel's event loop.
+ *
+ */
+public class H2StreamState {
+
+  private Http2Headers _headers;
+  private Attribute _data;
+  private BodyStream _body;
+  private Object _gist;
+
+  /**
+   */
+  public H2StreamState(Http2Headers h) {
+    _headers = h;
+  }
+
+  /**
+   */
+  public Http2Headers headers() {
+    return _headers;
+  }
+
+  /** Trailing headers are folded into the first lot. */
+  public void addTrailers(Http2Headers h) {
+    _headers.add(h);
+  }
+
+  /** Buffered body, null when streamed. */
+  public Attribute data() {
+    return _data;
+  }
+
+  /**
+   */
+  public void setData(Attribute a) {
+    _data = a;
+  }
+
+  /** Streamed body, null when buffered. */
+  public BodyStream body() {
+    return _body;
+  }
+
+  /**
+   */
+  public void setBody(BodyStream b) {
+    _body = b;
+  }
+
+  /**
+   * The request as made from the first HEADERS frame, kept
+   * till the body is in, so it is only made, and counted, once.
+   */
+  public Object gist() {
+    return _gist;
+  }
+
+  /**
+   */
+  public void setGist(Object g) {
+    _gist = g;
+  }
+
+  /**
+   * The stream went away early, drop what was buffered
+   * and tell the reader the body is incomplete.
+   */
+  public void release() {
+    if (_data != null) {
+      _data.release();
+      _data = null;
+    }
+    if (_body != null) {
+      _body.abort();
+      _body = null;
+    }
+  }
+
+}
+
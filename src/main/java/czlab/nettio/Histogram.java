@@ -0,0 +1,102 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright © 2013-2024, Kenneth Leung. All rights reserved. */
+
+package czlab.nettio;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free log-linear histogram of non-negative longs.
+ *
+ * Each power of two is split into 8 linear sub-buckets, so any
+ * value is placed within 12.5% of its true size, over the whole
+ * range of a long, in a fixed array of 488 counters.  Recording
+ * is a leading-zero count, a shift and an atomic increment.
+ *
+ */
+public class Histogram {
+
+  private static final int SUB_BITS = 3;
+  private static final int SUBS = 1 << SUB_BITS;
+  private static final int BUCKETS = (64 - SUB_BITS) * SUBS;
+
+  private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder _sum = new LongAdder();
+
+  /**
+   */
+  public Histogram() {
+  }
+
+  static int indexOf(long v) {
+    if (v < SUBS) { return v < 0 ? 0 : (int) v; }
+    int e = 63 - Long.numberOfLeadingZeros(v);
+    int sub = (int) (v >>> (e - SUB_BITS)) & (SUBS - 1);
+    return ((e - SUB_BITS + 1) << SUB_BITS) + sub;
+  }
+
+  /** Largest value that falls into this bucket. */
+  static long upperBound(int idx) {
+    if (idx < SUBS) { return idx; }
+    int e = (idx >>> SUB_BITS) + SUB_BITS - 1;
+    long sub = idx & (SUBS - 1);
+    long lo = (SUBS + sub) << (e - SUB_BITS);
+    return lo + (1L << (e - SUB_BITS)) - 1;
+  }
+
+  /**
+   */
+  public void record(long v) {
+    _counts.incrementAndGet(indexOf(v));
+    _sum.add(v);
+  }
+
+  /**
+   */
+  public long count() {
+    long n = 0;
+    for (int i = 0; i < BUCKETS; ++i) { n += _counts.get(i); }
+    return n;
+  }
+
+  /**
+   */
+  public long sum() {
+    return _sum.sum();
+  }
+
+  /**
+   * The value at this quantile (0.0 - 1.0), as the upper
+   * bound of its bucket, 0 if nothing has been recorded.
+   */
+  public long quantile(double q) {
+    long[] cs = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      cs[i] = _counts.get(i);
+      total += cs[i];
+    }
+    if (total == 0) { return 0; }
+    long rank = Math.max(1, (long) Math.ceil(Math.min(1.0, Math.max(0.0, q)) * total));
+    long acc = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      acc += cs[i];
+      if (acc >= rank) { return upperBound(i); }
+    }
+    return upperBound(BUCKETS - 1);
+  }
+
+}
+
@@ -0,0 +1,275 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright © 2013-2024, Kenneth Leung. All rights reserved. */
+
+package czlab.nettio;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.util.AttributeKey;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server side counters, gauges and per route latency histograms.
+ *
+ * Everything is recorded with striped adders or atomic increments,
+ * nothing is locked, so it is cheap enough to leave on.  Read it
+ * back either field by field or as Prometheus text.
+ *
+ */
+public class Metrics {
+
+  /** Route name used for requests that matched no route. */
+  public static final String UNMATCHED = "_";
+
+  /** Requests on a connection not yet replied to or dropped. */
+  private static final AttributeKey<AtomicLong> OWED =
+    AttributeKey.valueOf("nettio.metrics.owed");
+
+  /**
+   * Per route numbers.
+   */
+  public static class Route {
+    private final Histogram _latency = new Histogram();
+    private final LongAdder[] _status = new LongAdder[6];
+
+    Route() {
+      for (int i = 0; i < _status.length; ++i) {
+        _status[i] = new LongAdder();
+      }
+    }
+
+    /** Nanoseconds from request to reply written. */
+    public Histogram latency() { return _latency; }
+
+    /** Replies by class, 1 for 1xx ... 5 for 5xx, 0 for the rest. */
+    public long replies(int klass) {
+      return _status[klass < 1 || klass > 5 ? 0 : klass].sum();
+    }
+  }
+
+  private final Map<String, Route> _routes = new ConcurrentHashMap<String, Route>();
+  private final LongAdder _opened = new LongAdder();
+  private final LongAdder _closed = new LongAdder();
+  private final LongAdder _bytesIn = new LongAdder();
+  private final LongAdder _bytesOut = new LongAdder();
+  private final LongAdder _inflight = new LongAdder();
+  private final LongAdder _streams = new LongAdder();
+  private final LongAdder _failed = new LongAdder();
+  private final ChannelHandler _handler = new Handler();
+
+  /**
+   */
+  public Metrics() {
+  }
+
+  /**
+   * A request has come in on this connection, returns the
+   * time-stamp to be handed back to done.  Whatever is still
+   * owed when the connection closes is no longer in flight.
+   */
+  public long arrived(Channel ch) {
+    AtomicLong n = ch.attr(OWED).get();
+    if (n == null) {
+      final AtomicLong z = new AtomicLong();
+      n = ch.attr(OWED).setIfAbsent(z);
+      if (n == null) {
+        n = z;
+        ch.closeFuture().addListener(f -> _inflight.add(-z.getAndSet(0)));
+      }
+    }
+    n.incrementAndGet();
+    _inflight.increment();
+    return System.nanoTime();
+  }
+
+  /**
+   * The reply has been written, or failed to be.
+   */
+  public void done(Channel ch, String route, int status, long arrived, boolean ok) {
+    settle(ch);
+    if (!ok) { _failed.increment(); }
+    Route r = route(route);
+    r._latency.record(System.nanoTime() - arrived);
+    int k = status / 100;
+    r._status[k < 1 || k > 5 ? 0 : k].increment();
+  }
+
+  /**
+   * The request will not be replied to, such as a websocket upgrade.
+   */
+  public void dropped(Channel ch) {
+    settle(ch);
+  }
+
+  private void settle(Channel ch) {
+    AtomicLong n = ch == null ? null : ch.attr(OWED).get();
+    //already let go if the connection has closed
+    if (n != null && n.getAndUpdate(v -> v > 0 ? v - 1 : 0) > 0) {
+      _inflight.decrement();
+    }
+  }
+
+  /**
+   */
+  public Route route(String name) {
+    String n = name == null ? UNMATCHED : name;
+    Route r = _routes.get(n);
+    return r != null ? r : _routes.computeIfAbsent(n, k -> new Route());
+  }
+
+  /** */
+  public void streamOpened() { _streams.increment(); }
+  /** */
+  public void streamClosed() { _streams.decrement(); }
+
+  public long activeConnections() { return _opened.sum() - _closed.sum(); }
+  public long totalConnections() { return _opened.sum(); }
+  public long bytesIn() { return _bytesIn.sum(); }
+  public long bytesOut() { return _bytesOut.sum(); }
+  public long requests() {
+    long n = inflight();
+    for (Route r : _routes.values()) { n += r._latency.count(); }
+    return n;
+  }
+  public long inflight() { return _inflight.sum(); }
+  public long activeStreams() { return _streams.sum(); }
+  public long failedWrites() { return _failed.sum(); }
+  public Map<String, Route> routes() { return _routes; }
+
+  /**
+   * Counts connections and raw bytes, to be put first in the pipeline.
+   */
+  public ChannelHandler handler() {
+    return _handler;
+  }
+
+  @ChannelHandler.Sharable
+  private class Handler extends ChannelDuplexHandler {
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+      _opened.increment();
+      super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+      _closed.increment();
+      super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+      _bytesIn.add(size(msg));
+      super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise cp) throws Exception {
+      _bytesOut.add(size(msg));
+      super.write(ctx, msg, cp);
+    }
+  }
+
+  private static long size(Object msg) {
+    if (msg instanceof ByteBuf) {
+      return ((ByteBuf) msg).readableBytes();
+    }
+    if (msg instanceof ByteBufHolder) {
+      return ((ByteBufHolder) msg).content().readableBytes();
+    }
+    if (msg instanceof FileRegion) {
+      return ((FileRegion) msg).count();
+    }
+    return 0;
+  }
+
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  private static String label(String s) {
+    return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  private static void gauge(StringBuilder b, String name,
+                            String type, String help, long v) {
+    b.append("# HELP ").append(name).append(' ').append(help).append('\n')
+     .append("# TYPE ").append(name).append(' ').append(type).append('\n')
+     .append(name).append(' ').append(v).append('\n');
+  }
+
+  /**
+   * Everything, in the Prometheus text exposition format.
+   */
+  public String prometheus() {
+    StringBuilder b = new StringBuilder(1024);
+    gauge(b, "nettio_connections_active", "gauge",
+          "Open connections.", activeConnections());
+    gauge(b, "nettio_connections_total", "counter",
+          "Connections accepted.", totalConnections());
+    gauge(b, "nettio_bytes_received_total", "counter",
+          "Bytes read off the wire.", bytesIn());
+    gauge(b, "nettio_bytes_sent_total", "counter",
+          "Bytes written to the wire.", bytesOut());
+    gauge(b, "nettio_requests_total", "counter",
+          "Requests handed to the application.", requests());
+    gauge(b, "nettio_requests_inflight", "gauge",
+          "Requests waiting for a reply to be written.", inflight());
+    gauge(b, "nettio_h2_streams_active", "gauge",
+          "Open http2 streams.", activeStreams());
+    gauge(b, "nettio_reply_failures_total", "counter",
+          "Replies that failed to be written.", failedWrites());
+
+    b.append("# HELP nettio_request_seconds Time from request to reply written.\n")
+     .append("# TYPE nettio_request_seconds summary\n");
+    for (Map.Entry<String, Route> e : _routes.entrySet()) {
+      String rn = label(e.getKey());
+      Histogram h = e.getValue()._latency;
+      for (double q : QUANTILES) {
+        b.append("nettio_request_seconds{route=\"").append(rn)
+         .append("\",quantile=\"").append(q).append("\"} ")
+         .append(h.quantile(q) / 1e9).append('\n');
+      }
+      b.append("nettio_request_seconds_sum{route=\"").append(rn).append("\"} ")
+       .append(h.sum() / 1e9).append('\n');
+      b.append("nettio_request_seconds_count{route=\"").append(rn).append("\"} ")
+       .append(h.count()).append('\n');
+    }
+
+    b.append("# HELP nettio_replies_total Replies by status class.\n")
+     .append("# TYPE nettio_replies_total counter\n");
+    for (Map.Entry<String, Route> e : _routes.entrySet()) {
+      String rn = label(e.getKey());
+      Route r = e.getValue();
+      for (int k = 1; k <= 5; ++k) {
+        long n = r._status[k].sum();
+        if (n > 0) {
+          b.append("nettio_replies_total{route=\"").append(rn)
+           .append("\",code=\"").append(k).append("xx\"} ")
+           .append(n).append('\n');
+        }
+      }
+    }
+    return b.toString();
+  }
+
+}
+
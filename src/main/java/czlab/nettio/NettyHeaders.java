@@ -0,0 +1,182 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright © 2013-2024, Kenneth Leung. All rights reserved. */
+
+package czlab.nettio;
+
+import czlab.niou.Headers;
+import io.netty.handler.codec.http.HttpHeaders;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A live view over netty's HttpHeaders, nothing is copied,
+ * reads and writes go straight to the wrapped headers.
+ *
+ * Walking the fields by position, or using the Map views, copies
+ * the fields once into a flat array, or a snapshot, which is kept
+ * until the headers are changed through this view.  A change made
+ * straight to the wrapped headers is caught only if it changes the
+ * number of fields.
+ *
+ */
+public class NettyHeaders extends Headers {
+
+  private final HttpHeaders _hds;
+  private CharSequence[] _flat;
+  private Map<String, List<String>> _snap;
+  private int _snapCount;
+
+  /**
+   */
+  public NettyHeaders(HttpHeaders hds) {
+    _hds = Objects.requireNonNull(hds);
+  }
+
+  /**
+   */
+  public HttpHeaders unwrap() {
+    return _hds;
+  }
+
+  /** Names and values, interleaved, in field order. */
+  private CharSequence[] flat() {
+    int n = _hds.size();
+    CharSequence[] f = _flat;
+    if (f == null || f.length != (n << 1)) {
+      f = new CharSequence[n << 1];
+      int i = 0;
+      Iterator<Map.Entry<CharSequence, CharSequence>> it = _hds.iteratorCharSequence();
+      while (it.hasNext() && i < f.length) {
+        Map.Entry<CharSequence, CharSequence> e = it.next();
+        f[i++] = e.getKey();
+        f[i++] = e.getValue();
+      }
+      _flat = f;
+    }
+    return f;
+  }
+
+  private void stale() {
+    _flat = null;
+    _snap = null;
+  }
+
+  @Override
+  protected Map<String, List<String>> view() {
+    int n = _hds.size();
+    if (_snap == null || _snapCount != n) {
+      _snap = snapshot();
+      _snapCount = n;
+    }
+    return _snap;
+  }
+
+  @Override
+  public int entryCount() {
+    return _hds.size();
+  }
+
+  @Override
+  public CharSequence nameAt(int pos) {
+    Objects.checkIndex(pos, _hds.size());
+    return flat()[pos << 1];
+  }
+
+  @Override
+  public CharSequence valueAt(int pos) {
+    Objects.checkIndex(pos, _hds.size());
+    return flat()[(pos << 1) + 1];
+  }
+
+  @Override
+  public boolean containsKey(Object kee) {
+    return (kee instanceof CharSequence) ? _hds.contains((CharSequence)kee) : false;
+  }
+
+  @Override
+  public int size() {
+    return _hds.names().size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return _hds.isEmpty();
+  }
+
+  @Override
+  public List<String> get(Object kee) {
+    if (kee instanceof CharSequence) {
+      List<String> out = _hds.getAll((CharSequence)kee);
+      return out.isEmpty() ? null : out;
+    }
+    return null;
+  }
+
+  @Override
+  public String getFirst(CharSequence kee) {
+    return (kee != null) ? _hds.get(kee) : null;
+  }
+
+  @Override
+  public List<String> put(String kee, List<String> vals) {
+    List<String> old = null;
+    if (kee != null) {
+      old = get(kee);
+      if (vals == null) {
+        _hds.remove(kee);
+      } else {
+        _hds.set(kee, vals);
+      }
+      stale();
+    }
+    return old;
+  }
+
+  @Override
+  public Headers add(CharSequence kee, CharSequence val) {
+    if (kee != null && val != null) {
+      _hds.add(kee, val);
+      stale();
+    }
+    return this;
+  }
+
+  @Override
+  public void set(CharSequence kee, CharSequence val) {
+    if (kee != null && val != null) {
+      _hds.set(kee, val);
+      stale();
+    }
+  }
+
+  @Override
+  public List<String> remove(Object kee) {
+    List<String> old = get(kee);
+    if (old != null) {
+      _hds.remove((CharSequence)kee);
+      stale();
+    }
+    return old;
+  }
+
+  @Override
+  public void clear() {
+    _hds.clear();
+    stale();
+  }
+
+}
+
@@ -0,0 +1,79 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright © 2013-2024, Kenneth Leung. All rights reserved. */
+package czlab.nettio;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+/**
+ * The one owner of a channel's autoRead.
+ *
+ * Anything that wants the channel to stop reading, a full request
+ * pipeline, a body stream with too much queued, takes a pause and
+ * gives it back later.  Reading stops at the first pause and only
+ * starts again when the last one has been given back, so no one can
+ * resume the channel from under another.  Each party must pair its
+ * own pause and resume.
+ *
+ */
+public final class ReadGate {
+
+  private static final AttributeKey<ReadGate> KEY =
+    AttributeKey.valueOf("nettio.read-gate");
+
+  private final Channel _ch;
+  private int _pauses;
+
+  private ReadGate(Channel ch) {
+    _ch = ch;
+  }
+
+  /**
+   * The gate of this channel, made on first use.
+   */
+  public static ReadGate of(Channel ch) {
+    ReadGate g = ch.attr(KEY).get();
+    if (g == null) {
+      ReadGate z = new ReadGate(ch);
+      g = ch.attr(KEY).setIfAbsent(z);
+      if (g == null) { g = z; }
+    }
+    return g;
+  }
+
+  /**
+   * Stop reading, till resumed.
+   */
+  public synchronized void pause() {
+    if (_pauses++ == 0) {
+      _ch.config().setAutoRead(false);
+    }
+  }
+
+  /**
+   * Give back a pause, reading starts again after the last one.
+   */
+  public synchronized void resume() {
+    if (_pauses > 0 && --_pauses == 0) {
+      _ch.config().setAutoRead(true);
+    }
+  }
+
+  /**
+   */
+  public synchronized boolean isPaused() {
+    return _pauses > 0;
+  }
+
+}
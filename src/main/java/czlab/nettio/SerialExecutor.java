@@ -0,0 +1,98 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright © 2013-2024, Kenneth Leung. All rights reserved. */
+package czlab.nettio;
+
+import io.netty.util.concurrent.EventExecutor;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Runs a connection's tasks one after another, in the order given,
+ * each on the executor it was handed in with.
+ *
+ * A task does not start till the one before it has returned, so the
+ * replies of a connection cannot overtake each other, whichever thread
+ * the handlers run on.  A task for the event loop, handed in while on
+ * that loop, runs in place, there is no hop when nothing is pending.
+ *
+ */
+public class SerialExecutor {
+
+  private static final class Job {
+    final Executor ex;
+    final Runnable task;
+    final Consumer<RejectedExecutionException> rejected;
+    Job(Executor ex, Runnable task,
+        Consumer<RejectedExecutionException> rejected) {
+      this.ex = ex;
+      this.task = task;
+      this.rejected = rejected;
+    }
+  }
+
+  private final ArrayDeque<Job> _jobs = new ArrayDeque<Job>();
+  private boolean _busy;
+
+  /**
+   */
+  public SerialExecutor() {
+  }
+
+  /**
+   * Queue the task, rejected is called instead if the
+   * executor turns it down when its turn comes.
+   */
+  public void execute(Executor ex,
+                      Runnable task,
+                      Consumer<RejectedExecutionException> rejected) {
+    synchronized (this) {
+      _jobs.add(new Job(ex, task, rejected));
+      if (_busy) { return; }
+      _busy = true;
+    }
+    next();
+  }
+
+  private void next() {
+    while (true) {
+      final Job j;
+      synchronized (this) {
+        j = _jobs.poll();
+        if (j == null) {
+          _busy = false;
+          return;
+        }
+      }
+      if (j.ex instanceof EventExecutor &&
+          ((EventExecutor) j.ex).inEventLoop()) {
+        //tasks deal with their own errors, this is
+        //only so that one bad task cannot wedge the rest
+        try { j.task.run(); } catch (Throwable t) { }
+        continue;
+      }
+      try {
+        j.ex.execute(() -> {
+          try { j.task.run(); } finally { next(); }
+        });
+        return;
+      } catch (RejectedExecutionException e) {
+        j.rejected.accept(e);
+      }
+    }
+  }
+
+}
+
@@ -0,0 +1,424 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright © 2013-2024, Kenneth Leung. All rights reserved. */
+
+package czlab.nettio;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CorruptedWebSocketFrameException;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketCloseStatus;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionDecoder;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionEncoder;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilter;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilterProvider;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandshaker;
+import io.netty.util.concurrent.FastThreadLocal;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * permessage-deflate (RFC 7692) which holds no zlib state
+ * on an idle connection.
+ *
+ * Without context takeover each message is compressed on its own,
+ * so the Deflater and Inflater can be shared by all connections on
+ * an event loop and reset after every message, instead of a pair
+ * of a few hundred KB being kept by each connection.  A side which
+ * does keep its context gets its own, as usual.  Messages under the
+ * minimum size are sent as they are.
+ *
+ * java.util.zip always uses a 15 bit window, so an offer asking
+ * for a smaller server window is declined, and left for the next
+ * handshaker in line.
+ *
+ */
+public class WsDeflate implements WebSocketServerExtensionHandshaker {
+
+  static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+  static final String CLIENT_MAX_WINDOW = "client_max_window_bits";
+  static final String SERVER_MAX_WINDOW = "server_max_window_bits";
+  static final String CLIENT_NO_CONTEXT = "client_no_context_takeover";
+  static final String SERVER_NO_CONTEXT = "server_no_context_takeover";
+
+  private static final int MAX_WINDOW = 15;
+  private static final byte[] TAIL = {0x00, 0x00, (byte) 0xff, (byte) 0xff};
+
+  private static final FastThreadLocal<Deflater[]> DEFLATERS =
+    new FastThreadLocal<Deflater[]>() {
+      @Override
+      protected Deflater[] initialValue() { return new Deflater[10]; }
+      @Override
+      protected void onRemoval(Deflater[] ds) {
+        for (Deflater d : ds) { if (d != null) { d.end(); } }
+      }
+    };
+
+  private static final FastThreadLocal<Inflater> INFLATERS =
+    new FastThreadLocal<Inflater>() {
+      @Override
+      protected Inflater initialValue() { return new Inflater(true); }
+      @Override
+      protected void onRemoval(Inflater i) { i.end(); }
+    };
+
+  private final boolean _serverNoContext;
+  private final boolean _clientNoContext;
+  private final int _clientWindow;
+  private final int _minSize;
+  private final int _maxSize;
+  private final int _level;
+
+  /**
+   * If clientNoContext, the client is told not to keep its
+   * context, even if it did not offer to.
+   */
+  public WsDeflate(int level,
+                   int minSize,
+                   int maxSize,
+                   int clientWindow,
+                   boolean serverNoContext,
+                   boolean clientNoContext) {
+    _level = Math.max(0, Math.min(9, level));
+    _minSize = Math.max(0, minSize);
+    _maxSize = maxSize > 0 ? maxSize : Integer.MAX_VALUE;
+    _clientWindow = Math.max(9, Math.min(MAX_WINDOW, clientWindow));
+    _serverNoContext = serverNoContext;
+    _clientNoContext = clientNoContext;
+  }
+
+  /**
+   * Skips whole messages smaller than minSize, for the
+   * netty handshakers.
+   */
+  public static WebSocketExtensionFilterProvider filter(int minSize) {
+    WebSocketExtensionFilter f = frame ->
+      frame.isFinalFragment() &&
+      (frame instanceof TextWebSocketFrame ||
+       frame instanceof BinaryWebSocketFrame) &&
+      frame.content().readableBytes() < minSize;
+    return new WebSocketExtensionFilterProvider() {
+      @Override
+      public WebSocketExtensionFilter encoderFilter() { return f; }
+      @Override
+      public WebSocketExtensionFilter decoderFilter() {
+        return WebSocketExtensionFilter.NEVER_SKIP;
+      }
+    };
+  }
+
+  @Override
+  public WebSocketServerExtension handshakeExtension(WebSocketExtensionData data) {
+    if (!PERMESSAGE_DEFLATE.equals(data.name())) {
+      return null;
+    }
+    boolean snc = _serverNoContext;
+    boolean cnc = _clientNoContext;
+    int cwin = -1;
+    int swin = -1;
+    for (Map.Entry<String, String> e : data.parameters().entrySet()) {
+      String k = e.getKey().toLowerCase(Locale.ROOT);
+      String v = e.getValue();
+      if (SERVER_MAX_WINDOW.equals(k)) {
+        swin = bits(v);
+        if (swin != MAX_WINDOW) { return null; }
+      } else if (CLIENT_MAX_WINDOW.equals(k)) {
+        cwin = v == null ? MAX_WINDOW : bits(v);
+        if (cwin < 0) { return null; }
+      } else if (CLIENT_NO_CONTEXT.equals(k)) {
+        cnc = true;
+      } else if (SERVER_NO_CONTEXT.equals(k)) {
+        snc = true;
+      } else {
+        return null;
+      }
+    }
+    Map<String, String> rsp = new HashMap<String, String>();
+    if (snc) { rsp.put(SERVER_NO_CONTEXT, null); }
+    if (cnc) { rsp.put(CLIENT_NO_CONTEXT, null); }
+    if (swin > 0) { rsp.put(SERVER_MAX_WINDOW, Integer.toString(swin)); }
+    if (cwin > 0 && _clientWindow < MAX_WINDOW) {
+      rsp.put(CLIENT_MAX_WINDOW, Integer.toString(Math.min(cwin, _clientWindow)));
+    }
+    return new Extension(snc, cnc, new WebSocketExtensionData(PERMESSAGE_DEFLATE, rsp));
+  }
+
+  private static int bits(String v) {
+    try {
+      int n = Integer.parseInt(v);
+      return n >= 8 && n <= MAX_WINDOW ? n : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private class Extension implements WebSocketServerExtension {
+    private final WebSocketExtensionData _rsp;
+    private final boolean _snc;
+    private final boolean _cnc;
+
+    Extension(boolean snc, boolean cnc, WebSocketExtensionData rsp) {
+      _snc = snc;
+      _cnc = cnc;
+      _rsp = rsp;
+    }
+
+    @Override
+    public int rsv() { return WebSocketExtension.RSV1; }
+
+    @Override
+    public WebSocketExtensionEncoder newExtensionEncoder() {
+      return new Encoder(_level, _minSize, _snc);
+    }
+
+    @Override
+    public WebSocketExtensionDecoder newExtensionDecoder() {
+      return new Decoder(_maxSize, _cnc);
+    }
+
+    @Override
+    public WebSocketExtensionData newReponseData() { return _rsp; }
+  }
+
+  /**
+   * If pooled, a fragmented message is sent uncompressed, as the
+   * shared Deflater can not be held across frames.
+   */
+  static class Encoder extends WebSocketExtensionEncoder {
+    private final boolean _pooled;
+    private final int _minSize;
+    private final int _level;
+    private boolean _inMsg;
+    private Deflater _own;
+
+    Encoder(int level, int minSize, boolean pooled) {
+      _level = level;
+      _minSize = minSize;
+      _pooled = pooled;
+    }
+
+    @Override
+    public boolean acceptOutboundMessage(Object msg) throws Exception {
+      return (msg instanceof TextWebSocketFrame ||
+              msg instanceof BinaryWebSocketFrame ||
+              msg instanceof ContinuationWebSocketFrame) &&
+             (((WebSocketFrame) msg).rsv() & WebSocketExtension.RSV1) == 0;
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx,
+                          WebSocketFrame f, List<Object> out) throws Exception {
+      boolean fin = f.isFinalFragment();
+      if (f instanceof ContinuationWebSocketFrame) {
+        if (!_inMsg) {
+          out.add(f.retain());
+        } else {
+          _inMsg = !fin;
+          out.add(new ContinuationWebSocketFrame(fin, f.rsv(),
+                                                 deflate(ctx.alloc(), _own, f.content(), fin)));
+        }
+        return;
+      }
+      if ((fin && f.content().readableBytes() < _minSize) ||
+          (!fin && _pooled)) {
+        out.add(f.retain());
+        return;
+      }
+      Deflater d = _pooled ? shared(_level) : own();
+      ByteBuf b;
+      try {
+        b = deflate(ctx.alloc(), d, f.content(), fin);
+      } finally {
+        if (_pooled) { d.reset(); }
+      }
+      _inMsg = !fin;
+      int rsv = f.rsv() | WebSocketExtension.RSV1;
+      out.add(f instanceof TextWebSocketFrame ?
+              new TextWebSocketFrame(fin, rsv, b) :
+              new BinaryWebSocketFrame(fin, rsv, b));
+    }
+
+    private Deflater own() {
+      if (_own == null) { _own = new Deflater(_level, true); }
+      return _own;
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+      if (_own != null) {
+        _own.end();
+        _own = null;
+      }
+      super.handlerRemoved(ctx);
+    }
+  }
+
+  /**
+   * If pooled, a compressed message in one frame uses the shared
+   * Inflater, a fragmented one gets its own, until its last frame.
+   */
+  static class Decoder extends WebSocketExtensionDecoder {
+    private final boolean _pooled;
+    private final int _maxSize;
+    private boolean _inMsg;
+    private Inflater _own;
+    private long _size;
+
+    Decoder(int maxSize, boolean pooled) {
+      _maxSize = maxSize;
+      _pooled = pooled;
+    }
+
+    @Override
+    public boolean acceptInboundMessage(Object msg) throws Exception {
+      if (msg instanceof ContinuationWebSocketFrame) {
+        return _inMsg;
+      }
+      return (msg instanceof TextWebSocketFrame ||
+              msg instanceof BinaryWebSocketFrame) &&
+             (((WebSocketFrame) msg).rsv() & WebSocketExtension.RSV1) != 0;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx,
+                          WebSocketFrame f, List<Object> out) throws Exception {
+      boolean fin = f.isFinalFragment();
+      boolean cont = f instanceof ContinuationWebSocketFrame;
+      if (!cont) { _size = 0; }
+      Inflater i = (!cont && fin && _pooled) ? INFLATERS.get() : own();
+      ByteBuf b;
+      try {
+        b = inflate(ctx.alloc(), i, f.content(), fin);
+      } finally {
+        if (fin && _pooled) {
+          if (i == _own) {
+            _own.end();
+            _own = null;
+          } else {
+            i.reset();
+          }
+        }
+      }
+      _inMsg = !fin;
+      if (cont) {
+        out.add(new ContinuationWebSocketFrame(fin, f.rsv(), b));
+      } else {
+        int rsv = f.rsv() & ~WebSocketExtension.RSV1;
+        out.add(f instanceof TextWebSocketFrame ?
+                new TextWebSocketFrame(fin, rsv, b) :
+                new BinaryWebSocketFrame(fin, rsv, b));
+      }
+    }
+
+    private Inflater own() {
+      if (_own == null) { _own = new Inflater(true); }
+      return _own;
+    }
+
+    private ByteBuf inflate(ByteBufAllocator alloc,
+                            Inflater i, ByteBuf in, boolean fin) {
+      ByteBuf out = alloc.buffer(Math.max(64, in.readableBytes() * 2));
+      try {
+        i.setInput(in.nioBuffer());
+        drain(i, out);
+        if (fin) {
+          i.setInput(TAIL);
+          drain(i, out);
+        }
+        return out;
+      } catch (DataFormatException e) {
+        out.release();
+        throw new CorruptedWebSocketFrameException(
+          WebSocketCloseStatus.INVALID_PAYLOAD_DATA, e.getMessage());
+      } catch (RuntimeException e) {
+        out.release();
+        throw e;
+      }
+    }
+
+    private void drain(Inflater i, ByteBuf out) throws DataFormatException {
+      while (true) {
+        out.ensureWritable(256);
+        int room = out.writableBytes();
+        ByteBuffer nb = out.nioBuffer(out.writerIndex(), room);
+        int n = i.inflate(nb);
+        out.writerIndex(out.writerIndex() + n);
+        _size += n;
+        if (_size > _maxSize) {
+          throw new CorruptedWebSocketFrameException(
+            WebSocketCloseStatus.MESSAGE_TOO_BIG, "inflated message too big");
+        }
+        //less than asked for, so out of input
+        if (n < room) { return; }
+      }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+      if (_own != null) {
+        _own.end();
+        _own = null;
+      }
+      super.handlerRemoved(ctx);
+    }
+  }
+
+  private static Deflater shared(int level) {
+    Deflater[] ds = DEFLATERS.get();
+    Deflater d = ds[level];
+    if (d == null) {
+      d = ds[level] = new Deflater(level, true);
+    }
+    return d;
+  }
+
+  static ByteBuf deflate(ByteBufAllocator alloc,
+                         Deflater d, ByteBuf in, boolean fin) {
+    ByteBuf out = alloc.buffer(Math.max(64, in.readableBytes() / 2 + 16));
+    try {
+      d.setInput(in.nioBuffer());
+      while (true) {
+        out.ensureWritable(256);
+        int room = out.writableBytes();
+        ByteBuffer nb = out.nioBuffer(out.writerIndex(), room);
+        int n = d.deflate(nb, Deflater.SYNC_FLUSH);
+        out.writerIndex(out.writerIndex() + n);
+        if (n < room) { break; }
+      }
+      if (fin && out.readableBytes() >= 4 &&
+          out.getInt(out.writerIndex() - 4) == 0x0000ffff) {
+        out.writerIndex(out.writerIndex() - 4);
+      }
+      return out;
+    } catch (RuntimeException e) {
+      out.release();
+      throw e;
+    }
+  }
+
+}
+
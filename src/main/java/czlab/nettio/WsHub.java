@@ -0,0 +1,280 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright © 2013-2024, Kenneth Leung. All rights reserved. */
+
+package czlab.nettio;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Topic based fan-out of websocket frames.
+ *
+ * A frame is encoded once by the publisher, and each subscriber is
+ * sent a retained duplicate of it, so the content is shared by all.
+ * Writes are grouped by event loop, one task per loop per publish,
+ * and each loop flushes its channels once per tick, however many
+ * frames were written to them in between.
+ *
+ * A subscriber which is not writable, over its high water mark, is
+ * dealt with by the policy - the frame is dropped, or kept as the
+ * only one pending and sent once it drains, or the channel is closed.
+ *
+ */
+public class WsHub {
+
+  /**
+   * What to do with a consumer too slow to keep up.
+   */
+  public static enum Policy {
+    /** Skip the frame. */
+    DROP,
+    /** Keep only the latest frame, send it once writable. */
+    COALESCE,
+    /** Close the channel. */
+    DISCONNECT
+  }
+
+  private static final String NAME = "wshub";
+  private static final AttributeKey<WebSocketFrame> PENDING =
+    AttributeKey.valueOf("wshub-pending");
+
+  private final Map<String, ChannelGroup> _topics =
+    new ConcurrentHashMap<String, ChannelGroup>();
+  private final Map<EventLoop, Batch> _batches =
+    new ConcurrentHashMap<EventLoop, Batch>();
+  private final ChannelHandler _handler = new Handler();
+  private final WriteBufferWaterMark _mark;
+  private final Policy _policy;
+
+  private final LongAdder _published = new LongAdder();
+  private final LongAdder _delivered = new LongAdder();
+  private final LongAdder _dropped = new LongAdder();
+  private final LongAdder _coalesced = new LongAdder();
+  private final LongAdder _disconnected = new LongAdder();
+
+  /**
+   * The water mark, if not null, is set on each subscriber.
+   */
+  public WsHub(Policy policy, WriteBufferWaterMark mark) {
+    _policy = policy == null ? Policy.DROP : policy;
+    _mark = mark;
+  }
+
+  /**
+   */
+  public WsHub(Policy policy) {
+    this(policy, null);
+  }
+
+  /**
+   * Closed channels leave their topics by themselves.
+   */
+  public void subscribe(String topic, Channel ch) {
+    ChannelGroup g = _topics.get(topic);
+    if (g == null) {
+      g = _topics.computeIfAbsent(topic,
+            k -> new DefaultChannelGroup(k, GlobalEventExecutor.INSTANCE));
+    }
+    if (g.add(ch)) {
+      ch.eventLoop().execute(() -> setup(ch));
+    }
+  }
+
+  /**
+   */
+  public void unsubscribe(String topic, Channel ch) {
+    ChannelGroup g = _topics.get(topic);
+    if (g != null) { g.remove(ch); }
+  }
+
+  /**
+   * Number of subscribers to this topic.
+   */
+  public int subscribers(String topic) {
+    ChannelGroup g = _topics.get(topic);
+    return g == null ? 0 : g.size();
+  }
+
+  private void setup(Channel ch) {
+    ChannelPipeline pp = ch.pipeline();
+    if (ch.isActive() && pp.get(NAME) == null) {
+      if (_mark != null) {
+        ch.config().setWriteBufferWaterMark(_mark);
+      }
+      pp.addFirst(NAME, _handler);
+    }
+  }
+
+  /**
+   * Send the frame to all subscribers of the topic, the frame
+   * is taken over, and released once written to everyone.
+   * Returns the number of subscribers it was handed to.
+   */
+  public int publish(String topic, WebSocketFrame frame) {
+    ChannelGroup g = _topics.get(topic);
+    if (g == null || g.isEmpty()) {
+      frame.release();
+      return 0;
+    }
+    _published.increment();
+    Map<EventLoop, List<Channel>> loops = new HashMap<EventLoop, List<Channel>>();
+    int n = 0;
+    for (Channel c : g) {
+      loops.computeIfAbsent(c.eventLoop(), k -> new ArrayList<Channel>()).add(c);
+      ++n;
+    }
+    try {
+      for (Map.Entry<EventLoop, List<Channel>> e : loops.entrySet()) {
+        EventLoop loop = e.getKey();
+        List<Channel> cs = e.getValue();
+        frame.retain();
+        try {
+          loop.execute(() -> {
+            try {
+              Batch b = batch(loop);
+              for (Channel c : cs) { deliver(b, c, frame); }
+            } finally {
+              frame.release();
+            }
+          });
+        } catch (RuntimeException ex) {
+          //the loop is shutting down
+          frame.release();
+        }
+      }
+    } finally {
+      frame.release();
+    }
+    return n;
+  }
+
+  private Batch batch(EventLoop loop) {
+    Batch b = _batches.get(loop);
+    return b != null ? b : _batches.computeIfAbsent(loop, Batch::new);
+  }
+
+  /** Called on the channel's event loop. */
+  private void deliver(Batch b, Channel c, WebSocketFrame frame) {
+    if (!c.isActive()) { return; }
+    if (c.isWritable()) {
+      c.write(frame.retainedDuplicate(), c.voidPromise());
+      _delivered.increment();
+      b.dirty(c);
+      return;
+    }
+    switch (_policy) {
+      case COALESCE:
+        WebSocketFrame old = c.attr(PENDING).getAndSet(frame.retainedDuplicate());
+        if (old != null) {
+          old.release();
+          _coalesced.increment();
+        }
+        break;
+      case DISCONNECT:
+        _disconnected.increment();
+        c.close();
+        break;
+      default:
+        _dropped.increment();
+        break;
+    }
+  }
+
+  /**
+   * Channels written to on one event loop, flushed
+   * together at the end of the tick, once each.
+   */
+  private static class Batch implements Runnable {
+    private final List<Channel> _dirty = new ArrayList<Channel>();
+    private final Set<Channel> _seen =
+      Collections.newSetFromMap(new IdentityHashMap<Channel, Boolean>());
+    private final EventLoop _loop;
+    private boolean _scheduled;
+
+    Batch(EventLoop loop) {
+      _loop = loop;
+    }
+
+    void dirty(Channel c) {
+      if (!_seen.add(c)) { return; }
+      _dirty.add(c);
+      if (!_scheduled) {
+        _scheduled = true;
+        _loop.execute(this);
+      }
+    }
+
+    @Override
+    public void run() {
+      _scheduled = false;
+      //a flush may dirty a channel again, even one done already
+      for (int i = 0; i < _dirty.size(); ++i) {
+        Channel c = _dirty.get(i);
+        _seen.remove(c);
+        c.flush();
+      }
+      _dirty.clear();
+    }
+  }
+
+  @ChannelHandler.Sharable
+  private class Handler extends ChannelInboundHandlerAdapter {
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+      Channel c = ctx.channel();
+      if (c.isWritable()) {
+        WebSocketFrame f = c.attr(PENDING).getAndSet(null);
+        if (f != null) {
+          c.writeAndFlush(f, c.voidPromise());
+          _delivered.increment();
+        }
+      }
+      super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+      WebSocketFrame f = ctx.channel().attr(PENDING).getAndSet(null);
+      if (f != null) { f.release(); }
+      super.channelInactive(ctx);
+    }
+  }
+
+  public long published() { return _published.sum(); }
+  public long delivered() { return _delivered.sum(); }
+  public long dropped() { return _dropped.sum(); }
+  public long coalesced() { return _coalesced.sum(); }
+  public long disconnected() { return _disconnected.sum(); }
+
+}
+
@@ -14,61 +14,242 @@
 
 package czlab.niou;
 
+import io.netty.util.AsciiString;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.GregorianCalendar;
-import java.util.Locale;
-import java.util.TimeZone;
 
 /**
+ * Http dates, formatted and parsed by hand, always in GMT.
+ *
+ * Parsing accepts the three formats allowed by RFC 7231, IMF-fixdate,
+ * RFC 850 and asctime, allocates nothing, and returns the caller's
+ * default, rather than throwing, if the input is not a date.
+ *
  */
 public enum DateUtil {
 ;
 
-  private static ThreadLocal<SimpleDateFormat> _fmt = new ThreadLocal<SimpleDateFormat>() {
+  /** Returned by parseHttpDate(s) when there is no date. */
+  public static final long NO_DATE = Long.MIN_VALUE;
 
-    public SimpleDateFormat initialValue() {
-      SimpleDateFormat f= new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
-      f.setTimeZone(TimeZone.getTimeZone("GMT"));
-      return f;
-    }
+  private static final String[] DAYS = {
+    "Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat"
+  };
 
+  private static final String[] MONTHS = {
+    "Jan", "Feb", "Mar", "Apr", "May", "Jun",
+    "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"
   };
 
+  //IMF-fixdate is always 29 chars
+  private static final int FIXDATE_LEN = 29;
+
   /**
    */
-  public static long parseHttpDate(String s, long defaultValue) {
-    try {
-      return parseHttpDate(s);
-    } catch (ParseException e) {}
-    return defaultValue;
+  public static long parseHttpDate(CharSequence s, long defaultValue) {
+    long t = (s == null) ? NO_DATE : parse(s);
+    return t == NO_DATE ? defaultValue : t;
   }
 
   /**
    */
-  public static long parseHttpDate(String s) throws ParseException {
-    return getSDF().parse(s).getTime();
+  public static long parseHttpDate(CharSequence s) throws ParseException {
+    long t = (s == null) ? NO_DATE : parse(s);
+    if (t == NO_DATE) {
+      throw new ParseException("Bad http date: " + s, 0);
+    }
+    return t;
   }
 
   /**
    */
   public static String formatHttpDate(long d) {
-    GregorianCalendar gc= new GregorianCalendar(TimeZone.getTimeZone("GMT"));
-    gc.setTimeInMillis(d);
-    return getSDF().format(gc.getTime());
+    byte[] b = new byte[FIXDATE_LEN];
+    format(d, b);
+    return new String(b, StandardCharsets.US_ASCII);
   }
 
   /**/
   public static String formatHttpDate(Date d) {
-    GregorianCalendar gc= new GregorianCalendar(TimeZone.getTimeZone("GMT"));
-    gc.setTime(d);
-    return getSDF().format(gc.getTime());
+    return formatHttpDate(d.getTime());
   }
 
-  /**/
-  public static SimpleDateFormat getSDF() {
-    return _fmt.get();
+  /** IMF-fixdate as a header value, no charset encoding needed. */
+  public static AsciiString asciiHttpDate(long d) {
+    byte[] b = new byte[FIXDATE_LEN];
+    format(d, b);
+    return new AsciiString(b, false);
+  }
+
+  private static void format(long ms, byte[] out) {
+    long secs = Math.floorDiv(ms, 1000L);
+    long days = Math.floorDiv(secs, 86400L);
+    int sod = (int) Math.floorMod(secs, 86400L);
+    //1970-01-01 was a Thursday
+    String dow = DAYS[(int) Math.floorMod(days + 4, 7L)];
+    //days to civil, see H. Hinnant's chrono algorithms
+    long z = days + 719468;
+    long era = Math.floorDiv(z, 146097L);
+    long doe = z - era * 146097;
+    long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+    long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+    long mp = (5 * doy + 2) / 153;
+    int d = (int) (doy - (153 * mp + 2) / 5 + 1);
+    int m = (int) (mp < 10 ? mp + 3 : mp - 9);
+    int y = (int) (yoe + era * 400 + (m <= 2 ? 1 : 0));
+    String mon = MONTHS[m - 1];
+    out[0] = (byte) dow.charAt(0);
+    out[1] = (byte) dow.charAt(1);
+    out[2] = (byte) dow.charAt(2);
+    out[3] = ',';
+    out[4] = ' ';
+    digits(out, 5, d, 2);
+    out[7] = ' ';
+    out[8] = (byte) mon.charAt(0);
+    out[9] = (byte) mon.charAt(1);
+    out[10] = (byte) mon.charAt(2);
+    out[11] = ' ';
+    digits(out, 12, y, 4);
+    out[16] = ' ';
+    digits(out, 17, sod / 3600, 2);
+    out[19] = ':';
+    digits(out, 20, (sod / 60) % 60, 2);
+    out[22] = ':';
+    digits(out, 23, sod % 60, 2);
+    out[25] = ' ';
+    out[26] = 'G';
+    out[27] = 'M';
+    out[28] = 'T';
+  }
+
+  private static void digits(byte[] out, int pos, int v, int n) {
+    for (int i = pos + n - 1; i >= pos; --i) {
+      out[i] = (byte) ('0' + (v % 10));
+      v /= 10;
+    }
+  }
+
+  private static long parse(CharSequence s) {
+    int e = s.length();
+    int i = 0;
+    while (i < e && s.charAt(i) <= ' ') { ++i; }
+    while (e > i && s.charAt(e - 1) <= ' ') { --e; }
+    //skip the day of week, short or long
+    int w = i;
+    while (i < e && isAlpha(s.charAt(i))) { ++i; }
+    if (i - w < 3 || i >= e) { return NO_DATE; }
+    int d, m, y;
+    long tod;
+    if (s.charAt(i) == ',') {
+      //IMF-fixdate: Sun, 06 Nov 1994 08:49:37 GMT
+      //RFC 850:     Sunday, 06-Nov-94 08:49:37 GMT
+      if (++i >= e || s.charAt(i) != ' ') { return NO_DATE; }
+      ++i;
+      d = num(s, i, 2, e);
+      i += 2;
+      if (i >= e) { return NO_DATE; }
+      char sep = s.charAt(i);
+      if (sep != ' ' && sep != '-') { return NO_DATE; }
+      m = month(s, ++i, e);
+      i += 3;
+      if (i >= e || s.charAt(i) != sep) { return NO_DATE; }
+      ++i;
+      if (sep == ' ') {
+        y = num(s, i, 4, e);
+        i += 4;
+      } else {
+        y = num(s, i, 2, e);
+        i += 2;
+        if (y >= 0) { y += (y < 70) ? 2000 : 1900; }
+      }
+      if (i >= e || s.charAt(i) != ' ') { return NO_DATE; }
+      tod = time(s, ++i, e);
+      i += 8;
+      if (e - i != 4 ||
+          s.charAt(i) != ' ' ||
+          s.charAt(i + 1) != 'G' ||
+          s.charAt(i + 2) != 'M' ||
+          s.charAt(i + 3) != 'T') { return NO_DATE; }
+    } else {
+      //asctime: Sun Nov  6 08:49:37 1994
+      if (s.charAt(i) != ' ') { return NO_DATE; }
+      m = month(s, ++i, e);
+      i += 3;
+      if (i >= e || s.charAt(i) != ' ') { return NO_DATE; }
+      ++i;
+      if (i < e && s.charAt(i) == ' ') { ++i; }
+      if (i + 1 < e && isDigit(s.charAt(i + 1))) {
+        d = num(s, i, 2, e);
+        i += 2;
+      } else {
+        d = num(s, i, 1, e);
+        i += 1;
+      }
+      if (i >= e || s.charAt(i) != ' ') { return NO_DATE; }
+      tod = time(s, ++i, e);
+      i += 8;
+      if (i >= e || s.charAt(i) != ' ') { return NO_DATE; }
+      y = num(s, ++i, 4, e);
+      if (i + 4 != e) { return NO_DATE; }
+    }
+    if (d < 1 || d > 31 || m < 1 || y < 0 || tod < 0) { return NO_DATE; }
+    return (civilDays(y, m, d) * 86400L + tod) * 1000L;
+  }
+
+  /** hh:mm:ss as seconds, or -1. */
+  private static long time(CharSequence s, int i, int e) {
+    if (i + 8 > e || s.charAt(i + 2) != ':' || s.charAt(i + 5) != ':') { return -1; }
+    int h = num(s, i, 2, e);
+    int m = num(s, i + 3, 2, e);
+    int c = num(s, i + 6, 2, e);
+    if (h < 0 || h > 23 || m < 0 || m > 59 || c < 0 || c > 60) { return -1; }
+    return h * 3600L + m * 60L + c;
+  }
+
+  private static int month(CharSequence s, int i, int e) {
+    if (i + 3 > e) { return -1; }
+    for (int k = 0; k < MONTHS.length; ++k) {
+      String n = MONTHS[k];
+      if (lower(s.charAt(i)) == lower(n.charAt(0)) &&
+          lower(s.charAt(i + 1)) == n.charAt(1) &&
+          lower(s.charAt(i + 2)) == n.charAt(2)) {
+        return k + 1;
+      }
+    }
+    return -1;
+  }
+
+  private static int num(CharSequence s, int i, int n, int e) {
+    if (i + n > e) { return -1; }
+    int v = 0;
+    for (int k = i; k < i + n; ++k) {
+      char c = s.charAt(k);
+      if (!isDigit(c)) { return -1; }
+      v = v * 10 + (c - '0');
+    }
+    return v;
+  }
+
+  private static long civilDays(int y, int m, int d) {
+    y -= (m <= 2) ? 1 : 0;
+    long era = Math.floorDiv(y, 400);
+    long yoe = y - era * 400;
+    long doy = (153 * (m > 2 ? m - 3 : m + 9) + 2) / 5 + d - 1;
+    long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+    return era * 146097 + doe - 719468;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isAlpha(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
+  private static char lower(char c) {
+    return (c >= 'A' && c <= 'Z') ? (char) (c + 32) : c;
   }
 
 }
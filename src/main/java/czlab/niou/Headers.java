@@ -14,110 +14,251 @@
 
 package czlab.niou;
 
+import io.netty.util.AsciiString;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 /**
  * Mimic com.sun.net.httpserver.Headers, just in case openjdk
  * doesn't support it.
  *
+ * Fields are kept in flat parallel arrays, in insertion order,
+ * names are matched case-insensitively using AsciiString hashing,
+ * so no lower-cased copies are made.  The Map views are created
+ * on demand, use entryCount/nameAt/valueAt to walk the fields
+ * without allocating.
+ *
  */
 public class Headers implements Map<String, List<String>> {
 
-  private Map<String, List<String>> _impl = new HashMap<String, List<String>>(32);
+  private static final CharSequence[] EMPTY = new CharSequence[0];
+  private static final int[] NO_HASH = new int[0];
 
-  private String lcase(Object s) {
-    return ((String)s).toLowerCase();
-  }
+  private CharSequence[] _names = EMPTY;
+  private CharSequence[] _values = EMPTY;
+  private int[] _hashes = NO_HASH;
+  private int _count;
+
+  private Map<String, List<String>> _view;
 
   public Headers() {
   }
 
+  private int indexOf(CharSequence kee, int hash, int from) {
+    for (int i = from; i < _count; ++i) {
+      if (_hashes[i] == hash &&
+          AsciiString.contentEqualsIgnoreCase(_names[i], kee)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private int indexOf(Object kee) {
+    return (kee instanceof CharSequence)
+      ? indexOf((CharSequence)kee, AsciiString.hashCode((CharSequence)kee), 0) : -1;
+  }
+
+  private void append(CharSequence kee, int hash, CharSequence val) {
+    if (_count == _names.length) {
+      int n = Math.max(8, _count << 1);
+      _names = Arrays.copyOf(_names, n);
+      _values = Arrays.copyOf(_values, n);
+      _hashes = Arrays.copyOf(_hashes, n);
+    }
+    _names[_count] = kee;
+    _values[_count] = val;
+    _hashes[_count] = hash;
+    ++_count;
+    _view = null;
+  }
+
+  private int removeAll(CharSequence kee, int hash) {
+    int j = 0;
+    for (int i = 0; i < _count; ++i) {
+      if (_hashes[i] == hash &&
+          AsciiString.contentEqualsIgnoreCase(_names[i], kee)) {
+        continue;
+      }
+      if (i != j) {
+        _names[j] = _names[i];
+        _values[j] = _values[i];
+        _hashes[j] = _hashes[i];
+      }
+      ++j;
+    }
+    int n = _count - j;
+    for (int i = j; i < _count; ++i) {
+      _names[i] = null;
+      _values[i] = null;
+    }
+    _count = j;
+    if (n > 0) { _view = null; }
+    return n;
+  }
+
+  /** A read-only snapshot, keyed by lower-cased name. */
+  protected Map<String, List<String>> snapshot() {
+    Map<String, List<String>> m = new LinkedHashMap<String, List<String>>();
+    int n = entryCount();
+    for (int i = 0; i < n; ++i) {
+      String k = nameAt(i).toString().toLowerCase();
+      List<String> vs = m.get(k);
+      if (vs == null) {
+        vs = new ArrayList<String>(2);
+        m.put(k, vs);
+      }
+      vs.add(valueAt(i).toString());
+    }
+    for (Map.Entry<String, List<String>> e : m.entrySet()) {
+      e.setValue(Collections.unmodifiableList(e.getValue()));
+    }
+    return Collections.unmodifiableMap(m);
+  }
+
+  /** */
+  protected Map<String, List<String>> view() {
+    if (_view == null) {
+      _view = snapshot();
+    }
+    return _view;
+  }
+
+  /** Number of fields, counting repeated names. */
+  public int entryCount() {
+    return _count;
+  }
+
+  /** */
+  public CharSequence nameAt(int pos) {
+    return _names[Objects.checkIndex(pos, _count)];
+  }
+
+  /** */
+  public CharSequence valueAt(int pos) {
+    return _values[Objects.checkIndex(pos, _count)];
+  }
+
   public boolean containsKey(Object kee) {
-    return (kee instanceof String) ? _impl.containsKey(lcase(kee)) : false;
+    return indexOf(kee) >= 0;
   }
 
   public boolean containsValue(Object v) {
-    return _impl.containsValue(v);
+    return view().containsValue(v);
   }
 
   public int size() {
-    return _impl.size();
+    int n = 0;
+    for (int i = 0; i < _count; ++i) {
+      if (indexOf(_names[i], _hashes[i], 0) == i) { ++n; }
+    }
+    return n;
   }
 
   public boolean isEmpty() {
-    return _impl.isEmpty();
+    return _count == 0;
   }
 
   public List<String> get(Object kee) {
-    return (kee instanceof String) ? _impl.get(lcase(kee)) : null;
+    int pos = indexOf(kee);
+    if (pos < 0) { return null; }
+    CharSequence k = _names[pos];
+    int h = _hashes[pos];
+    List<String> out = new ArrayList<String>(2);
+    for (; pos >= 0; pos = indexOf(k, h, pos + 1)) {
+      out.add(_values[pos].toString());
+    }
+    return out;
   }
 
-  public String getFirst(String kee) {
-    List<String> out = (kee instanceof String) ? _impl.get(lcase(kee)) : null;
-    return (out != null) ? out.get(0) : null;
+  public String getFirst(CharSequence kee) {
+    int pos = indexOf(kee);
+    return (pos >= 0) ? _values[pos].toString() : null;
   }
 
   public List<String> put(String kee, List<String> vals) {
-    return (kee != null) ? _impl.put(lcase(kee), vals) : null;
+    List<String> old = null;
+    if (kee != null) {
+      int h = AsciiString.hashCode(kee);
+      old = get(kee);
+      removeAll(kee, h);
+      if (vals != null) {
+        for (String v : vals) {
+          if (v != null) { append(kee, h, v); }
+        }
+      }
+    }
+    return old;
   }
 
-  public Headers add(String kee, String val) {
+  public Headers add(CharSequence kee, CharSequence val) {
     if (kee != null && val != null) {
-      String k = lcase(kee);
-      List<String> vals = _impl.get(k);
-      if (vals == null) {
-        vals = new LinkedList<String>();
-        _impl.put(k, vals);
-      }
-      vals.add(val);
+      append(kee, AsciiString.hashCode(kee), val);
     }
     return this;
   }
 
-  @SuppressWarnings("serial")
-  public void set(String kee, String val) {
+  public void set(CharSequence kee, CharSequence val) {
     if (kee != null && val != null) {
-      put(lcase(kee), new LinkedList<String>() {{ add(val); }} );
+      int h = AsciiString.hashCode(kee);
+      removeAll(kee, h);
+      append(kee, h, val);
     }
   }
 
   public List<String> remove(Object kee) {
-    return (kee instanceof String) ? _impl.remove(lcase(kee)) : null;
+    List<String> old = get(kee);
+    if (old != null) {
+      CharSequence k = (CharSequence)kee;
+      removeAll(k, AsciiString.hashCode(k));
+    }
+    return old;
   }
 
   public void putAll(Map<? extends String, ? extends List<String>> other) {
     if (other != null) {
-      _impl.putAll(other);
+      for (Map.Entry<? extends String, ? extends List<String>> e : other.entrySet()) {
+        put(e.getKey(), e.getValue());
+      }
     }
   }
 
   public boolean equals(Object other) {
-    return _impl.equals(other);
+    return view().equals(other);
   }
 
   public int hashCode() {
-    return _impl.hashCode();
+    return view().hashCode();
+  }
+
+  public String toString() {
+    return view().toString();
   }
 
   public void clear() {
-    _impl.clear();
+    Arrays.fill(_names, 0, _count, null);
+    Arrays.fill(_values, 0, _count, null);
+    _count = 0;
+    _view = null;
   }
 
   public Set<String> keySet() {
-    return _impl.keySet();
+    return view().keySet();
   }
 
   public Collection<List<String>> values() {
-    return _impl.values();
+    return view().values();
   }
 
   public Set<Map.Entry<String, List<String>>> entrySet() {
-    return _impl.entrySet();
+    return view().entrySet();
   }
 
 }
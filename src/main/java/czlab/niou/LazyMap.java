@@ -0,0 +1,87 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright © 2013-2024, Kenneth Leung. All rights reserved. */
+
+package czlab.niou;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * A read-only map whose content is computed on first access.
+ *
+ */
+@SuppressWarnings("unchecked")
+public class LazyMap<K, V> extends AbstractMap<K, V> {
+
+  private volatile Callable<?> _fn;
+  private volatile Map<K, V> _impl;
+
+  /**
+   */
+  public LazyMap(Callable<?> fn) {
+    _fn = fn;
+  }
+
+  /**
+   */
+  public boolean isRealized() {
+    return _impl != null;
+  }
+
+  private Map<K, V> impl() {
+    Map<K, V> m = _impl;
+    if (m == null) {
+      synchronized (this) {
+        if ((m = _impl) == null) {
+          try {
+            m = (Map<K, V>) _fn.call();
+          } catch (RuntimeException e) {
+            throw e;
+          } catch (Exception e) {
+            throw new IllegalStateException(e);
+          }
+          _impl = m = (m == null)
+            ? Collections.<K, V>emptyMap() : Collections.unmodifiableMap(m);
+          _fn = null;
+        }
+      }
+    }
+    return m;
+  }
+
+  @Override
+  public Set<Map.Entry<K, V>> entrySet() {
+    return impl().entrySet();
+  }
+
+  @Override
+  public V get(Object kee) {
+    return impl().get(kee);
+  }
+
+  @Override
+  public boolean containsKey(Object kee) {
+    return impl().containsKey(kee);
+  }
+
+  @Override
+  public int size() {
+    return impl().size();
+  }
+
+}
+
@@ -0,0 +1,369 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright © 2013-2024, Kenneth Leung. All rights reserved. */
+
+package czlab.niou;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * An incremental multipart/form-data decoder.
+ *
+ * Chunks are offered as they arrive, file parts are written straight
+ * to their own temp file, or to a sink supplied by the caller, and
+ * field parts are gathered in a pooled buffer.  Each part is handed
+ * to the listener as soon as its closing boundary is seen.  A field
+ * bigger than the limit fails the decode with TooLarge.
+ *
+ */
+public class MultipartDecoder implements Closeable {
+
+  /**
+   * Where to write a file part, return null to use a temp file.
+   */
+  public interface Sink {
+    WritableByteChannel open(String field,
+                             String fname,
+                             String ctype) throws IOException;
+  }
+
+  /**
+   * A decoded part.
+   */
+  public static class Part {
+    private final Headers _headers;
+    private final String _field;
+    private final String _fname;
+    private final String _ctype;
+    private byte[] _value;
+    private File _file;
+    private long _size;
+
+    Part(Headers h, String field, String fname, String ctype) {
+      _headers = h;
+      _field = field;
+      _fname = fname;
+      _ctype = ctype;
+    }
+
+    public boolean isFormField() { return _fname == null; }
+    public Headers headers() { return _headers; }
+    public String fieldName() { return _field; }
+    public String fileName() { return _fname; }
+    public String contentType() { return _ctype; }
+    /** Field value, null for file parts. */
+    public byte[] value() { return _value; }
+    /** The temp file, null if a sink was used. */
+    public File file() { return _file; }
+    public long size() { return _size; }
+  }
+
+  /**
+   * A form field went over the size limit.
+   */
+  public static class TooLarge extends IOException {
+    private static final long serialVersionUID = 1L;
+    TooLarge(String msg) { super(msg); }
+  }
+
+  /** Default limit on the size of a form field. */
+  public static final long MAX_FIELD = 1024 * 1024;
+
+  private static final int MAX_HEADERS = 16 * 1024;
+
+  private enum State { PREAMBLE, HEADERS, BODY, EPILOGUE }
+
+  private final ByteBufAllocator _alloc;
+  private final Consumer<Part> _cb;
+  private final ByteBuf _delim;
+  private final ByteBuf _hdrEnd;
+  private final File _dir;
+  private final Sink _sink;
+  private final long _maxField;
+
+  private State _state = State.PREAMBLE;
+  private ByteBuf _buf;
+
+  private Part _part;
+  private ByteBuf _value;
+  private WritableByteChannel _out;
+
+  /**
+   */
+  public MultipartDecoder(String boundary,
+                          ByteBufAllocator alloc,
+                          File dir, Sink sink, Consumer<Part> cb) {
+    this(boundary, alloc, dir, sink, MAX_FIELD, cb);
+  }
+
+  /**
+   * Form fields are held in memory, up to maxField bytes each.
+   */
+  public MultipartDecoder(String boundary,
+                          ByteBufAllocator alloc,
+                          File dir, Sink sink,
+                          long maxField, Consumer<Part> cb) {
+    if (boundary == null || boundary.isEmpty()) {
+      throw new IllegalArgumentException("Missing multipart boundary.");
+    }
+    _alloc = alloc;
+    _dir = dir;
+    _sink = sink;
+    _maxField = maxField > 0 ? maxField : MAX_FIELD;
+    _cb = cb;
+    _delim = Unpooled.copiedBuffer("\r\n--" + boundary, StandardCharsets.US_ASCII);
+    _hdrEnd = Unpooled.copiedBuffer("\r\n\r\n", StandardCharsets.US_ASCII);
+    _buf = alloc.buffer();
+    //the first boundary may not have a leading CRLF
+    _buf.writeShort(0x0d0a);
+  }
+
+  /**
+   * Get the boundary out of the content-type header.
+   */
+  public static String boundary(String ctype) {
+    if (ctype == null) { return null; }
+    int pos = ctype.toLowerCase().indexOf("boundary=");
+    if (pos < 0) { return null; }
+    String b = ctype.substring(pos + 9);
+    int end = b.indexOf(';');
+    if (end >= 0) { b = b.substring(0, end); }
+    b = b.trim();
+    if (b.length() > 1 && b.startsWith("\"") && b.endsWith("\"")) {
+      b = b.substring(1, b.length() - 1);
+    }
+    return b;
+  }
+
+  /**
+   * True once the closing boundary has been seen.
+   */
+  public boolean isDone() {
+    return _state == State.EPILOGUE;
+  }
+
+  /**
+   * Feed the next chunk, the caller keeps ownership of it.
+   */
+  public void offer(ByteBuf chunk) throws IOException {
+    if (_buf == null) { throw new IOException("Decoder is closed."); }
+    if (_state == State.EPILOGUE) { return; }
+    _buf.writeBytes(chunk, chunk.readerIndex(), chunk.readableBytes());
+    boolean more = true;
+    while (more) {
+      switch (_state) {
+        case PREAMBLE: more = preamble(); break;
+        case HEADERS: more = headers(); break;
+        case BODY: more = body(); break;
+        default: _buf.clear(); more = false; break;
+      }
+    }
+    _buf.discardSomeReadBytes();
+  }
+
+  /**
+   * No more input, fails if the form was cut short.
+   */
+  public void finish() throws IOException {
+    if (_state != State.EPILOGUE) {
+      close();
+      throw new IOException("Malformed multipart, missing closing boundary.");
+    }
+  }
+
+  private int find(ByteBuf needle) {
+    int n = ByteBufUtil.indexOf(needle, _buf);
+    return n < 0 ? -1 : n - _buf.readerIndex();
+  }
+
+  /** After a boundary, either "--" or the end of line. */
+  private boolean afterDelim() {
+    if (_buf.readableBytes() < 2) { return false; }
+    int r = _buf.readerIndex();
+    if (_buf.getByte(r) == '-' && _buf.getByte(r + 1) == '-') {
+      _state = State.EPILOGUE;
+      _buf.clear();
+      return false;
+    }
+    int eol = _buf.indexOf(r, _buf.writerIndex(), (byte) '\n');
+    if (eol < 0) { return false; }
+    _buf.readerIndex(eol + 1);
+    _state = State.HEADERS;
+    return true;
+  }
+
+  private boolean preamble() {
+    int pos = find(_delim);
+    if (pos < 0) {
+      int keep = _delim.readableBytes() - 1;
+      if (_buf.readableBytes() > keep) {
+        _buf.skipBytes(_buf.readableBytes() - keep);
+      }
+      return false;
+    }
+    int r = _buf.readerIndex() + pos + _delim.readableBytes();
+    if (_buf.writerIndex() - r < 2) { return false; }
+    _buf.readerIndex(r);
+    return afterDelim();
+  }
+
+  private boolean headers() throws IOException {
+    //no headers at all
+    if (_buf.readableBytes() >= 2 &&
+        _buf.getShort(_buf.readerIndex()) == 0x0d0a) {
+      _buf.skipBytes(2);
+      startPart(new Headers());
+      return true;
+    }
+    int pos = find(_hdrEnd);
+    if (pos < 0) {
+      if (_buf.readableBytes() > MAX_HEADERS) {
+        throw new IOException("Multipart headers too large.");
+      }
+      return false;
+    }
+    String s = _buf.toString(_buf.readerIndex(), pos, StandardCharsets.UTF_8);
+    _buf.skipBytes(pos + _hdrEnd.readableBytes());
+    Headers h = new Headers();
+    for (String ln : s.split("\r\n")) {
+      int c = ln.indexOf(':');
+      if (c > 0) {
+        h.add(ln.substring(0, c).trim(), ln.substring(c + 1).trim());
+      }
+    }
+    startPart(h);
+    return true;
+  }
+
+  private boolean body() throws IOException {
+    int pos = find(_delim);
+    if (pos < 0) {
+      //keep enough to match a boundary split across chunks
+      int n = _buf.readableBytes() - (_delim.readableBytes() - 1);
+      if (n > 0) { write(n); }
+      return false;
+    }
+    int r = _buf.readerIndex() + pos + _delim.readableBytes();
+    if (_buf.writerIndex() - r < 2) {
+      if (pos > 0) { write(pos); }
+      return false;
+    }
+    if (pos > 0) { write(pos); }
+    _buf.skipBytes(_delim.readableBytes());
+    endPart();
+    return afterDelim();
+  }
+
+  private static String param(String s, String key) {
+    if (s == null) { return null; }
+    for (String p : s.split(";")) {
+      p = p.trim();
+      int e = p.indexOf('=');
+      if (e > 0 && p.substring(0, e).trim().equalsIgnoreCase(key)) {
+        String v = p.substring(e + 1).trim();
+        if (v.length() > 1 && v.startsWith("\"") && v.endsWith("\"")) {
+          v = v.substring(1, v.length() - 1);
+        }
+        return v;
+      }
+    }
+    return null;
+  }
+
+  private void startPart(Headers h) throws IOException {
+    String cd = h.getFirst("content-disposition");
+    String ct = h.getFirst("content-type");
+    Part p = new Part(h, param(cd, "name"), param(cd, "filename"), ct);
+    if (p.isFormField()) {
+      _value = _alloc.buffer();
+    } else {
+      WritableByteChannel out = _sink == null ? null
+        : _sink.open(p._field, p._fname, ct);
+      if (out == null) {
+        p._file = File.createTempFile("czlab", "tmp", _dir);
+        out = FileChannel.open(p._file.toPath(), StandardOpenOption.WRITE);
+      }
+      _out = out;
+    }
+    _part = p;
+    _state = State.BODY;
+  }
+
+  private void write(int n) throws IOException {
+    _part._size += n;
+    if (_value != null) {
+      if (_part._size > _maxField) {
+        throw new TooLarge("Form field " + _part._field + " too large.");
+      }
+      _value.writeBytes(_buf, n);
+    } else {
+      ByteBuffer bb = _buf.nioBuffer(_buf.readerIndex(), n);
+      while (bb.hasRemaining()) {
+        _out.write(bb);
+      }
+      _buf.skipBytes(n);
+    }
+  }
+
+  private void endPart() throws IOException {
+    Part p = _part;
+    _part = null;
+    if (_value != null) {
+      p._value = ByteBufUtil.getBytes(_value);
+      _value.release();
+      _value = null;
+    } else {
+      WritableByteChannel out = _out;
+      _out = null;
+      out.close();
+    }
+    _cb.accept(p);
+  }
+
+  /**
+   * Release buffers, drop any half written part.
+   */
+  @Override
+  public void close() {
+    if (_buf != null) {
+      _buf.release();
+      _buf = null;
+    }
+    if (_value != null) {
+      _value.release();
+      _value = null;
+    }
+    if (_out != null) {
+      try { _out.close(); } catch (IOException e) { }
+      _out = null;
+      if (_part != null && _part._file != null) {
+        _part._file.delete();
+      }
+    }
+    _part = null;
+  }
+
+}
+
@@ -23,14 +23,20 @@
             [czlab.basal.util :as u]
             [czlab.basal.io :as i]
             [czlab.nettio.ranges :as nr]
+            [czlab.nettio.resp :as r]
+            [czlab.nettio.core :as n]
             [czlab.nettio.client :as cl]
             [czlab.nettio.server :as sv]
             [czlab.basal.core :as c
              :refer [ensure?? ensure-thrown??]])
 
   (:import [org.apache.commons.fileupload FileItem]
+           [io.netty.buffer ByteBuf UnpooledByteBufAllocator]
+           [io.netty.handler.stream ChunkedInput]
            [czlab.niou Headers]
+           [czlab.nettio BodyStream]
            [czlab.basal XData]
+           [java.util.zip GZIPInputStream GZIPOutputStream]
            [java.net URL URI]))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
@@ -75,6 +81,39 @@
            (.equals "/blah" (i/x->str (:body r1)))
            (.equals "/Yoyo" (i/x->str (:body r2))))))
 
+  (ensure??
+    "h1/pooled"
+    (let [{:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                {:user-cb #(-> (cc/http-result %1)
+                               (cc/res-body-set (:uri %1)) cc/reply-result)})
+              (c/start {:port 5555}))
+          _ (u/pause 888)
+          m (cl/web-client-module<> {:pooled? true :max-per-host 1})
+          c (cc/h1-conn m host port nil)
+          r1 (deref (cc/write-msg c (cc/h1-get<> "/r1")) 5000 nil)
+          ch1 (:socket r1)
+          r2 (deref (cc/write-msg c (cc/h1-get<> "/r2")) 5000 nil)
+          ch2 (:socket r2)]
+      (c/finz c)
+      (c/finz m)
+      (c/stop w)
+      (u/pause 500)
+      (and (some? ch1)
+           (identical? ch1 ch2)
+           (.equals "/r1/r2"
+                    (str (i/x->str (:body r1))
+                         (i/x->str (:body r2)))))))
+
+  (ensure??
+    "h1/pooled-refused"
+    (let [m (cl/web-client-module<> {:pooled? true :max-per-host 1})
+          c (cc/h1-conn m "localhost" 5556 nil)
+          r (deref (cc/write-msg c (cc/h1-get<> "/r1")) 5000 nil)]
+      (c/finz c)
+      (c/finz m)
+      (c/is? Throwable r)))
+
   (ensure??
     "h1/pipeline"
     (let [{:keys [host port] :as w}
@@ -100,6 +139,120 @@
                          (i/x->str (:body rc2))
                          (i/x->str (:body rc3)))))))
 
+  (ensure??
+    "h1/pipeline-order"
+    (let [{:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                {:server-key "*"
+                 :pipelining? true
+                 :max-pipeline-depth 2
+                 :user-cb #(p/async!
+                             (fn []
+                               (u/pause (if (= "/r1" (:uri %1)) 800 100))
+                               (-> (cc/http-result %1)
+                                   (cc/res-body-set (:uri %1))
+                                   cc/reply-result)))})
+              (c/start {:port 8443}))
+          _ (u/pause 888)
+          c (cc/h1-conn MODULE host port {:server-cert "*"})
+          rs (mapv #(cc/write-msg c (cc/h1-get<> (str "/r" %))) [1 2 3 4])
+          out (mapv #(some-> (deref % 5000 nil) :body i/x->str) rs)]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (= ["/r1" "/r2" "/r3" "/r4"] out)))
+
+  (ensure??
+    "h1/pipeline-preflight"
+    (let [{:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                {:server-key "*"
+                 :pipelining? true
+                 :cors-cfg {:any-origin? true}
+                 :user-cb #(p/async!
+                             (fn []
+                               (u/pause 800)
+                               (-> (cc/http-result %1)
+                                   (cc/res-body-set (:uri %1))
+                                   cc/reply-result)))})
+              (c/start {:port 8443}))
+          _ (u/pause 888)
+          origin (str "https://" host)
+          h (-> (Headers.)
+                (.add "origin" origin)
+                (.add "Access-Control-Request-Method" "PUT"))
+          c (cc/h1-conn MODULE host port {:server-cert "*"})
+          r1 (cc/write-msg c (cc/h1-get<> "/r1"))
+          r2 (cc/write-msg c (cc/h1-msg<> :options "/cors" h nil))
+          rc1 (deref r1 5000 nil)
+          rc2 (deref r2 5000 nil)]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (and rc1 rc2
+           (.equals "/r1" (i/x->str (:body rc1)))
+           (.equals origin
+                    (cc/msg-header rc2 "access-control-allow-origin")))))
+
+  (ensure??
+    "h1/streaming-body"
+    (let [{:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                {:streaming? true
+                 :stream-buf-size 16384
+                 :user-cb
+                 (fn [req]
+                   (p/async!
+                     #(let [^BodyStream s (:body req)]
+                        (loop [n 0]
+                          (if-some [^ByteBuf b (.take s)]
+                            (let [k (.readableBytes b)]
+                              (.release b)
+                              (recur (+ n k)))
+                            (-> (cc/http-result req)
+                                (cc/res-body-set (str n))
+                                cc/reply-result))))))})
+              (c/start {:port 5555}))
+          _ (u/pause 888)
+          c (cc/h1-conn MODULE host port nil)
+          rc (cc/write-msg c (cc/h1-msg<> :post
+                                         "/upload"
+                                         nil
+                                         (apply str (repeat 200000 "x"))))
+          {:keys [^XData body]} (deref rc 5000 nil)]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (.equals "200000" (some-> body i/x->str))))
+
+  (ensure??
+    "h1/streaming-unread"
+    (let [{:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                {:streaming? true
+                 :stream-buf-size 16384
+                 ;reply without reading the body
+                 :user-cb #(p/async!
+                             (fn []
+                               (u/pause 300)
+                               (-> (cc/http-result %1 401)
+                                   cc/reply-result)))})
+              (c/start {:port 5555}))
+          _ (u/pause 888)
+          c (cc/h1-conn MODULE host port nil)
+          r1 (-> (cc/write-msg c (cc/h1-msg<> :post
+                                              "/upload"
+                                              nil
+                                              (apply str (repeat 30000 "x"))))
+                 (deref 5000 nil))
+          r2 (-> (cc/write-msg c (cc/h1-msg<> :post "/again" nil "y"))
+                 (deref 5000 nil))]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (and (== 401 (:status r1))
+           (== 401 (:status r2)))))
+
   (ensure??
     "h1/form-post"
     (let [out (atom nil)
@@ -248,6 +401,79 @@
       (u/pause 500)
       (and (c/hgl? s) (= 0 (c/count-str s nr/DEF-BD)))))
 
+  (ensure??
+    "ranges/bytes"
+    (let [b (i/x->bytes _file-content_)
+          r (nr/http-ranges<> "bytes=6-8,19-21" "text/plain" b)
+          s (loop [acc ""]
+              (if-some [^ByteBuf c (.readChunk ^ChunkedInput r
+                                               UnpooledByteBufAllocator/DEFAULT)]
+                (let [x (.toString c (u/charset?? "utf-8"))]
+                  (.release c)
+                  (recur (str acc x)))
+                acc))]
+      (.close ^ChunkedInput r)
+      (and (== (.length ^ChunkedInput r) (count s))
+           (= s (str "--" nr/DEF-BD "\r\n"
+                     "Content-Type: text/plain\r\n"
+                     "Content-Range: bytes 6-8/47\r\n\r\n"
+                     "how"
+                     "\r\n--" nr/DEF-BD "\r\n"
+                     "Content-Type: text/plain\r\n"
+                     "Content-Range: bytes 19-21/47\r\n\r\n"
+                     "are"
+                     "\r\n--" nr/DEF-BD "--\r\n")))))
+
+  (ensure??
+    "file-range/single"
+    (let [des (i/tmpfile (u/jid<>))
+          _ (spit des _file-content_)
+          {:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                #(-> (cc/http-result %1)
+                     (cc/res-body-set des)
+                     (cc/res-header-set "content-type" "text/plain")
+                     cc/reply-result))
+              (c/start {:port 5555}))
+          _ (u/pause 888)
+          c (cc/h1-conn MODULE host port nil)
+          p (cc/write-msg c
+                         (cc/h1-msg<> :get
+                                      "/range"
+                                      (-> (Headers.)
+                                          (.add "range" "bytes=6-8")) nil))
+          {:as rsp :keys [^XData body]} (deref p 5000 nil)
+          s (some-> body .strit)]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (and (= "how" s)
+           (= "3" (cc/msg-header rsp "content-length"))
+           (= "bytes 6-8/47" (cc/msg-header rsp "content-range")))))
+
+  (ensure??
+    "file/content-length"
+    (let [des (i/tmpfile (u/jid<>))
+          _ (spit des _file-content_)
+          {:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                #(-> (cc/http-result %1)
+                     (cc/res-body-set des)
+                     (cc/res-header-set "content-type" "text/plain")
+                     cc/reply-result))
+              (c/start {:port 5555}))
+          _ (u/pause 888)
+          c (cc/h1-conn MODULE host port nil)
+          p (cc/write-msg c (cc/h1-msg<> :get "/file" nil nil))
+          {:as rsp :keys [^XData body]} (deref p 5000 nil)
+          s (some-> body .strit)]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (and (= _file-content_ s)
+           (= (str (count _file-content_))
+              (cc/msg-header rsp "content-length")))))
+
   (ensure??
     "file-range/chunked"
     (let [des (i/tmpfile (u/jid<>))
@@ -265,13 +491,366 @@
                                         "/range"
                                         (-> (Headers.)
                                             (.add "range" "bytes=0-18,8-20,21-")) nil))
-          {:keys [^XData body]} (deref p 5000 nil)
+          {:as rsp :keys [^XData body]} (deref p 5000 nil)
           s (some-> body .strit)]
       (c/stop w)
       (c/finz c)
       (u/pause 500)
       (and (c/hgl? s)
-           (== 2 (c/count-str s nr/DEF-BD)))))
+           (== 3 (c/count-str s nr/DEF-BD))
+           (cs/starts-with? s (str "--" nr/DEF-BD "\r\n"))
+           (c/embeds? s (str "cool!\r\n--" nr/DEF-BD "--\r\n"))
+           (= (str (count s))
+              (cc/msg-header rsp "content-length")))))
+
+  (ensure??
+    "accept-encoding"
+    (and (= "gzip" (r/accept-encoding "deflate;q=0.5, gzip" ["gzip" "deflate"]))
+         (= "deflate" (r/accept-encoding "gzip;q=0, *" ["gzip" "deflate"]))
+         (nil? (r/accept-encoding "br" ["gzip" "deflate"]))))
+
+  (ensure??
+    "file/precompressed"
+    (let [des (i/tmpfile (u/jid<>))
+          _ (spit des _file-content_)
+          _ (with-open [os (GZIPOutputStream.
+                             (io/output-stream (str des ".gz")))]
+              (.write os (.getBytes ^String _file-content_ "utf-8")))
+          {:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                #(-> (cc/http-result %1)
+                     (cc/res-body-set des)
+                     (cc/res-header-set "content-type" "text/plain")
+                     cc/reply-result))
+              (c/start {:port 5555}))
+          _ (u/pause 888)
+          c (cc/h1-conn MODULE host port nil)
+          p (cc/write-msg c (cc/h1-msg<> :get
+                                        "/file"
+                                        (-> (Headers.)
+                                            (.add "accept-encoding" "gzip")) nil))
+          {:as rsp :keys [^XData body]} (deref p 5000 nil)
+          s (some-> body
+                    .getBytes
+                    io/input-stream
+                    GZIPInputStream. slurp)]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (and (= _file-content_ s)
+           (= "gzip" (cc/msg-header rsp "content-encoding"))
+           (= "Accept-Encoding" (cc/msg-header rsp "vary")))))
+
+  (ensure??
+    "file/generated-variant"
+    (let [des (i/tmpfile (u/jid<>))
+          dir (doto (io/file (System/getProperty "java.io.tmpdir")
+                             (u/jid<>)) .mkdirs)
+          _ (spit des _file-content_)
+          {:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                {:temp-dir dir
+                 :compress {:generate? true :min-size 0}
+                 :user-cb #(-> (cc/http-result %1)
+                               (cc/res-body-set des)
+                               (cc/res-header-set "content-type" "text/plain")
+                               cc/reply-result)})
+              (c/start {:port 5555}))
+          _ (u/pause 888)
+          c (cc/h1-conn MODULE host port nil)
+          get #(some-> (cc/write-msg c (cc/h1-msg<> :get
+                                                    "/file"
+                                                    (-> (Headers.)
+                                                        (.add "accept-encoding" "gzip")) nil))
+                       (deref 5000 nil))
+          unz #(some-> % :body .getBytes io/input-stream GZIPInputStream. slurp)
+          ;;served as is while the copy is made
+          r0 (get)
+          _ (u/pause 500)
+          s1 (unz (get))
+          _ (spit des "changed")
+          _ (.setLastModified des (+ 2000 (.lastModified des)))
+          _ (u/pause 1100)
+          r2 (get)
+          _ (u/pause 500)
+          s2 (unz (get))
+          gz (filter #(cs/ends-with? (.getName %) ".gz")
+                     (.listFiles dir))]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (and (nil? (cc/msg-header r0 "content-encoding"))
+           (= _file-content_ (some-> r0 :body .strit))
+           (= _file-content_ s1)
+           (= "changed" (some-> r2 :body .strit))
+           (= "changed" s2)
+           (== 1 (count gz)))))
+
+  (ensure??
+    "dynamic/compressed"
+    (let [msg (apply str (repeat 200 _file-content_))
+          {:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                #(-> (cc/http-result %1)
+                     (cc/res-body-set msg)
+                     (cc/res-header-set "content-type" "text/plain")
+                     cc/reply-result))
+              (c/start {:port 5555}))
+          _ (u/pause 888)
+          c (cc/h1-conn MODULE host port nil)
+          p (cc/write-msg c (cc/h1-msg<> :get
+                                        "/dyn"
+                                        (-> (Headers.)
+                                            (.add "accept-encoding" "gzip")) nil))
+          {:as rsp :keys [^XData body]} (deref p 5000 nil)
+          b (some-> body .getBytes)]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (and (< (count b) (count msg))
+           (= msg (-> b io/input-stream GZIPInputStream. slurp))
+           (= "gzip" (cc/msg-header rsp "content-encoding")))))
+
+  (ensure??
+    "dynamic/etag"
+    (let [msg (apply str (repeat 200 _file-content_))
+          {:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                #(-> (cc/http-result %1)
+                     (assoc :etag "\"v1\"")
+                     (cc/res-body-set msg)
+                     (cc/res-header-set "content-type" "text/plain")
+                     cc/reply-result))
+              (c/start {:port 5555}))
+          _ (u/pause 888)
+          c (cc/h1-conn MODULE host port nil)
+          get #(-> (cc/write-msg c (cc/h1-msg<> :get
+                                               "/dyn"
+                                               (-> (Headers.)
+                                                   (.add "accept-encoding" "gzip")
+                                                   (.add "if-none-match" %)) nil))
+                   (deref 5000 nil))
+          r1 (get "\"v0\"")
+          r2 (get (cc/msg-header r1 "etag"))]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (and (= "gzip" (cc/msg-header r1 "content-encoding"))
+           (= "\"v1-gzip\"" (cc/msg-header r1 "etag"))
+           (== 304 (:status r2)))))
+
+  (ensure??
+    "file/cached"
+    (let [des (i/tmpfile (u/jid<>))
+          _ (spit des _file-content_)
+          {:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                {:file-cache {}
+                 :user-cb #(-> (cc/http-result %1)
+                               (cc/res-body-set des)
+                               (cc/res-header-set "content-type" "text/plain")
+                               cc/reply-result)})
+              (c/start {:port 5555}))
+          _ (u/pause 888)
+          c (cc/h1-conn MODULE host port nil)
+          get #(some-> (cc/write-msg c (cc/h1-msg<> :get "/file" nil nil))
+                       (deref 5000 nil) :body .strit)
+          s1 (get)
+          s2 (get)
+          _ (spit des "changed")
+          _ (u/pause 500)
+          s3 (get)
+          {:keys [hits misses invalidations]} (sv/file-cache-stats w)]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (and (= _file-content_ s1 s2)
+           (= "changed" s3)
+           (== 1 hits)
+           (== 2 misses)
+           (== 1 invalidations))))
+
+  (ensure??
+    "file/missing"
+    (let [des (io/file (i/tmpfile (u/jid<>)) "nope")
+          {:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                #(-> (cc/http-result %1)
+                     (cc/res-body-set des)
+                     (cc/res-header-set "content-type" "text/plain")
+                     cc/reply-result))
+              (c/start {:port 5555}))
+          _ (u/pause 888)
+          c (cc/h1-conn MODULE host port nil)
+          rsp (some-> (cc/write-msg c (cc/h1-msg<> :get "/file" nil nil))
+                      (deref 5000 nil))]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (== 404 (:status rsp))))
+
+  (ensure??
+    "file/cached-headers"
+    (let [des (i/tmpfile (u/jid<>))
+          _ (spit des _file-content_)
+          {:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                {:file-cache {}
+                 :user-cb #(-> (cc/http-result %1)
+                               (cc/res-body-set des)
+                               (cc/res-header-set "content-type" "text/plain")
+                               cc/reply-result)})
+              (c/start {:port 5555}))
+          _ (u/pause 888)
+          c (cc/h1-conn MODULE host port nil)
+          get #(some-> (cc/write-msg c (cc/h1-msg<> :get "/file" nil nil))
+                       (deref 5000 nil))
+          ;;a miss, then a hit
+          r1 (get)
+          r2 (get)
+          hs ["content-length" "last-modified" "etag"]
+          {:keys [hits]} (sv/file-cache-stats w)]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (and (== 1 hits)
+           (= (str (count _file-content_))
+              (cc/msg-header r2 "content-length"))
+           (every? #(some? (cc/msg-header r2 %)) hs)
+           (= (map #(cc/msg-header r1 %) hs)
+              (map #(cc/msg-header r2 %) hs)))))
+
+  (ensure??
+    "metrics"
+    (let [{:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                {:metrics-path "/metrics"
+                 :user-cb #(-> (cc/http-result %1)
+                               (cc/res-body-set "hello")
+                               cc/reply-result)})
+              (c/start {:port 5555}))
+          _ (u/pause 888)
+          c (cc/h1-conn MODULE host port nil)
+          get #(some-> (cc/write-msg c (cc/h1-msg<> :get % nil nil))
+                       (deref 5000 nil) :body .strit)
+          s1 (get "/a")
+          s2 (get "/b")
+          _ (u/pause 100)
+          txt (get "/metrics")
+          {:keys [requests routes bytes-in connections]} (sv/metrics w)]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (and (= "hello" s1 s2)
+           (c/embeds? txt "nettio_requests_total")
+           (c/embeds? txt "nettio_request_seconds_count{route=\"_\"} 2")
+           (== 1 connections)
+           (pos? bytes-in)
+           (>= requests 3)
+           (>= (get-in routes ["_" :2xx]) 2))))
+
+  (ensure??
+    "metrics/in-flight"
+    (let [{:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                {:metrics-path "/metrics"
+                 :cors-cfg {:short-circuit? true
+                            :origins ["blah.com"]}
+                 ;never replies to /hang
+                 :user-cb #(if-not (= "/hang" (:uri %1))
+                             (-> (cc/http-result %1) cc/reply-result))})
+              (c/start {:port 5555}))
+          _ (u/pause 888)
+          h (-> (Headers.)
+                (.add "origin" (str "http://" host)))
+          c (cc/h1-conn MODULE host port nil)
+          p (-> (cc/write-msg c (cc/h1-msg<> :get "/cors" h nil))
+                (deref 3000 nil))
+          n1 (:in-flight (sv/metrics w))
+          _ (cc/write-msg c (cc/h1-get<> "/hang"))
+          _ (u/pause 500)
+          n2 (:in-flight (sv/metrics w))
+          _ (c/finz c)
+          _ (u/pause 500)
+          n3 (:in-flight (sv/metrics w))]
+      (c/stop w)
+      (u/pause 500)
+      (and p
+           (== 403 (:status p))
+           (== 0 n1) (== 1 n2) (== 0 n3))))
+
+  (ensure??
+    "exec/virtual"
+    (let [{:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                {:exec-mode :virtual
+                 :user-cb #(-> (cc/http-result %1)
+                               (cc/res-body-set
+                                 (str (.isVirtual (Thread/currentThread))))
+                               cc/reply-result)})
+              (c/start {:port 5555}))
+          _ (u/pause 888)
+          c (cc/h1-conn MODULE host port nil)
+          s (some-> (cc/write-msg c (cc/h1-msg<> :get "/a" nil nil))
+                    (deref 5000 nil) :body .strit)]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (= "true" s)))
+
+  (ensure??
+    "exec/pool-busy"
+    (let [gate (promise)
+          {:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                {:exec-mode :pool
+                 :exec-pool {:threads 1 :queue 0}
+                 :user-cb #(do (deref gate 5000 nil)
+                               (-> (cc/http-result %1)
+                                   (cc/res-body-set "hello")
+                                   cc/reply-result))})
+              (c/start {:port 5555}))
+          _ (u/pause 888)
+          c1 (cc/h1-conn MODULE host port nil)
+          c2 (cc/h1-conn MODULE host port nil)
+          p1 (cc/write-msg c1 (cc/h1-msg<> :get "/a" nil nil))
+          _ (u/pause 200)
+          r2 (deref (cc/write-msg c2 (cc/h1-msg<> :get "/b" nil nil)) 5000 nil)
+          _ (deliver gate true)
+          r1 (deref p1 5000 nil)]
+      (c/stop w)
+      (c/finz c1)
+      (c/finz c2)
+      (u/pause 500)
+      (and (== 503 (:status r2))
+           (= "hello" (some-> r1 :body .strit)))))
+
+  (ensure?? "transport/fallback"
+            (and (= :nio (n/transport :nio))
+                 (contains? #{:epoll :io_uring :nio}
+                            (n/transport :io_uring))
+                 (empty? (n/tuning :nio :storm :server))))
+
+  (ensure??
+    "transport/reuse-port"
+    (let [{:keys [host port channel] :as w}
+          (-> (sv/web-server-module<>
+                {:transport :io_uring
+                 :reuse-port? true
+                 :tuning :storm
+                 :user-cb #(-> (cc/http-result %1)
+                               (cc/res-body-set "hello")
+                               cc/reply-result)})
+              (c/start {:port 5555}))
+          _ (u/pause 888)
+          ok (every? some? channel)
+          c (cc/h1-conn MODULE host port nil)
+          s (some-> (cc/write-msg c (cc/h1-msg<> :get "/a" nil nil))
+                    (deref 5000 nil) :body .strit)]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (and ok (= "hello" s))))
 
   (ensure?? "test-end" (== 1 1)))
 
@@ -28,6 +28,8 @@
              :refer [ensure?? ensure-thrown??]])
 
   (:import [java.nio.charset Charset]
+           [io.netty.buffer ByteBuf]
+           [czlab.nettio BodyStream]
            [czlab.basal XData]
            [java.net URL URI]))
 
@@ -75,6 +77,142 @@
       (u/pause 500)
       (and body (.equals "hello" (.strit body)))))
 
+  (ensure??
+    "ssl/h2-multiplex"
+    (let [{:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                {:server-key "*"
+                 :h2-frames? true
+                 :user-cb #(cc/reply-result %1)})
+              (c/start {:port 8443}))
+          _ (u/pause 888)
+          c (cc/h2-conn MODULE host port {:h2-frames? true
+                                             :server-cert "*"})
+          ps (mapv #(cc/write-msg c (cc/h2-msg<> :post
+                                                 "/form" nil (str "hello" %))) (range 64))
+          ok? (every? true?
+                      (map-indexed
+                        (fn [i p]
+                          (let [{:keys [^XData body]} (deref p 5000 nil)]
+                            (and body (.equals (str "hello" i) (.strit body))))) ps))]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      ok?))
+
+  (ensure??
+    "ssl/h2-streaming"
+    (let [{:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                {:server-key "*"
+                 :h2-frames? true
+                 :streaming? true
+                 :user-cb
+                 (fn [req]
+                   (p/async!
+                     #(let [^BodyStream s (:body req)]
+                        (loop [n 0]
+                          (if-some [^ByteBuf b (.take s)]
+                            (let [k (.readableBytes b)]
+                              (.release b)
+                              (recur (+ n k)))
+                            (cc/reply-result
+                              (assoc (cc/h2-msg<> 200 nil (str n))
+                                     :socket (:socket req)
+                                     :stream-id (:stream-id req))))))))})
+              (c/start {:port 8443}))
+          _ (u/pause 888)
+          c (cc/h2-conn MODULE host port {:h2-frames? true
+                                             :server-cert "*"})
+          p (cc/write-msg c (cc/h2-msg<> :post
+                                         "/upload"
+                                         nil
+                                         (apply str (repeat 200000 "x"))))
+          {:keys [^XData body status]} (deref p 5000 nil)]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (and (== 200 status)
+           (.equals "200000" (some-> body .strit)))))
+
+  (ensure??
+    "ssl/h2-post-inflight"
+    (let [{:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                {:server-key "*"
+                 :h2-frames? true
+                 :user-cb
+                 #(cc/reply-result
+                    (assoc (cc/h2-msg<> 200 nil
+                                        (str (some-> ^XData (:body %1) .size)))
+                           :socket (:socket %1)
+                           :stream-id (:stream-id %1)))})
+              (c/start {:port 8443}))
+          _ (u/pause 888)
+          c (cc/h2-conn MODULE host port {:h2-frames? true
+                                             :server-cert "*"})
+          p (cc/write-msg c (cc/h2-msg<> :post "/form" nil "hello"))
+          {:keys [^XData body]} (deref p 5000 nil)
+          _ (u/pause 200)
+          {:keys [in-flight requests]} (sv/metrics w)]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (and (.equals "5" (some-> body .strit))
+           (== 0 in-flight)
+           (== 1 requests))))
+
+  (ensure??
+    "ssl/h2-file-body"
+    (let [f (i/temp-file)
+          _ (spit f (apply str (repeat 300000 "y")))
+          {:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                {:server-key "*"
+                 :h2-frames? true
+                 :user-cb
+                 #(cc/reply-result
+                    (assoc (cc/h2-msg<> 200 nil f)
+                           :socket (:socket %1)
+                           :stream-id (:stream-id %1)))})
+              (c/start {:port 8443}))
+          _ (u/pause 888)
+          c (cc/h2-conn MODULE host port {:h2-frames? true
+                                             :server-cert "*"})
+          p (cc/write-msg c (cc/h2-msg<> :get "/file" nil nil))
+          {:keys [^XData body]} (deref p 5000 nil)]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (i/fdelete f)
+      (== 300000 (some-> body .size))))
+
+  (ensure??
+    "ssl/h2-file-cached"
+    (let [f (i/temp-file)
+          _ (spit f "cached content")
+          {:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                {:server-key "*"
+                 :file-cache {}
+                 :user-cb #(-> (cc/http-result %1)
+                               (cc/res-body-set f)
+                               cc/reply-result)})
+              (c/start {:port 8443}))
+          _ (u/pause 888)
+          c (cc/h2-conn MODULE host port {:server-cert "*"})
+          get #(some-> (cc/write-msg c (cc/h1-msg<> :get "/file" nil nil))
+                       (deref 5000 nil) :body .strit)
+          s1 (get)
+          s2 (get)
+          {:keys [hits]} (sv/file-cache-stats w)]
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (i/fdelete f)
+      (and (= "cached content" s1 s2)
+           (== 1 hits))))
+
   (ensure?? "test-end" (== 1 1)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
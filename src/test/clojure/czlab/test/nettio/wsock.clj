@@ -21,12 +21,15 @@
             [czlab.basal.io :as i]
             [czlab.niou.core :as cc]
             [czlab.nettio.resp :as nr]
+            [czlab.nettio.http :as h1]
             [czlab.nettio.client :as cl]
             [czlab.nettio.server :as sv]
             [czlab.basal.core :as c
              :refer [ensure?? ensure-thrown??]])
 
-  (:import [czlab.basal XData]))
+  (:import [io.netty.buffer ByteBuf]
+           [io.netty.util CharsetUtil]
+           [czlab.basal XData]))
 
  ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (c/defonce- HELLO-BYTES (i/x->bytes "hello"))
@@ -146,6 +149,106 @@
       (u/pause 500)
       (and (false? @ping) (true? @pong))))
 
+  (ensure??
+    "websock/zero-copy"
+    (let [{:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                {:wsock-zero-copy? true
+                 :user-cb #(cc/reply-result %1)})
+              (c/start {:port 5556}))
+          _ (u/pause 888)
+          out (atom nil)
+          c (cc/ws-conn MODULE
+                        host port
+                        {:uri "/websock"
+                         :wsock-zero-copy? true
+                         :user-cb
+                         #(let [^ByteBuf b (:body %1)]
+                            (reset! out (.toString b CharsetUtil/UTF_8))
+                            (.release b))})]
+      (cc/write-msg c (cc/ws-msg<> {:body "hello"}))
+      (u/pause 666)
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (.equals "hello" @out)))
+
+  (ensure??
+    "websock/fragments"
+    (let [{:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                {:wsock-zero-copy? true
+                 :wsock-fragments? true
+                 :user-cb #(cc/reply-result %1)})
+              (c/start {:port 5556}))
+          _ (u/pause 888)
+          out (atom [])
+          c (cc/ws-conn MODULE
+                        host port
+                        {:uri "/websock"
+                         :wsock-zero-copy? true
+                         :user-cb
+                         #(let [^ByteBuf b (:body %1)]
+                            (swap! out conj (.toString b CharsetUtil/UTF_8))
+                            (.release b))})]
+      (cc/write-msg c (cc/ws-msg<> {:body "hel" :is-last? false}))
+      (cc/write-msg c (cc/ws-msg<> {:body "lo"}))
+      (u/pause 666)
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (= ["hello"] @out)))
+
+  (ensure??
+    "websock/compress"
+    (let [big (apply str (repeat 2000 "hello world "))
+          {:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                {:wsock-compress {:min-size 64
+                                  :paths ["/websock"]}
+                 :user-cb #(cc/reply-result %1)})
+              (c/start {:port 5556}))
+          _ (u/pause 888)
+          out (atom [])
+          c (cc/ws-conn MODULE
+                        host port
+                        {:uri "/websock"
+                         :user-cb #(swap! out conj (i/x->str (:body %1)))})]
+      (cc/write-msg c (cc/ws-text<> big))
+      (cc/write-msg c (cc/ws-text<> "tiny"))
+      (cc/write-msg c (cc/ws-text<> big))
+      (u/pause 666)
+      (c/stop w)
+      (c/finz c)
+      (u/pause 500)
+      (= [big "tiny" big] @out)))
+
+  (ensure??
+    "websock/hub"
+    (let [hub (h1/ws-hub<>)
+          {:keys [host port] :as w}
+          (-> (sv/web-server-module<>
+                #(h1/ws-subscribe hub "news" (:socket %1)))
+              (c/start {:port 5556}))
+          _ (u/pause 888)
+          out (atom [])
+          cs (mapv (fn [_]
+                     (cc/ws-conn MODULE
+                                 host port
+                                 {:uri "/websock"
+                                  :user-cb #(swap! out conj (i/x->str (:body %1)))}))
+                   (range 3))]
+      (doseq [c cs]
+        (cc/write-msg c (cc/ws-text<> "sub")))
+      (u/pause 666)
+      (let [n (h1/ws-publish hub "news" "hello")]
+        (u/pause 666)
+        (c/stop w)
+        (run! c/finz cs)
+        (u/pause 500)
+        (and (== 3 n)
+             (= ["hello" "hello" "hello"] @out)))))
+
   (ensure?? "test-end" (== 1 1)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
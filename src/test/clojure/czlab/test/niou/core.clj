@@ -30,7 +30,8 @@
 
   (:import [java.net HttpCookie URL URI]
            [czlab.basal XData]
-           [czlab.niou Headers]
+           [czlab.niou DateUtil Headers LazyMap MultipartDecoder$TooLarge]
+           [io.netty.buffer Unpooled]
            [org.apache.commons.fileupload FileItem]))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
@@ -116,6 +117,37 @@
   (ensure?? "gist-header-vals"
             (= ["a" "b"] (vec (.get HEADERS "yo"))))
 
+  (ensure?? "gist-header/case"
+            (and (.equals "a" (.getFirst HEADERS "YO"))
+                 (== 4 (.entryCount HEADERS))
+                 (== 3 (.size HEADERS))))
+
+  (ensure?? "gist-header/set"
+            (let [h (doto (Headers.)
+                      (.add "x" "1")
+                      (.add "X" "2")
+                      (.add "y" "0")
+                      (.set "x" "3"))]
+              (and (= ["3"] (vec (.get h "X")))
+                   (== 2 (.entryCount h))
+                   (= "y" (str (.nameAt h 0))))))
+
+  (ensure?? "lazy-map"
+            (let [m (LazyMap. #(hash-map "a" 1))
+                  z? (.isRealized m)]
+              (and (not z?)
+                   (== 1 (.get m "a"))
+                   (.isRealized m))))
+
+  (ensure?? "http-date"
+            (let [t 784111777000]
+              (and (.equals "Sun, 06 Nov 1994 08:49:37 GMT"
+                            (DateUtil/formatHttpDate t))
+                   (== t (DateUtil/parseHttpDate "Sun, 06 Nov 1994 08:49:37 GMT" -1))
+                   (== t (DateUtil/parseHttpDate "Sunday, 06-Nov-94 08:49:37 GMT" -1))
+                   (== t (DateUtil/parseHttpDate "Sun Nov  6 08:49:37 1994" -1))
+                   (== -1 (DateUtil/parseHttpDate "not a date" -1)))))
+
   (ensure?? "init-test" (> (count ROUTES) 0))
 
   (ensure?? "has-routes?" (r/has-routes? RC))
@@ -176,6 +208,60 @@
                                  {:request-method :get
                                   :uri "/1/1/1/1/1/1/14"})))
 
+  (ensure?? "crack-route/verb"
+            (nil? (r/crack-route RC
+                                 {:uri "/hello/007"
+                                  :request-method :get})))
+
+  (ensure?? "crack-route/order"
+            (let [rc (r/route-cracker<>
+                       [{:name :s :pattern "/x/abc/y" :verb :get}
+                        {:name :p :pattern "/x/{id}/y"}])]
+              (and (= :s (-> (r/crack-route rc
+                                            {:uri "/x/abc/y"
+                                             :request-method :get}) :info :name))
+                   (= :p (-> (r/crack-route rc
+                                            {:uri "/x/abc/y"
+                                             :request-method :put}) :info :name))
+                   (nil? (r/crack-route rc
+                                        {:uri "/x//y"
+                                         :request-method :get})))))
+
+  (ensure?? "crack-route/catch-all"
+            (let [rc (r/route-cracker<>
+                       [{:name :api :pattern "/api/{id}" :verb :get}
+                        {:name :pub
+                         :pattern "/public/{path}"
+                         :groups {:path ".*"}}])
+                  {:keys [info params]}
+                  (r/crack-route rc
+                                 {:uri "/public/css/a/b.css"
+                                  :request-method :get})]
+              (and (= :pub (:name info))
+                   (.equals "css/a/b.css" (:path params))
+                   (= :api (-> (r/crack-route rc
+                                              {:uri "/api/7"
+                                               :request-method :get})
+                               :info :name))
+                   (nil? (r/crack-route rc
+                                        {:uri "/api/7/8"
+                                         :request-method :get})))))
+
+  (ensure?? "crack-route/dotted"
+            (let [rc (r/route-cracker<>
+                       [{:name :js :pattern "/static/app.js"}
+                        {:name :ico :pattern "/favicon.ico"}
+                        {:name :v1 :pattern "/v1.0/{id}" :verb :get}])
+                  crack #(-> (r/crack-route rc
+                                            {:uri %
+                                             :request-method :get}) :info :name)]
+              (and (not-any? :spans? (vals (:routes rc)))
+                   (= :js (crack "/static/app.js"))
+                   (= :ico (crack "/favicon.ico"))
+                   (= :v1 (crack "/v1.0/7"))
+                   (nil? (crack "/static/app/js"))
+                   (nil? (crack "/v1/0/7")))))
+
   ;:pattern "/a/{b}/c/{d}/e/{f}"
 
   (ensure?? "gen-route/nil"
@@ -229,6 +315,42 @@
                    (.equals "file content(1)\n" (:file1+foo1.tab fmap))
                    (.equals  "file content(2)\n" (:file2+foo2.tab fmap)))))
 
+  (ensure?? "multipart/incremental"
+            (let [out (atom [])
+                  bs (i/x->bytes cu/TEST-FORM-MULTIPART)
+                  d (cu/multipart<> "multipart/form-data; boundary=---1234"
+                                    #(swap! out conj %))
+                  seen (loop [i 0 seen nil]
+                         (if (>= i (alength bs))
+                           seen
+                           (do (.offer d (Unpooled/wrappedBuffer
+                                           bs i (min 3 (- (alength bs) i))))
+                               (recur (+ i 3)
+                                      (or seen (if (not-empty @out) i))))))]
+              (.finish d)
+              (.close d)
+              (try
+                (and (== 5 (count @out))
+                     (< seen (- (alength bs) 100))
+                     (.equals "file content(1)\n"
+                              (i/x->str (.get ^FileItem (first @out))))
+                     (.equals "value2" (.getString ^FileItem (last @out))))
+                (finally
+                  (doseq [n @out] (.delete ^FileItem n))))))
+
+  (ensure?? "multipart/field-too-large"
+            (let [out (atom [])
+                  d (cu/multipart<> "multipart/form-data; boundary=---1234"
+                                    nil nil 8 #(swap! out conj %))]
+              (try
+                (.offer d (Unpooled/wrappedBuffer
+                            (i/x->bytes cu/TEST-FORM-MULTIPART)))
+                false
+                (catch MultipartDecoder$TooLarge _ true)
+                (finally
+                  (.close d)
+                  (doseq [n @out] (.delete ^FileItem n))))))
+
   (ensure?? "downstream"
             (let [req (m/mock-http-request pkeybytes false)
                   res (m/mock-http-result req)
@@ -248,6 +370,41 @@
               (and (not (ws/is-session-null? s))
                    (not (ws/is-session-new? s)))))
 
+  (ensure?? "upstream/unchanged"
+            (let [req (m/mock-http-request pkeybytes true)
+                  res (ws/downstream (m/mock-http-result req))
+                  s (ws/upstream pkeybytes (:cookies res) true)
+                  res (ws/downstream (m/mock-http-result
+                                       (assoc req :session s)))]
+              (nil? (get (:cookies res) ws/session-cookie))))
+
+  (ensure?? "session/store"
+            (let [st (ws/mem-store<>)
+                  w (ws/wsession<> pkeybytes {:store st})
+                  _ (ws/set-session-attr w :user "joe")
+                  req (assoc (m/mock-http-request pkeybytes true) :session w)
+                  res (ws/downstream (m/mock-http-result req))
+                  cs (:cookies res)
+                  s (ws/upstream pkeybytes cs true st)
+                  _ (ws/set-session-attr s :user "ann")
+                  res2 (ws/downstream (m/mock-http-result
+                                        (assoc req :session s)))
+                  s2 (ws/upstream pkeybytes cs true st)]
+              (and (some? (get cs ws/session-cookie))
+                   (nil? (get (:cookies res2) ws/session-cookie))
+                   (not (ws/is-session-new? s))
+                   (= "ann" (ws/session-attr s2 :user)))))
+
+  (ensure?? "session/store-forged"
+            (let [st (ws/mem-store<>)
+                  w (ws/wsession<> pkeybytes {:store st})
+                  req (assoc (m/mock-http-request pkeybytes true) :session w)
+                  _ (ws/downstream (m/mock-http-result req))
+                  c (HttpCookie. ws/session-cookie
+                                 (str "bad|" (ws/session-id w)))]
+              (ws/is-session-null?
+                (ws/upstream pkeybytes {ws/session-cookie c} true st))))
+
   (ensure?? "parse-ie" (some? (ct/parse-ie (:winphone phone-agents))))
   (ensure?? "parse-ie" (nil? (ct/parse-ie "some crap")))
   (ensure?? "parse-user-agent-line"